@@ -0,0 +1,68 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.agent.BuildProgressLogger
+import jetbrains.buildServer.agent.Constants
+
+/**
+ * Results of resolving HashiCorp Vault parameters of a build: parameters to set and the reason to stop the build, if any.
+ *
+ * Resolution in background (see [VaultBuildFeature.ASYNC_RESOLUTION_PARAM]) collects the results while the agent prepares the build,
+ * they are applied by [applyTo] on the thread the agent runs the build with, so the build isn't modified concurrently with the preparation.
+ * Messages are written to [logger] right away, it is a separate flow of the build log for the background resolution.
+ */
+class VaultBuildChanges(val logger: BuildProgressLogger) {
+    // all fields are guarded by this
+    private val configParameters = LinkedHashMap<String, String>()
+    private val environmentVariables = LinkedHashMap<String, String>()
+    private val systemProperties = LinkedHashMap<String, String>()
+    private var stopReason: String? = null
+
+    /**
+     * @param key parameter name, `env.` and `system.` prefixes denote environment variables and system properties
+     */
+    @Synchronized
+    fun addParameter(key: String, value: String) {
+        when {
+            key.startsWith(Constants.SYSTEM_PREFIX) -> systemProperties[key.removePrefix(Constants.SYSTEM_PREFIX)] = value
+            key.startsWith(Constants.ENV_PREFIX) -> environmentVariables[key.removePrefix(Constants.ENV_PREFIX)] = value
+            else -> configParameters[key] = value
+        }
+    }
+
+    @Synchronized
+    fun addConfigParameter(key: String, value: String) {
+        configParameters[key] = value
+    }
+
+    @Synchronized
+    fun addEnvironmentVariable(name: String, value: String) {
+        environmentVariables[name] = value
+    }
+
+    /**
+     * Stops the build when the changes are applied, the first reason is reported
+     */
+    @Synchronized
+    fun stopBuild(reason: String) {
+        if (stopReason == null) {
+            stopReason = reason
+        }
+    }
+
+    /**
+     * Sets the collected parameters to the build and stops it if requested. Applied changes are cleared, so they can be applied once
+     */
+    @Synchronized
+    fun applyTo(build: AgentRunningBuild) {
+        configParameters.forEach { (key, value) -> build.addSharedConfigParameter(key, value) }
+        environmentVariables.forEach { (name, value) -> build.addSharedEnvironmentVariable(name, value) }
+        systemProperties.forEach { (name, value) -> build.addSharedSystemProperty(name, value) }
+        stopReason?.let { build.stopBuild(it) }
+
+        configParameters.clear()
+        environmentVariables.clear()
+        systemProperties.clear()
+        stopReason = null
+    }
+}
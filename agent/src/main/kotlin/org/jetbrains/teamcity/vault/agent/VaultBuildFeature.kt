@@ -5,7 +5,9 @@ import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.BuildProblemData
 import jetbrains.buildServer.agent.*
 import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
 import jetbrains.buildServer.util.StringUtil
 import jetbrains.buildServer.util.positioning.PositionAware
 import jetbrains.buildServer.util.positioning.PositionConstraint
@@ -14,36 +16,182 @@ import org.jetbrains.teamcity.vault.*
 import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
 import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 class VaultBuildFeature(
     dispatcher: EventDispatcher<AgentLifeCycleListener>,
     private val myVaultParametersResolver: VaultParametersResolver,
     private val sessionManagerBuilder: SessionManagerBuilder,
-    private val vaultFeatureSettingsFetcher: VaultFeatureSettingsFetcher
+    private val vaultFeatureSettingsFetcher: VaultFeatureSettingsFetcher,
+    private val sessionRegistry: VaultSessionRegistry,
+    private val credentialsPool: VaultDynamicCredentialsPool,
+    private val leaseRegistry: VaultLeaseRegistry,
+    private val pkiCertificateCache: VaultPkiCertificateCache,
+    private val fallbackStore: VaultSecretsFallbackStore,
+    private val loopbackProxy: VaultLoopbackProxy
 ) : AgentLifeCycleAdapter(), PositionAware {
     companion object {
         val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultBuildFeature::class.java.name)
+
+        /**
+         * Build parameter, set it to `true` to resolve HashiCorp Vault parameters in background while the agent prepares the build
+         * (checkout, artifact dependencies). The values are available to build steps, but not to the preparation
+         */
+        const val ASYNC_RESOLUTION_PARAM = "teamcity.vault.async.enabled"
+        const val ASYNC_THREADS_PARAM = "teamcity.internal.vault.async.threads"
+
+        /**
+         * Build parameter, set it to `true` to resolve `%vault:...%` references right before the first build step using them,
+         * either through its parameters or through the environment variables and system properties passed to every step
+         */
+        const val LAZY_RESOLUTION_PARAM = "teamcity.vault.lazy.enabled"
     }
 
+    /**
+     * References of a namespace left for the build steps
+     */
+    private class LazyReferences(
+        val namespace: String,
+        val settings: VaultFeatureSettings,
+        val token: String,
+        val isWriteEngineEnabled: Boolean,
+        val writeEngineCache: WriteEngineCache?,
+        val leaseListener: VaultLeaseListener?,
+        val pending: MutableSet<String>
+    )
+
+    private val lazyReferences = ConcurrentHashMap<Long, MutableList<LazyReferences>>()
+
+    private val asyncExecutor = TeamCityProperties.getInteger(ASYNC_THREADS_PARAM, 2).let { threads ->
+        ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, LinkedBlockingQueue(), NamedDaemonThreadFactory("HashiCorp Vault parameters resolution")).apply {
+            allowCoreThreadTimeOut(true)
+        }
+    }
+    private val asyncResolutions = ConcurrentHashMap<Long, Future<VaultBuildChanges>>()
+
     init {
         dispatcher.addListener(this)
         LOG.info("HashiCorp Vault integration enabled")
     }
 
-    private val sessions = ConcurrentHashMap<Long, LifecycleAwareSessionManager>()
-
     override fun afterAgentConfigurationLoaded(agent: BuildAgent) {
         agent.configuration.addConfigurationParameter(VaultConstants.FEATURE_SUPPORTED_AGENT_PARAMETER, "true")
     }
 
     override fun buildStarted(runningBuild: AgentRunningBuild) {
-        updateBuildParameters(runningBuild)
+        // an agent runs one build at a time
+        sessionRegistry.releaseStale { it == runningBuild.buildId }
+        if (runningBuild.sharedConfigParameters[ASYNC_RESOLUTION_PARAM]?.toBoolean() == true) {
+            try {
+                asyncResolutions[runningBuild.buildId] = asyncExecutor.submit(Callable { resolveInBackground(runningBuild) })
+                return
+            } catch (e: RejectedExecutionException) {
+                LOG.debug("Background resolution of HashiCorp Vault parameters is not available, resolving parameters of build ${runningBuild.buildId} right away")
+            }
+        }
+        val changes = VaultBuildChanges(runningBuild.buildLogger)
+        updateBuildParameters(runningBuild, changes)
+        changes.applyTo(runningBuild)
     }
 
-    private fun updateBuildParameters(build: AgentRunningBuild) {
+    /**
+     * Resolves the build parameters without changing the build, messages are logged in a separate flow so they don't interleave with the preparation
+     */
+    private fun resolveInBackground(build: AgentRunningBuild): VaultBuildChanges {
+        val logger = build.buildLogger.threadLogger
+        logger.startFlow()
+        try {
+            return VaultBuildChanges(logger).also { updateBuildParameters(build, it) }
+        } finally {
+            logger.disposeFlow()
+        }
+    }
+
+    override fun preparationFinished(runningBuild: AgentRunningBuild) {
+        joinAsyncResolution(runningBuild)
+    }
+
+    override fun beforeRunnerStart(runner: BuildRunnerContext) {
+        // no-op unless the preparation was skipped
+        joinAsyncResolution(runner.build)
+        resolveLazyReferences(runner)
+    }
+
+    /**
+     * Resolves the references the step uses which were not resolved for the previous steps
+     */
+    private fun resolveLazyReferences(runner: BuildRunnerContext) {
+        val build = runner.build
+        val namespaces = lazyReferences[build.buildId]?.filter { it.pending.isNotEmpty() } ?: return
+        val parameters = build.sharedConfigParameters + build.sharedBuildParameters.allParameters
+        // environment variables and system properties are passed to every step
+        val roots = runner.runnerParameters.values + parameters.filterKeys { it.startsWith(Constants.ENV_PREFIX) || it.startsWith(Constants.SYSTEM_PREFIX) }.values
+        for (lazy in namespaces) {
+            val used = VaultReferencesUtil.collectReachable(roots, parameters, listOf(lazy.namespace)).filter { it in lazy.pending }
+            if (used.isEmpty()) {
+                continue
+            }
+            lazy.pending.removeAll(used)
+            // the session is renewed while the build runs, the token obtained at build start may have expired
+            val session = sessionRegistry.getSession(build.buildId, lazy.namespace)
+            val token = session?.sessionToken?.token ?: lazy.token
+            build.buildLogger.activity("HashiCorp Vault" + if (lazy.namespace != "") " (namespace '${lazy.namespace}')" else "", VaultConstants.FeatureSettings.FEATURE_TYPE) {
+                myVaultParametersResolver.resolveLegacyReferences(build, lazy.settings, token, lazy.namespace, lazy.isWriteEngineEnabled,
+                    lazy.writeEngineCache, lazy.leaseListener, used, login = session?.let { { it.sessionToken.token } })
+            }
+        }
+    }
+
+    private fun releaseLazyReferences(build: AgentRunningBuild) {
+        val unused = lazyReferences.remove(build.buildId)?.sumOf { it.pending.size } ?: return
+        if (unused > 0) {
+            LOG.debug("$unused HashiCorp Vault ${"reference".pluralize(unused)} of build ${build.buildId} were not used by any step and not fetched")
+        }
+    }
+
+    /**
+     * Waits for the background resolution of the build parameters and applies them to the build
+     */
+    private fun joinAsyncResolution(build: AgentRunningBuild) {
+        val resolution = asyncResolutions.remove(build.buildId) ?: return
+        val started = System.currentTimeMillis()
+        val changes = try {
+            resolution.get()
+        } catch (e: ExecutionException) {
+            val errorMessage = "Failed to resolve HashiCorp Vault parameters"
+            LOG.warnAndDebugDetails(errorMessage, e.cause)
+            build.buildLogger.internalError(VaultConstants.FeatureSettings.FEATURE_TYPE, errorMessage, e.cause)
+            build.stopBuild(errorMessage)
+            return
+        }
+        changes.applyTo(build)
+        val waited = System.currentTimeMillis() - started
+        if (waited > 0) {
+            LOG.debug("Waited ${waited}ms for HashiCorp Vault parameters of build ${build.buildId}")
+        }
+    }
+
+    /**
+     * Waits for the background resolution of a build which finished before it was joined, so its sessions are released
+     */
+    private fun awaitAsyncResolution(build: AgentRunningBuild) {
+        val resolution = asyncResolutions.remove(build.buildId) ?: return
+        try {
+            resolution.get()
+        } catch (e: ExecutionException) {
+            LOG.debug("Background resolution of HashiCorp Vault parameters of build ${build.buildId} failed", e.cause)
+        }
+    }
+
+    private fun updateBuildParameters(build: AgentRunningBuild, changes: VaultBuildChanges) {
         val allParameters = build.sharedConfigParameters + build.sharedBuildParameters.allParameters
 
-        val vaultNamespacesAndParameters = extractVaultParameters(build, allParameters)
+        val vaultNamespacesAndParameters = extractVaultParameters(build, allParameters, changes)
         val vaultLegacyReferencesNamespaces = extractLegacyVaultNamespaces(build)
 
         val allNamespaces = vaultNamespacesAndParameters.keys + vaultLegacyReferencesNamespaces
@@ -54,24 +202,43 @@ class VaultBuildFeature(
         val retrier = VaultAgentRetrier.getAgentRetrier(build, "fetching the vault session token")
         val settingsAndTokens = nonFetchedNamespaces.mapNotNull { namespace ->
             val settings = vaultFeatureSettingsFetcher.getVaultFeatureSettings(namespace, build) ?: return@mapNotNull null
-            val token = resolveToken(allParameters, settings, build, namespace, retrier) ?: return@mapNotNull null
+            val token = resolveToken(allParameters, settings, build, namespace, retrier, changes) ?: return@mapNotNull null
             namespace to VaultFeatureSettingsAndToken(settings, token)
         }
 
         val isWriteEngineEnabled = allParameters[VaultConstants.FeatureFlags.FEATURE_ENABLE_WRITE_ENGINES]?.toBoolean() ?: false
+        val isLazy = allParameters[LAZY_RESOLUTION_PARAM]?.toBoolean() == true
         settingsAndTokens.forEach { (namespace, settingsAndToken) ->
-            build.buildLogger.activity("HashiCorp Vault" + if (namespace != "") " (namespace '$namespace')" else "",
+            changes.logger.activity("HashiCorp Vault" + if (namespace != "") " (namespace '$namespace')" else "",
                     VaultConstants.FeatureSettings.FEATURE_TYPE) {
+                val sessionManager = sessionRegistry.getSession(build.buildId, namespace)
+                val writeEngineCache = if (isWriteEngineEnabled) {
+                    val pooled = credentialsPool.cacheFor(build, namespace, settingsAndToken.settings, sessionManager)
+                    pkiCertificateCache.cacheFor(build, namespace, settingsAndToken.settings, pooled)
+                } else null
+                val leaseListener = leaseRegistry.listenerFor(build, settingsAndToken.settings, sessionManager)
+                // logs in again to refresh stored values in background, if the connection failed to log in at the build start
+                val login = sessionManager?.let { { it.sessionToken.token } }
+
                 val parameters = vaultNamespacesAndParameters[namespace]
                 if (!parameters.isNullOrEmpty()) {
-                    myVaultParametersResolver.resolveParameters(build, settingsAndToken.settings, parameters, settingsAndToken.token, isWriteEngineEnabled)
+                    myVaultParametersResolver.resolveParameters(build, settingsAndToken.settings, parameters, settingsAndToken.token, isWriteEngineEnabled,
+                        writeEngineCache, leaseListener, changes, login)
                 }
 
                 if (vaultLegacyReferencesNamespaces.contains(namespace)) {
-                    myVaultParametersResolver.resolveLegacyReferences(build, settingsAndToken.settings, settingsAndToken.token, namespace, isWriteEngineEnabled)
+                    if (isLazy) {
+                        val references = myVaultParametersResolver.getRelatedParameterReferences(build, namespace)
+                        changes.logger.message("${references.size} ${"reference".pluralize(references)} will be resolved before the build steps using them")
+                        lazyReferences.computeIfAbsent(build.buildId) { ArrayList() } += LazyReferences(namespace, settingsAndToken.settings, settingsAndToken.token,
+                            isWriteEngineEnabled, writeEngineCache, leaseListener, references.toHashSet())
+                    } else {
+                        myVaultParametersResolver.resolveLegacyReferences(build, settingsAndToken.settings, settingsAndToken.token, namespace, isWriteEngineEnabled,
+                            writeEngineCache, leaseListener, changes = changes, login = login)
+                    }
                 }
 
-                build.addSharedConfigParameter(getParametersFetchedForNamespaceParameter(namespace), "true")
+                changes.addConfigParameter(getParametersFetchedForNamespaceParameter(namespace), "true")
             }
         }
     }
@@ -84,7 +251,7 @@ class VaultBuildFeature(
     }
 
 
-    private fun extractVaultParameters(build: AgentRunningBuild, allAccessibleParameters: Map<String, String>): Map<String, List<VaultParameter>> {
+    private fun extractVaultParameters(build: AgentRunningBuild, allAccessibleParameters: Map<String, String>, changes: VaultBuildChanges): Map<String, List<VaultParameter>> {
         build as AgentRunningBuildEx // required for AgentRunningBuildEx#getParameterControlDescription
         val paramKeyToControlDescription = allAccessibleParameters.keys
                 .mapNotNull { parameterKey ->
@@ -113,8 +280,8 @@ class VaultBuildFeature(
             } catch (e: Throwable) {
                 val errorMessage = "Failed to parse Vault parameter settings for parameter '$parameterKey'"
                 LOG.warnAndDebugDetails(errorMessage, e)
-                build.buildLogger.internalError(VaultConstants.FeatureSettings.FEATURE_TYPE, errorMessage, e)
-                build.stopBuild(errorMessage)
+                changes.logger.internalError(VaultConstants.FeatureSettings.FEATURE_TYPE, errorMessage, e)
+                changes.stopBuild(errorMessage)
                 null
             }
         }.groupBy { vaultParameter -> vaultParameter.vaultParameterSettings.namespace }
@@ -135,16 +302,19 @@ class VaultBuildFeature(
         settings: VaultFeatureSettings,
         runningBuild: AgentRunningBuild,
         namespace: String,
-        retrier: Retrier
+        retrier: Retrier,
+        changes: VaultBuildChanges
     ): String? {
         if (settings.url.isBlank()) {
             return null
         }
-        val logger = runningBuild.buildLogger
+        val logger = changes.logger
         val token: String
+        val sessionManager: LifecycleAwareSessionManager
         try {
-            val sessionManager = sessionManagerBuilder.buildWithImprovedLogging(settings, logger)
-            sessions[runningBuild.buildId] = sessionManager
+            // the session outlives the resolution, it logs to the main flow of the build
+            sessionManager = sessionManagerBuilder.buildWithImprovedLogging(settings, runningBuild.buildLogger)
+            sessionRegistry.register(runningBuild.buildId, namespace, sessionManager, settings)
             val sessionToken = retrier.execute(
                 Callable {
                     sessionManager.sessionToken.token
@@ -161,9 +331,13 @@ class VaultBuildFeature(
                 AuthMethod.LDAP -> "Failed to get HashiCorp Vault token using LDAP"
                 AuthMethod.GCP_IAM -> "Failed to get HashiCorp Vault token using GCP IAM"
             }
+            if (VaultResolver.isVaultUnavailable(e) && fallbackStore.forConnection(runningBuild, settings) != null) {
+                logger.warning("$errorPrefix: ${e.message}. HashiCorp Vault is unavailable, stored values will be used for the connection '${settings.id}'")
+                return VaultSecretsFallbackStore.NO_TOKEN
+            }
             logger.internalError(VaultConstants.FeatureSettings.FEATURE_TYPE, errorPrefix + ": " + e.message, e)
             logger.logBuildProblem(BuildProblemData.createBuildProblem("VC_${runningBuild.buildTypeId}_${settings.id}_A", "VaultConnection", errorPrefix))
-            runningBuild.stopBuild(errorPrefix)
+            changes.stopBuild(errorPrefix)
             return null
         }
 
@@ -175,8 +349,17 @@ class VaultBuildFeature(
             val tokenParameter = envPrefix + VaultConstants.AgentEnvironment.VAULT_TOKEN
             val addrParameter = envPrefix + VaultConstants.AgentEnvironment.VAULT_ADDR
 
-            runningBuild.addSharedEnvironmentVariable(tokenParameter, token)
-            runningBuild.addSharedEnvironmentVariable(addrParameter, settings.url)
+            // with the proxy enabled the session token never reaches build scripts, even if the proxy fails to start
+            val proxy = try {
+                loopbackProxy.start(runningBuild, settings) { sessionManager.sessionToken?.token ?: token }
+            } catch (e: Exception) {
+                val message = "Failed to start HashiCorp Vault loopback proxy for the connection '${settings.id}', $addrParameter and $tokenParameter environment variables are not set"
+                LOG.warnAndDebugDetails(message, e)
+                logger.logBuildProblem(BuildProblemData.createBuildProblem("VC_${runningBuild.buildTypeId}_${settings.id}_P", "VaultConnection", message))
+                return token
+            }
+            changes.addEnvironmentVariable(tokenParameter, proxy?.credential ?: token)
+            changes.addEnvironmentVariable(addrParameter, proxy?.address ?: settings.url)
 
             logger.message("$addrParameter and $tokenParameter environment variables were added")
         }
@@ -185,13 +368,33 @@ class VaultBuildFeature(
     }
 
     override fun beforeBuildFinish(build: AgentRunningBuild, buildStatus: BuildFinishedStatus) {
-        // Stop renewing token, revoke token
-        val manager = sessions[build.buildId] ?: return
-        manager.destroy()
+        awaitAsyncResolution(build)
+        releaseLazyReferences(build)
+        // Stop renewing tokens, revoke tokens of all the build connections in background so the build is not delayed by Vault.
+        // Leases are revoked together with the session tokens which have created them
+        loopbackProxy.release(build.buildId)
+        credentialsPool.release(build.buildId)
+        leaseRegistry.release(build.buildId)
+        val namespaces = sessionRegistry.getSessions(build.buildId).keys
+        sessionRegistry.release(build.buildId)
+        // the build is still authenticated on the server, so it can be told not to revoke the tokens by accessor
+        namespaces.forEach { vaultFeatureSettingsFetcher.reportTokenReleased(it, build) }
     }
 
     override fun buildFinished(build: AgentRunningBuild, buildStatus: BuildFinishedStatus) {
-        sessions.remove(build.buildId)
+        awaitAsyncResolution(build)
+        releaseLazyReferences(build)
+        // No-op if the sessions were already released in beforeBuildFinish
+        loopbackProxy.release(build.buildId)
+        credentialsPool.release(build.buildId)
+        leaseRegistry.release(build.buildId)
+        sessionRegistry.release(build.buildId)
+    }
+
+    override fun agentShutdown() {
+        asyncExecutor.shutdownNow()
+        loopbackProxy.releaseAll()
+        sessionRegistry.releaseAll()
     }
 
     override fun getOrderId() = "HashiCorpVaultPluginParamsResolvedBuildFeature"
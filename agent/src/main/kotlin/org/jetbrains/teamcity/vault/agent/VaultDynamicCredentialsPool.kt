@@ -0,0 +1,205 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
+import org.jetbrains.teamcity.vault.*
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.jetbrains.teamcity.vault.support.VaultTemplate
+import org.springframework.vault.client.VaultEndpoint
+import org.springframework.vault.support.VaultResponse
+import java.net.URI
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Opt-in pool of dynamic credentials obtained from write engines, shared by builds of the same project connection on this agent.
+ *
+ * A lease is reused by later builds until its remaining TTL drops below the threshold, and revoked once
+ * it's not used by any running build anymore. Revoking a token revokes all the leases it has created,
+ * so the session of the build which obtained a pooled lease is kept alive (and renewed) until its last lease is evicted.
+ */
+class VaultDynamicCredentialsPool(
+    dispatcher: EventDispatcher<AgentLifeCycleListener>,
+    private val tokenRevoker: VaultTokenRevoker,
+    private val trustStoreProvider: SSLTrustStoreProvider
+) : AgentLifeCycleAdapter() {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultDynamicCredentialsPool::class.java.name)
+
+        // build parameters
+        const val ENABLED_PARAM = "teamcity.vault.dynamicCredentials.pool.enabled"
+        const val MIN_REMAINING_TTL_PARAM = "teamcity.vault.dynamicCredentials.pool.minRemainingTtlSeconds"
+
+        const val MAX_SIZE_PARAM = "teamcity.internal.vault.dynamicCredentials.pool.maxSize"
+        const val CLEANUP_INTERVAL_PARAM = "teamcity.internal.vault.dynamicCredentials.pool.cleanupIntervalSeconds"
+    }
+
+    private data class Key(val projectId: String, val namespace: String, val url: String, val vaultNamespace: String, val pathWithParams: String)
+
+    private class Owner(val sessionManager: LifecycleAwareSessionManager, val settings: VaultFeatureSettings, val description: String) {
+        var leases = 0
+        var adopted = false
+    }
+
+    private class Entry(val key: Key, val response: VaultResponse, val owner: Owner, val expires: Long, val minRemainingTtl: Long) {
+        val holders = HashSet<Long>()
+
+        fun isReusable(now: Long) = expires - now >= minRemainingTtl
+    }
+
+    // all fields are guarded by the pool monitor
+    private val entries = LinkedHashMap<Key, Entry>()
+    // entries replaced by fresher ones but still held by running builds
+    private val retired = ArrayList<Entry>()
+    private val owners = IdentityHashMap<LifecycleAwareSessionManager, Owner>()
+
+    private val executor = Executors.newSingleThreadScheduledExecutor(NamedDaemonThreadFactory("HashiCorp Vault dynamic credentials pool"))
+
+    init {
+        dispatcher.addListener(this)
+        val interval = TeamCityProperties.getLong(CLEANUP_INTERVAL_PARAM, 30)
+        executor.scheduleWithFixedDelay({ evictExpired() }, interval, interval, TimeUnit.SECONDS)
+    }
+
+    /**
+     * @return cache of dynamic credentials for the build connection, or null if pooling is not enabled for the build
+     */
+    fun cacheFor(build: AgentRunningBuild, namespace: String, settings: VaultFeatureSettings, sessionManager: LifecycleAwareSessionManager?): WriteEngineCache? {
+        val parameters = build.sharedConfigParameters
+        if (sessionManager == null || parameters[ENABLED_PARAM]?.toBoolean() != true) {
+            return null
+        }
+        val projectId = parameters["teamcity.project.id"] ?: return null
+        val minRemainingTtl = TimeUnit.SECONDS.toMillis(parameters[MIN_REMAINING_TTL_PARAM]?.toLongOrNull() ?: 300)
+        val buildId = build.buildId
+
+        return object : WriteEngineCache {
+            override fun acquire(query: VaultQuery.Shorten): VaultResponse? = synchronized(this@VaultDynamicCredentialsPool) {
+                val entry = entries[key(query)] ?: return null
+                if (!entry.isReusable(System.currentTimeMillis())) {
+                    return null
+                }
+                entry.holders += buildId
+                build.buildLogger.message("Reusing dynamic credentials for '${query.pathWithParams}', lease expires in " +
+                        "${TimeUnit.MILLISECONDS.toSeconds(entry.expires - System.currentTimeMillis())}s")
+                entry.response
+            }
+
+            override fun offer(query: VaultQuery.Shorten, response: VaultResponse): Boolean {
+                val leaseId = response.leaseId
+                if (leaseId.isNullOrEmpty() || response.leaseDuration <= 0) {
+                    // nothing to revoke later, such responses are not pooled
+                    return false
+                }
+                val expires = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(response.leaseDuration)
+                synchronized(this@VaultDynamicCredentialsPool) {
+                    val owner = owners.getOrPut(sessionManager) { Owner(sessionManager, settings, "build $buildId") }
+                    owner.leases++
+                    val entry = Entry(key(query), response, owner, expires, minRemainingTtl)
+                    entry.holders += buildId
+                    entries.put(entry.key, entry)?.let { retire(it) }
+                }
+                evictOverflow()
+                return true
+            }
+
+            private fun key(query: VaultQuery.Shorten) = Key(projectId, namespace, settings.url, settings.vaultNamespace, query.pathWithParams)
+        }
+    }
+
+    /**
+     * Called instead of revoking the build session token.
+     *
+     * @return true if the session owns pooled leases, the pool then keeps it alive and revokes it after its last lease is evicted
+     */
+    @Synchronized
+    fun adopt(sessionManager: LifecycleAwareSessionManager): Boolean {
+        val owner = owners[sessionManager] ?: return false
+        owner.adopted = true
+        return true
+    }
+
+    /**
+     * Drops references of the finished build
+     */
+    fun release(buildId: Long) {
+        synchronized(this) {
+            entries.values.forEach { it.holders -= buildId }
+            retired.forEach { it.holders -= buildId }
+        }
+        evictExpired()
+    }
+
+    @Synchronized
+    fun size(): Int = entries.size + retired.size
+
+    override fun agentShutdown() {
+        executor.shutdownNow()
+        val all = synchronized(this) {
+            (entries.values + retired).also {
+                entries.clear()
+                retired.clear()
+            }
+        }
+        all.forEach { evict(it) }
+    }
+
+    private fun evictExpired() {
+        val now = System.currentTimeMillis()
+        val evicted = synchronized(this) {
+            entries.values.filter { !it.isReusable(now) }.forEach { retire(it) }
+            entries.values.removeIf { !it.isReusable(now) }
+            retired.filter { it.holders.isEmpty() }.also { retired.removeAll(it) }
+        }
+        evicted.forEach { evict(it) }
+    }
+
+    private fun evictOverflow() {
+        val evicted = synchronized(this) {
+            val maxSize = TeamCityProperties.getInteger(MAX_SIZE_PARAM, 100)
+            val iterator = entries.values.iterator()
+            val result = ArrayList<Entry>()
+            while (entries.size > maxSize && iterator.hasNext()) {
+                val entry = iterator.next()
+                iterator.remove()
+                if (entry.holders.isEmpty()) result += entry else retired += entry
+            }
+            result
+        }
+        evicted.forEach { evict(it) }
+    }
+
+    private fun retire(entry: Entry) {
+        if (!retired.contains(entry)) retired += entry
+    }
+
+    private fun evict(entry: Entry) {
+        val owner = entry.owner
+        try {
+            val client = VaultTemplate(VaultEndpoint.from(URI.create(owner.settings.url)), owner.settings.vaultNamespace,
+                createClientHttpRequestFactory(trustStoreProvider), owner.sessionManager)
+            VaultLeases.revoke(client, entry.response.leaseId)
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to revoke pooled HashiCorp Vault lease for '${entry.key.pathWithParams}'", e)
+        }
+
+        val revokeOwner = synchronized(this) {
+            owner.leases--
+            if (owner.leases <= 0) {
+                owners.remove(owner.sessionManager)
+                owner.adopted
+            } else false
+        }
+        if (revokeOwner) {
+            tokenRevoker.revoke(owner.sessionManager, "${owner.description} (pooled dynamic credentials)")
+        }
+    }
+}
@@ -7,6 +7,7 @@ import jetbrains.buildServer.BuildProblemData
 import jetbrains.buildServer.agent.AgentRunningBuild
 import jetbrains.buildServer.agent.BuildAgentConfigurationEx
 import jetbrains.buildServer.http.SimpleCredentials
+import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.util.HTTPRequestBuilder
 import jetbrains.buildServer.util.http.HttpMethod
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
@@ -14,8 +15,11 @@ import org.apache.http.client.utils.URIBuilder
 import org.jetbrains.teamcity.vault.VaultConstants
 import org.jetbrains.teamcity.vault.VaultFeatureSettings
 import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import java.util.concurrent.Callable
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
 
 class VaultFeatureSettingsFetcher(private val sslTrustStoreProvider: SSLTrustStoreProvider, private val requestHandler: HTTPRequestBuilder.RequestHandler) {
 
@@ -23,45 +27,101 @@ class VaultFeatureSettingsFetcher(private val sslTrustStoreProvider: SSLTrustSto
     constructor(sslTrustStoreProvider: SSLTrustStoreProvider) : this(sslTrustStoreProvider, HTTPRequestBuilder.DelegatingRequestHandler())
 
 
+    companion object {
+        const val RETRY_AFTER_MAX_WAIT_SECONDS_PARAM = "teamcity.internal.vault.token.retryAfter.maxWaitSeconds"
+        const val RETRY_AFTER_JITTER_PARAM = "teamcity.internal.vault.token.retryAfter.jitterFraction"
+    }
+
     private val objectMapper by lazy {
         jacksonObjectMapper()
     }
 
+    /**
+     * When the server is overloaded it answers with 503 and `Retry-After`. The request is repeated after the requested delay
+     * plus a random jitter, so that agents started together don't come back at the same moment.
+     */
+    internal fun requestHonoringRetryAfter(build: AgentRunningBuild, request: () -> HTTPRequestBuilder.Response?): HTTPRequestBuilder.Response? {
+        val params = build.sharedConfigParameters
+        val maxWait = TimeUnit.SECONDS.toMillis(params[RETRY_AFTER_MAX_WAIT_SECONDS_PARAM]?.toLongOrNull() ?: TeamCityProperties.getLong(RETRY_AFTER_MAX_WAIT_SECONDS_PARAM, 300))
+        val jitter = params[RETRY_AFTER_JITTER_PARAM]?.toDoubleOrNull() ?: TeamCityProperties.getProperty(RETRY_AFTER_JITTER_PARAM, "0.5").toDoubleOrNull() ?: 0.5
+        var waited = 0L
+        while (true) {
+            val response = request()
+            if (response == null || response.statusCode != HttpStatus.SERVICE_UNAVAILABLE.value()) {
+                return response
+            }
+            val retryAfter = response.getHeader(HttpHeaders.RETRY_AFTER)?.trim()?.toLongOrNull() ?: return response
+            val delay = TimeUnit.SECONDS.toMillis(retryAfter).let { it + (it * jitter * ThreadLocalRandom.current().nextDouble()).toLong() }
+            if (waited + delay > maxWait) {
+                return response
+            }
+
+            response.close()
+            build.buildLogger.message("TeamCity server is busy issuing HashiCorp Vault tokens, retrying in ${TimeUnit.MILLISECONDS.toSeconds(delay)}s")
+            Thread.sleep(delay)
+            waited += delay
+        }
+    }
+
+    private fun createRequestBuilder(build: AgentRunningBuild, path: String, method: HttpMethod, namespace: String): HTTPRequestBuilder {
+        val configuration = build.agentConfiguration as BuildAgentConfigurationEx
+        val requestBuilder = HTTPRequestBuilder("${configuration.serverUrl}/app/${VaultConstants.ControllerSettings.URL}/$path")
+            .withMethod(method)
+            .addParameters(
+                Pair("buildId", build.buildId.toString()),
+                Pair("namespace", namespace)
+            )
+            .withCredentials(SimpleCredentials(build.accessUser, build.accessCode))
+            .withTimeout(configuration.serverConnectionTimeout * 1000)
+            .allowNonSecureConnection(true)
+            .withPreemptiveAuthentication(true)
+            .withTrustStore(sslTrustStoreProvider.trustStore)
+
+        if (configuration.serverProxyHost != null) {
+            requestBuilder.withProxyHost(
+                URIBuilder()
+                    .setHost(configuration.serverProxyHost).setPort(configuration.serverProxyPort).build()
+            )
+
+            val serverProxyCredentials = configuration.serverProxyCredentials
+            if (serverProxyCredentials != null) {
+                requestBuilder.withProxyCredentials(serverProxyCredentials)
+            }
+        }
+        return requestBuilder
+    }
+
+    /**
+     * Tells the server the build token of the connection was released by the agent (revoked or kept for pooled credentials),
+     * so the server doesn't revoke it by accessor. If the report fails, the server revokes the token itself
+     */
+    fun reportTokenReleased(namespace: String, build: AgentRunningBuild) {
+        try {
+            val requestBuilder = createRequestBuilder(build, VaultConstants.ControllerSettings.RELEASE_TOKEN_PATH, HttpMethod.POST, namespace)
+            requestHandler.doSyncRequest(requestBuilder.build()).use { response ->
+                if (response == null || response.statusCode !in 200..299) {
+                    VaultBuildFeature.LOG.debug("Failed to report released HashiCorp Vault token of the connection '$namespace' to TeamCity server: ${response?.statusCode}")
+                }
+            }
+        } catch (e: Exception) {
+            VaultBuildFeature.LOG.debug("Failed to report released HashiCorp Vault token of the connection '$namespace' to TeamCity server", e)
+        }
+    }
+
     fun getVaultFeatureSettings(namespace: String, build: AgentRunningBuild): VaultFeatureSettings? {
         val logger = build.buildLogger
         val errorPrefix = "Failed to get HashiCorp Vault wrapped token from TeamCity server for the project connection with ID '$namespace':"
 
         return try {
-            val configuration = build.agentConfiguration as BuildAgentConfigurationEx
-            val requestBuilder = HTTPRequestBuilder("${configuration.serverUrl}/app/${VaultConstants.ControllerSettings.URL}/${VaultConstants.ControllerSettings.WRAP_TOKEN_PATH}")
-                .withMethod(HttpMethod.GET)
-                .addParameters(
-                    Pair("buildId", build.buildId.toString()),
-                    Pair("namespace", namespace)
-                )
-                .withCredentials(SimpleCredentials(build.accessUser, build.accessCode))
-                .withTimeout(configuration.serverConnectionTimeout * 1000)
-                .allowNonSecureConnection(true)
-                .withPreemptiveAuthentication(true)
-                .withTrustStore(sslTrustStoreProvider.trustStore)
-
-            if (configuration.serverProxyHost != null) {
-                requestBuilder.withProxyHost(
-                    URIBuilder()
-                        .setHost(configuration.serverProxyHost).setPort(configuration.serverProxyPort).build()
-                )
-
-                val serverProxyCredentials = configuration.serverProxyCredentials
-                if (serverProxyCredentials != null) {
-                    requestBuilder.withProxyCredentials(serverProxyCredentials)
-                }
-            }
+            val requestBuilder = createRequestBuilder(build, VaultConstants.ControllerSettings.WRAP_TOKEN_PATH, HttpMethod.GET, namespace)
 
             val retrier = VaultAgentRetrier.getAgentRetrier(build,"fetching the vault credentials from TeamCity server")
-            val response = retrier.execute(Callable {
-                HTTPRequestBuilder.DelegatingRequestHandler().doSyncRequest(requestBuilder.build())
+            val response = requestHonoringRetryAfter(build) {
+                retrier.execute(Callable {
+                    HTTPRequestBuilder.DelegatingRequestHandler().doSyncRequest(requestBuilder.build())
+                }
+                )
             }
-            )
 
             response.use {
                 if (response == null || response.statusCode != HttpStatus.OK.value()) {
@@ -0,0 +1,135 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.BuildProblemData
+import jetbrains.buildServer.agent.*
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessageHandler
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessagesRegister
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.FileUtil
+import org.jetbrains.teamcity.vault.*
+import java.io.File
+
+/**
+ * Handles `##teamcity[vaultFetch query='<query>' namespace='<connection ID>' parameter='<name>' file='<name>']` service messages,
+ * so build steps can fetch secrets they only need conditionally using the session opened for the build.
+ *
+ * The value is masked in the build log and is either set to the parameter or written to the file, which is created in a tmpfs
+ * directory when available (`/dev/shm`) or in the build temp directory, is readable by the agent user only, and is deleted when the build finishes.
+ * The parameter holds the file path if both attributes are set.
+ */
+class VaultFetchServiceMessageHandler(
+    dispatcher: EventDispatcher<AgentLifeCycleListener>,
+    serviceMessagesRegister: ServiceMessagesRegister,
+    private val resolver: VaultParametersResolver,
+    private val sessionRegistry: VaultSessionRegistry,
+    private val leaseRegistry: VaultLeaseRegistry
+) : AgentLifeCycleAdapter(), ServiceMessageHandler {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultFetchServiceMessageHandler::class.java.name)
+
+        const val MESSAGE_NAME = "vaultFetch"
+        const val QUERY_ATTRIBUTE = "query"
+        const val NAMESPACE_ATTRIBUTE = "namespace"
+        const val PARAMETER_ATTRIBUTE = "parameter"
+        const val FILE_ATTRIBUTE = "file"
+
+        private val TMPFS_DIRECTORY = File("/dev/shm")
+    }
+
+    @Volatile
+    private var runningBuild: AgentRunningBuild? = null
+
+    init {
+        dispatcher.addListener(this)
+        serviceMessagesRegister.registerHandler(MESSAGE_NAME, this)
+    }
+
+    override fun buildStarted(runningBuild: AgentRunningBuild) {
+        this.runningBuild = runningBuild
+    }
+
+    override fun buildFinished(build: AgentRunningBuild, buildStatus: BuildFinishedStatus) {
+        runningBuild = null
+        FileUtil.delete(getSecretsDirectory(build))
+    }
+
+    override fun handle(serviceMessage: ServiceMessage) {
+        val build = runningBuild ?: return
+        val attributes = serviceMessage.attributes
+        val logger = build.buildLogger
+        val queryText = attributes[QUERY_ATTRIBUTE]
+        val parameter = attributes[PARAMETER_ATTRIBUTE]
+        val fileName = attributes[FILE_ATTRIBUTE]
+        if (queryText.isNullOrBlank() || (parameter.isNullOrBlank() && fileName.isNullOrBlank())) {
+            logger.warning("'$MESSAGE_NAME' service message requires the '$QUERY_ATTRIBUTE' attribute and either '$PARAMETER_ATTRIBUTE' or '$FILE_ATTRIBUTE'")
+            return
+        }
+
+        val namespace = attributes[NAMESPACE_ATTRIBUTE] ?: VaultConstants.FeatureSettings.DEFAULT_VAULT_NAMESPACE
+        val settings = sessionRegistry.getSettings(build.buildId, namespace)
+        val sessionManager = sessionRegistry.getSession(build.buildId, namespace)
+        val token = sessionManager?.sessionToken?.token
+        if (settings == null || token == null) {
+            fail(build, namespace, "There's no HashiCorp Vault session of the connection '$namespace' in the build, '$queryText' is not fetched")
+            return
+        }
+
+        val isWriteEngineEnabled = build.sharedConfigParameters[VaultConstants.FeatureFlags.FEATURE_ENABLE_WRITE_ENGINES]?.toBoolean() ?: false
+        val query = VaultQuery.extract(queryText, isWriteEngineEnabled)
+        if (query.isExpanding) {
+            logger.warning("Query '${query.full}' resolves into several values and can only be used as a HashiCorp Vault parameter, it is not fetched")
+            return
+        }
+
+        val retrier = VaultAgentRetrier.getAgentRetrier(build, "fetching the data from the vault")
+        val cacheScope = build.sharedConfigParameters["teamcity.project.id"]?.let { VaultPinnedVersionsCache.getScope(it, settings.id) }
+        val refresh = build.sharedConfigParameters[VaultNegativeCache.REFRESH_PARAM]?.toBoolean() == true
+        val result = resolver.doFetchAndPrepareReplacements(settings, token, listOf(query), retrier,
+            leaseListener = leaseRegistry.listenerFor(build, settings, sessionManager), cacheScope = cacheScope, refreshCachedFailures = refresh)
+        val value = result.replacements[query.full]
+        if (value == null) {
+            fail(build, namespace, result.errors[query.full] ?: "Failed to fetch '${query.full}' from HashiCorp Vault")
+            return
+        }
+        build.passwordReplacer.addPassword(value)
+
+        if (!fileName.isNullOrBlank()) {
+            val directory = getSecretsDirectory(build)
+            val file = File(directory, fileName)
+            if (!FileUtil.isAncestor(directory, file, false)) {
+                fail(build, namespace, "File '$fileName' of '${query.full}' must be inside the secrets directory")
+                return
+            }
+            file.parentFile.mkdirs()
+            writeOwnerOnly(file, value.toByteArray())
+            parameter?.takeIf { it.isNotBlank() }?.let { addParameter(build, it, file.absolutePath) }
+            logger.message("'${query.full}' is written to ${file.absolutePath}")
+        } else {
+            addParameter(build, parameter!!, value)
+            logger.message("'${query.full}' is set to the '$parameter' parameter")
+        }
+    }
+
+    private fun addParameter(build: AgentRunningBuild, key: String, value: String) {
+        when {
+            key.startsWith(Constants.SYSTEM_PREFIX) -> build.addSharedSystemProperty(key.removePrefix(Constants.SYSTEM_PREFIX), value)
+            key.startsWith(Constants.ENV_PREFIX) -> build.addSharedEnvironmentVariable(key.removePrefix(Constants.ENV_PREFIX), value)
+            else -> build.addSharedConfigParameter(key, value)
+        }
+    }
+
+    private fun fail(build: AgentRunningBuild, namespace: String, message: String) {
+        LOG.warn(message)
+        build.buildLogger.logBuildProblem(BuildProblemData.createBuildProblem("VF_${build.buildTypeId}_${namespace}_A", "VaultConnection", message))
+    }
+
+    /**
+     * Files are kept in memory-backed storage when possible, so secrets are never written to a disk
+     */
+    private fun getSecretsDirectory(build: AgentRunningBuild): File =
+        if (TMPFS_DIRECTORY.isDirectory && TMPFS_DIRECTORY.canWrite()) File(TMPFS_DIRECTORY, "teamcity-vault-${build.buildId}")
+        else File(build.buildTempDirectory, "teamcity-vault")
+}
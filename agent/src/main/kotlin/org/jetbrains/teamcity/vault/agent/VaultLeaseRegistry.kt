@@ -0,0 +1,105 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
+import org.jetbrains.teamcity.vault.*
+import org.jetbrains.teamcity.vault.support.HashedWheelRenewalScheduler
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.jetbrains.teamcity.vault.support.VaultTemplate
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.vault.client.VaultEndpoint
+import org.springframework.vault.support.VaultResponse
+import java.net.URI
+import java.util.*
+import java.util.concurrent.*
+
+/**
+ * Keeps leases of dynamic secrets obtained by running builds.
+ *
+ * Renewable leases are renewed on the shared renewal scheduler while the build is running,
+ * so short lease TTLs can be used even for long builds. When the build finishes renewal is stopped and the leases
+ * are revoked together with the build session token, which is revoked in background by [VaultTokenRevoker],
+ * so build finish doesn't wait for Vault. Leases of a session kept by [VaultDynamicCredentialsPool] live until the pool revokes it.
+ */
+class VaultLeaseRegistry(
+    private val scheduler: HashedWheelRenewalScheduler,
+    private val trustStoreProvider: SSLTrustStoreProvider
+) : DisposableBean {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultLeaseRegistry::class.java.name)
+    }
+
+    private class Lease(val leaseId: String, val path: String, val client: VaultTemplate) {
+        @Volatile
+        var duration: Long = 0
+        @Volatile
+        var renewal: ScheduledFuture<*>? = null
+        @Volatile
+        var released = false
+    }
+
+    private val builds = ConcurrentHashMap<Long, MutableList<Lease>>()
+
+    fun listenerFor(build: AgentRunningBuild, settings: VaultFeatureSettings, sessionManager: LifecycleAwareSessionManager?): VaultLeaseListener? {
+        sessionManager ?: return null
+        val buildId = build.buildId
+        // leases are renewed and revoked with the build session token, which stays valid until the build is finished
+        val client = VaultTemplate(VaultEndpoint.from(URI.create(settings.url)), settings.vaultNamespace, createClientHttpRequestFactory(trustStoreProvider), sessionManager)
+        return object : VaultLeaseListener {
+            override fun onLease(query: VaultQuery.Shorten, response: VaultResponse) {
+                val lease = Lease(response.leaseId, query.path, client)
+                lease.duration = response.leaseDuration
+                builds.computeIfAbsent(buildId) { CopyOnWriteArrayList() } += lease
+                if (response.isRenewable && response.leaseDuration > 0) {
+                    scheduleRenewal(lease)
+                }
+            }
+        }
+    }
+
+    fun getLeaseCount(buildId: Long): Int = builds[buildId]?.size ?: 0
+
+    /**
+     * Stops renewal of the build leases without any Vault requests. Revoking the session token revokes the leases it has created.
+     *
+     * @return number of released leases
+     */
+    fun release(buildId: Long): Int {
+        val leases = builds.remove(buildId) ?: return 0
+        leases.forEach {
+            it.released = true
+            it.renewal?.cancel(false)
+        }
+        return leases.size
+    }
+
+    override fun destroy() {
+        builds.keys.toList().forEach { release(it) }
+    }
+
+    private fun scheduleRenewal(lease: Lease) {
+        // renew when two thirds of the lease are over
+        val delay = TimeUnit.SECONDS.toMillis(lease.duration) * 2 / 3
+        lease.renewal = scheduler.schedule("lease:${lease.leaseId}", Runnable { renew(lease) }, Date(System.currentTimeMillis() + delay))
+    }
+
+    private fun renew(lease: Lease) {
+        if (lease.released) return
+        try {
+            val response = VaultLeases.renew(lease.client, lease.leaseId, lease.duration)
+            val duration = response?.leaseDuration ?: 0
+            if (duration <= 0) {
+                LOG.info("HashiCorp Vault lease for '${lease.path}' can't be renewed anymore")
+                return
+            }
+            lease.duration = duration
+            if (!lease.released) {
+                scheduleRenewal(lease)
+            }
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to renew HashiCorp Vault lease for '${lease.path}'", e)
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.intellij.openapi.diagnostic.Logger
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.createClientHttpRequestFactory
+import org.springframework.http.HttpMethod
+import org.springframework.http.MediaType
+import org.springframework.http.client.ClientHttpRequestFactory
+import org.springframework.vault.support.VaultHttpHeaders
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URI
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Opt-in HashiCorp Vault API proxy for build scripts, listening on the loopback interface.
+ *
+ * Scripts get the proxy address and a random per-build credential instead of the session token: requests carrying the credential
+ * are forwarded to Vault with the session token over the connection pool shared by the agent, and the token is replaced
+ * with the credential in JSON and text responses, other responses (e.g. DER encoded certificates) are passed as is.
+ * GET responses without a lease may be cached for a few seconds.
+ */
+class VaultLoopbackProxy(private val trustStoreProvider: SSLTrustStoreProvider) {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultLoopbackProxy::class.java.name)
+
+        const val ENABLED_PARAM = "teamcity.vault.proxy.enabled"
+        const val CACHE_SECONDS_PARAM = "teamcity.vault.proxy.cacheSeconds"
+        const val THREADS_PARAM = "teamcity.internal.vault.proxy.threads"
+
+        private val FORWARDED_REQUEST_HEADERS = listOf("Content-Type", "Accept", "X-Vault-Wrap-TTL", "X-Vault-Request")
+        private const val PERMISSION_DENIED = "{\"errors\":[\"permission denied\"]}"
+    }
+
+    class Endpoint(val address: String, val credential: String)
+
+    private class CachedResponse(val status: Int, val contentType: String?, val body: ByteArray, val expires: Long)
+
+    private val random = SecureRandom()
+    private val objectMapper = jacksonObjectMapper()
+    private val proxies = ConcurrentHashMap<Long, MutableList<Proxy>>()
+    private val requestFactory: ClientHttpRequestFactory by lazy { createClientHttpRequestFactory(trustStoreProvider) }
+
+    private inner class Proxy(
+        private val settings: VaultFeatureSettings,
+        private val token: () -> String,
+        private val cacheTtl: Long
+    ) {
+        val credential: String = Base64.getUrlEncoder().withoutPadding().encodeToString(ByteArray(32).also { random.nextBytes(it) })
+        private val cache = ConcurrentHashMap<String, CachedResponse>()
+        private val executor: ExecutorService = Executors.newFixedThreadPool(TeamCityProperties.getInteger(THREADS_PARAM, 4), NamedDaemonThreadFactory("HashiCorp Vault loopback proxy"))
+        private val server: HttpServer = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0).also {
+            it.createContext("/") { exchange ->
+                try {
+                    handle(exchange)
+                } catch (e: Exception) {
+                    LOG.debug("Failed to forward request to HashiCorp Vault through the loopback proxy", e)
+                    try {
+                        respond(exchange, 502, "application/json", "{\"errors\":[\"failed to reach HashiCorp Vault\"]}".toByteArray())
+                    } catch (ignored: IOException) {
+                        // the response was already started
+                    }
+                } finally {
+                    exchange.close()
+                }
+            }
+            it.executor = executor
+            it.start()
+        }
+
+        val address: String get() = "http://${server.address.address.hostAddress}:${server.address.port}"
+
+        fun stop() {
+            server.stop(0)
+            executor.shutdownNow()
+        }
+
+        private fun handle(exchange: HttpExchange) {
+            val presented = exchange.requestHeaders.getFirst(VaultHttpHeaders.VAULT_TOKEN).orEmpty()
+            if (!MessageDigest.isEqual(presented.toByteArray(), credential.toByteArray())) {
+                respond(exchange, 403, "application/json", PERMISSION_DENIED.toByteArray())
+                return
+            }
+
+            val method = HttpMethod.resolve(exchange.requestMethod) ?: return respond(exchange, 405, null, ByteArray(0))
+            val pathAndQuery = exchange.requestURI.rawPath + (exchange.requestURI.rawQuery?.let { "?$it" } ?: "")
+            val cacheKey = if (method == HttpMethod.GET && cacheTtl > 0) pathAndQuery else null
+            cacheKey?.let { cache[it] }?.takeIf { it.expires > System.currentTimeMillis() }?.let {
+                respond(exchange, it.status, it.contentType, it.body)
+                return
+            }
+
+            val sessionToken = token()
+            val request = requestFactory.createRequest(URI.create(settings.url.trimEnd('/') + pathAndQuery), method)
+            FORWARDED_REQUEST_HEADERS.forEach { name -> exchange.requestHeaders.getFirst(name)?.let { request.headers.set(name, it) } }
+            request.headers.set(VaultHttpHeaders.VAULT_TOKEN, sessionToken)
+            if (settings.vaultNamespace.isNotBlank()) {
+                request.headers.set(VaultHttpHeaders.VAULT_NAMESPACE, settings.vaultNamespace)
+            }
+            val body = exchange.requestBody.readBytes()
+            if (body.isNotEmpty()) {
+                request.body.write(body)
+            }
+
+            request.execute().use { response ->
+                val status = response.rawStatusCode
+                val mediaType = response.headers.contentType
+                val contentType = mediaType?.toString()
+                val responseBody = response.body.readBytes().let {
+                    // e.g. auth/token/lookup-self returns the token itself
+                    if (isTextual(mediaType)) {
+                        val charset = mediaType!!.charset ?: Charsets.UTF_8
+                        String(it, charset).replace(sessionToken, credential).toByteArray(charset)
+                    } else it
+                }
+                if (cacheKey != null && status == 200 && isCacheable(responseBody)) {
+                    cache[cacheKey] = CachedResponse(status, contentType, responseBody, System.currentTimeMillis() + cacheTtl)
+                }
+                respond(exchange, status, contentType, responseBody)
+            }
+        }
+
+        private fun isTextual(mediaType: MediaType?): Boolean = mediaType != null &&
+                (mediaType.type == "text" || mediaType.subtype == "json" || mediaType.subtype.endsWith("+json"))
+
+        private fun isCacheable(body: ByteArray): Boolean = try {
+            (objectMapper.readValue(body, Map::class.java)["lease_id"] as? String).isNullOrEmpty()
+        } catch (e: Exception) {
+            false
+        }
+
+        private fun respond(exchange: HttpExchange, status: Int, contentType: String?, body: ByteArray) {
+            contentType?.let { exchange.responseHeaders.set("Content-Type", it) }
+            exchange.sendResponseHeaders(status, if (body.isEmpty()) -1 else body.size.toLong())
+            if (body.isNotEmpty()) {
+                exchange.responseBody.write(body)
+            }
+        }
+    }
+
+    /**
+     * Starts a proxy of the build connection if it's enabled for the build
+     *
+     * @param token supplies the current session token, it's renewed during the build
+     * @return address and credential scripts should use instead of the Vault address and the session token, or null if the proxy is disabled
+     * @throws java.io.IOException if the proxy is enabled but can't be started, the session token must not be given to scripts then
+     */
+    fun start(build: AgentRunningBuild, settings: VaultFeatureSettings, token: () -> String): Endpoint? {
+        if (build.sharedConfigParameters[ENABLED_PARAM]?.toBoolean() != true) {
+            return null
+        }
+        val cacheTtl = TimeUnit.SECONDS.toMillis(build.sharedConfigParameters[CACHE_SECONDS_PARAM]?.toLongOrNull() ?: 0)
+        val proxy = Proxy(settings, token, cacheTtl)
+        proxies.computeIfAbsent(build.buildId) { Collections.synchronizedList(ArrayList()) } += proxy
+        build.passwordReplacer.addPassword(proxy.credential)
+        return Endpoint(proxy.address, proxy.credential)
+    }
+
+    fun release(buildId: Long) {
+        proxies.remove(buildId)?.forEach { it.stop() }
+    }
+
+    fun releaseAll() {
+        proxies.keys.toList().forEach { release(it) }
+    }
+}
@@ -3,34 +3,77 @@ package org.jetbrains.teamcity.vault.agent
 import com.intellij.openapi.diagnostic.Logger
 import jetbrains.buildServer.BuildProblemData
 import jetbrains.buildServer.agent.AgentRunningBuild
-import jetbrains.buildServer.agent.Constants
 import jetbrains.buildServer.log.Loggers
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
 import org.jetbrains.teamcity.vault.*
+import org.springframework.vault.support.VaultResponse
 import java.util.*
 
-class VaultParametersResolver(trustStoreProvider: SSLTrustStoreProvider) : VaultResolver(trustStoreProvider) {
+class VaultParametersResolver @JvmOverloads constructor(
+    trustStoreProvider: SSLTrustStoreProvider,
+    private val fallbackStore: VaultSecretsFallbackStore? = null
+) : VaultResolver(trustStoreProvider) {
     companion object {
         val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultParametersResolver::class.java.name)
     }
 
-    fun resolveLegacyReferences(build: AgentRunningBuild, settings: VaultFeatureSettings, token: String, namespace: String, isWriteEngineEnabled: Boolean) {
-        val references = getRelatedParameterReferences(build, namespace)
+    /**
+     * @param selectedReferences references to resolve, all the references of the namespace in the build parameters if null
+     * @param changes collects the resolved values, they are applied to the build right away if null
+     * @param login logs in again, used to refresh stored values in background when [token] is [VaultSecretsFallbackStore.NO_TOKEN]
+     */
+    @JvmOverloads
+    fun resolveLegacyReferences(build: AgentRunningBuild, settings: VaultFeatureSettings, token: String, namespace: String, isWriteEngineEnabled: Boolean,
+                                writeEngineCache: WriteEngineCache? = null, leaseListener: VaultLeaseListener? = null, selectedReferences: Collection<String>? = null,
+                                changes: VaultBuildChanges? = null, login: (() -> String)? = null) {
+        val target = changes ?: VaultBuildChanges(build.buildLogger)
+        doResolveLegacyReferences(build, target, settings, token, namespace, isWriteEngineEnabled, writeEngineCache, leaseListener, selectedReferences, login)
+        if (changes == null) {
+            target.applyTo(build)
+        }
+    }
+
+    /**
+     * @param changes collects the resolved values, they are applied to the build right away if null
+     * @param login logs in again, used to refresh stored values in background when [token] is [VaultSecretsFallbackStore.NO_TOKEN]
+     */
+    @JvmOverloads
+    fun resolveParameters(build: AgentRunningBuild, settings: VaultFeatureSettings, vaultParameters: List<VaultParameter>, token: String, isWriteEngineEnabled: Boolean,
+                          writeEngineCache: WriteEngineCache? = null, leaseListener: VaultLeaseListener? = null, changes: VaultBuildChanges? = null,
+                          login: (() -> String)? = null) {
+        val target = changes ?: VaultBuildChanges(build.buildLogger)
+        doResolveParameters(build, target, settings, vaultParameters, token, isWriteEngineEnabled, writeEngineCache, leaseListener, login)
+        if (changes == null) {
+            target.applyTo(build)
+        }
+    }
+
+    private fun doResolveLegacyReferences(build: AgentRunningBuild, changes: VaultBuildChanges, settings: VaultFeatureSettings, token: String, namespace: String,
+                                          isWriteEngineEnabled: Boolean, writeEngineCache: WriteEngineCache?, leaseListener: VaultLeaseListener?,
+                                          selectedReferences: Collection<String>?, login: (() -> String)?) {
+        val references = selectedReferences?.sorted() ?: getRelatedParameterReferences(build, namespace)
         if (references.isEmpty()) {
             LOG.info("There's nothing to resolve")
             return
         }
-        val logger = build.buildLogger
+        val logger = changes.logger
         logger.message("${references.size} ${"reference".pluralize(references)} to resolve: $references")
 
-        val parameters = references.map { VaultQuery.extract(VaultReferencesUtil.getPath(it, namespace), isWriteEngineEnabled) }
+        val (expanding, parameters) = references
+            .map { VaultQuery.extract(VaultReferencesUtil.getPath(it, namespace), isWriteEngineEnabled) }
+            .partition { it.isExpanding }
+        expanding.forEach {
+            logger.warning("Query '${it.full}' resolves into several values and can only be used as a HashiCorp Vault parameter, the reference is not resolved")
+        }
 
-        val replacements = resolveReplacements(build, settings, parameters, token)
+        val replacements = resolveReplacements(build, changes, settings, parameters, token, writeEngineCache, leaseListener, login)
 
-        replaceParametersReferences(build, replacements.replacements, references, namespace)
+        replaceParametersReferences(changes, replacements.replacements, references, namespace)
     }
 
-    fun resolveParameters(build: AgentRunningBuild, settings: VaultFeatureSettings, vaultParameters: List<VaultParameter>, token: String, isWriteEngineEnabled: Boolean) {
+    private fun doResolveParameters(build: AgentRunningBuild, changes: VaultBuildChanges, settings: VaultFeatureSettings, vaultParameters: List<VaultParameter>,
+                                    token: String, isWriteEngineEnabled: Boolean, writeEngineCache: WriteEngineCache?, leaseListener: VaultLeaseListener?,
+                                    login: (() -> String)?) {
         if (vaultParameters.isEmpty()) {
             return
         }
@@ -38,64 +81,125 @@ class VaultParametersResolver(trustStoreProvider: SSLTrustStoreProvider) : Vault
         val humanReadableParamsDesc = vaultParameters.map { vaultParameter ->
             "'param=${vaultParameter.parameterKey}, vaultQuery=${vaultParameter.vaultParameterSettings.vaultQuery}'"
         }
-        val logger = build.buildLogger
+        val logger = changes.logger
         logger.message("${humanReadableParamsDesc.size} remote ${"parameter".pluralize(humanReadableParamsDesc)} to resolve: $humanReadableParamsDesc")
 
         val keyToQuery = vaultParameters.associate { parameter ->
             parameter.parameterKey to VaultQuery.extract(parameter.vaultParameterSettings.vaultQuery, isWriteEngineEnabled)
         }
 
-        val replacements = resolveReplacements(build, settings, keyToQuery.values, token).replacements
+        val result = resolveReplacements(build, changes, settings, keyToQuery.values, token, writeEngineCache, leaseListener, login)
+        val settingsByKey = vaultParameters.associate { it.parameterKey to it.vaultParameterSettings }
         keyToQuery.forEach { (key, value) ->
-            val replacement = replacements[value.full]
+            val replacement = result.replacements[value.full]
             if (replacement != null) {
-                when {
-                    key.startsWith(Constants.SYSTEM_PREFIX) -> build.addSharedSystemProperty(key.removePrefix(Constants.SYSTEM_PREFIX), replacement)
-                    key.startsWith(Constants.ENV_PREFIX) -> build.addSharedEnvironmentVariable(key.removePrefix(Constants.ENV_PREFIX), replacement)
-                    else -> build.addSharedConfigParameter(key, replacement)
-                }
+                changes.addParameter(key, replacement)
             }
+
+            val expansion = result.expansions[value.full] ?: return@forEach
+            val parameterSettings = settingsByKey.getValue(key)
+            val names = expansion.map { (secretKey, secretValue) ->
+                parameterSettings.getExpandedParameterName(key, secretKey).also { changes.addParameter(it, secretValue) }
+            }
+            logger.message("'$key' expanded into ${names.size} ${"parameter".pluralize(names.size)}: ${names.sorted()}")
+            // the declaring parameter itself holds the names of the created ones
+            changes.addParameter(key, names.joinToString(","))
         }
     }
 
     private fun resolveReplacements(
         build: AgentRunningBuild,
+        changes: VaultBuildChanges,
         settings: VaultFeatureSettings,
         parameters: Collection<VaultQuery>,
-        token: String
+        token: String,
+        writeEngineCache: WriteEngineCache?,
+        leaseListener: VaultLeaseListener?,
+        login: (() -> String)?
     ): ResolvingResult {
         val retrier = VaultAgentRetrier.getAgentRetrier(build, "fetching the data from the vault")
-        val replacements = doFetchAndPrepareReplacements(settings, token, parameters, retrier)
+        val cacheScope = build.sharedConfigParameters["teamcity.project.id"]?.let { VaultPinnedVersionsCache.getScope(it, settings.id) }
+        val refresh = build.sharedConfigParameters[VaultNegativeCache.REFRESH_PARAM]?.toBoolean() == true
+        val fallback = fallbackStore?.forConnection(build, settings)
+        val replacements = if (fallback == null) {
+            doFetchAndPrepareReplacements(settings, token, parameters, retrier, writeEngineCache, leaseListener, cacheScope = cacheScope, refreshCachedFailures = refresh)
+        } else {
+            resolveWithFallback(fallback, settings, parameters, token, leaseListener, login) { leaseTracker ->
+                doFetchAndPrepareReplacements(settings, token, parameters, retrier, writeEngineCache, leaseTracker, cacheScope = cacheScope, refreshCachedFailures = refresh)
+            }
+        }
 
         if (replacements.errors.isNotEmpty()) {
             val ns = if (isDefault(settings.id)) "" else "('${settings.id}' namespace)"
             replacements.errors.values.forEach {
-                build.buildLogger.warning(it)
+                changes.logger.warning(it)
             }
 
             val message = "${"Error".pluralize(replacements.errors.size)} while fetching data from HashiCorp Vault $ns"
-            build.buildLogger.logBuildProblem(BuildProblemData.createBuildProblem("VC_${build.buildTypeId}_${settings.id}_A", "VaultConnection", message))
-            build.stopBuild(message)
+            changes.logger.logBuildProblem(BuildProblemData.createBuildProblem("VC_${build.buildTypeId}_${settings.id}_A", "VaultConnection", message))
+            changes.stopBuild(message)
         }
 
 
         replacements.replacements.values.forEach { build.passwordReplacer.addPassword(it) }
+        replacements.expansions.values.forEach { expansion -> expansion.values.forEach { build.passwordReplacer.addPassword(it) } }
         return replacements
     }
 
-    private fun getRelatedParameterReferences(build: AgentRunningBuild, namespace: String): Collection<String> {
+    /**
+     * Stores static secrets resolved by [fetch] and uses the stored values of the queries which failed because HashiCorp Vault is unavailable.
+     * Stored values used instead of the failed ones are refreshed in background until the build finishes, with [login] if the connection failed to log in
+     */
+    private fun resolveWithFallback(
+        fallback: VaultSecretsFallbackStore.Connection,
+        settings: VaultFeatureSettings,
+        parameters: Collection<VaultQuery>,
+        token: String,
+        leaseListener: VaultLeaseListener?,
+        login: (() -> String)?,
+        fetch: (VaultLeaseListener) -> ResolvingResult
+    ): ResolvingResult {
+        if (token == VaultSecretsFallbackStore.NO_TOKEN) {
+            val applied = fallback.apply(fallback.unavailable(parameters))
+            // only static secrets are stored, a failed login is retried by every refresh attempt
+            val stored = parameters.filter { it.full !in applied.errors }
+            if (login != null && stored.isNotEmpty()) {
+                fallback.scheduleRefresh(stored) { doFetchAndPrepareReplacements(settings, login(), it) }
+            }
+            return applied
+        }
+        val leased = HashSet<String>()
+        val result = fetch(object : VaultLeaseListener {
+            override fun onLease(query: VaultQuery.Shorten, response: VaultResponse) {
+                synchronized(leased) { leased += query.pathWithParams }
+                leaseListener?.onLease(query, response)
+            }
+        })
+        // dynamic secrets are useless once their lease is revoked, only static ones are stored
+        val staticParameters = parameters.filter { it.isWriteEngine != true && it.shorten.pathWithParams !in leased }
+        fallback.store(staticParameters, result)
+
+        val applied = fallback.apply(result)
+        val stale = staticParameters.filter { it.full in result.unavailable && it.full !in applied.errors }
+        if (stale.isNotEmpty()) {
+            fallback.scheduleRefresh(stale) { doFetchAndPrepareReplacements(settings, token, it) }
+        }
+        return applied
+    }
+
+    fun getRelatedParameterReferences(build: AgentRunningBuild, namespace: String): Collection<String> {
         val references = HashSet<String>()
         VaultReferencesUtil.collect(build.sharedConfigParameters, references, namespace)
         VaultReferencesUtil.collect(build.sharedBuildParameters.allParameters, references, namespace)
         return references.sorted()
     }
 
-    private fun replaceParametersReferences(build: AgentRunningBuild, replacements: Map<String, String>, usages: Collection<String>, namespace: String) {
+    private fun replaceParametersReferences(changes: VaultBuildChanges, replacements: Map<String, String>, usages: Collection<String>, namespace: String) {
         // usage may not have leading slash
         for (usage in usages) {
             val replacement = replacements[VaultReferencesUtil.getPath(usage, namespace)]
             if (replacement != null) {
-                build.addSharedConfigParameter(usage, replacement)
+                changes.addConfigParameter(usage, replacement)
             }
         }
     }
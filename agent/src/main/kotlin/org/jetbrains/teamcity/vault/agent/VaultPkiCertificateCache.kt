@@ -0,0 +1,147 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.EventDispatcher
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.VaultQuery
+import org.jetbrains.teamcity.vault.WriteEngineCache
+import org.springframework.vault.support.VaultResponse
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Reuses certificates issued by the PKI secrets engine (`write:<mount>/issue/<role>?...` queries) across builds of the same
+ * project connection on this agent, so every build doesn't cause a new key pair generation on HashiCorp Vault.
+ *
+ * A certificate is reused until the configured fraction of its validity has passed. Issued certificates and private keys
+ * are kept in memory only and are dropped on agent shutdown. Queries which are not PKI issue requests are passed to the delegate cache.
+ */
+class VaultPkiCertificateCache(dispatcher: EventDispatcher<AgentLifeCycleListener>) : AgentLifeCycleAdapter() {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultPkiCertificateCache::class.java.name)
+
+        // build parameters
+        const val ENABLED_PARAM = "teamcity.vault.pki.cache.enabled"
+        const val MAX_VALIDITY_FRACTION_PARAM = "teamcity.vault.pki.cache.maxValidityFraction"
+
+        const val MAX_SIZE_PARAM = "teamcity.internal.vault.pki.cache.maxSize"
+
+        private const val ISSUE_SEGMENT = "issue"
+        private const val CERTIFICATE_KEY = "certificate"
+        private const val EXPIRATION_KEY = "expiration"
+
+        /**
+         * @return true if the path is `<mount>/issue/<role>`, the mount itself may contain several segments
+         */
+        fun isIssuePath(path: String): Boolean {
+            val segments = path.trim('/').split('/')
+            return segments.size >= 3 && segments[segments.size - 2] == ISSUE_SEGMENT && segments.last().isNotEmpty()
+        }
+    }
+
+    data class Statistics(val hits: Long, val misses: Long, val issued: Long, val evicted: Long)
+
+    private data class Key(val projectId: String, val namespace: String, val url: String, val vaultNamespace: String, val pathWithParams: String)
+
+    private class Entry(val response: VaultResponse, val issued: Long, val expires: Long) {
+        fun isReusable(now: Long, maxValidityFraction: Double) =
+            now < expires && now - issued < (expires - issued) * maxValidityFraction
+    }
+
+    // access-ordered, so the least recently used certificate is evicted first
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val issued = AtomicLong()
+    private val evicted = AtomicLong()
+
+    init {
+        dispatcher.addListener(this)
+    }
+
+    /**
+     * @return cache handling PKI issue queries of the build connection and delegating everything else to [delegate],
+     * or [delegate] itself if certificate reuse is not enabled for the build
+     */
+    fun cacheFor(build: AgentRunningBuild, namespace: String, settings: VaultFeatureSettings, delegate: WriteEngineCache?): WriteEngineCache? {
+        val parameters = build.sharedConfigParameters
+        if (parameters[ENABLED_PARAM]?.toBoolean() != true) {
+            return delegate
+        }
+        val projectId = parameters["teamcity.project.id"] ?: return delegate
+        val maxValidityFraction = (parameters[MAX_VALIDITY_FRACTION_PARAM]?.toDoubleOrNull() ?: 0.5).coerceIn(0.0, 1.0)
+
+        return object : WriteEngineCache {
+            override fun acquire(query: VaultQuery.Shorten): VaultResponse? {
+                if (!isIssuePath(query.path)) {
+                    return delegate?.acquire(query)
+                }
+                val now = System.currentTimeMillis()
+                val entry = synchronized(entries) {
+                    val existing = entries[key(query)]
+                    if (existing != null && !existing.isReusable(now, maxValidityFraction)) {
+                        entries.remove(key(query))
+                        evicted.incrementAndGet()
+                        null
+                    } else existing
+                }
+                if (entry == null) {
+                    misses.incrementAndGet()
+                    return null
+                }
+                hits.incrementAndGet()
+                build.buildLogger.message("Reusing certificate issued for '${query.pathWithParams}' " +
+                        "${TimeUnit.MILLISECONDS.toSeconds(now - entry.issued)}s ago, it expires in ${TimeUnit.MILLISECONDS.toSeconds(entry.expires - now)}s")
+                return entry.response
+            }
+
+            override fun offer(query: VaultQuery.Shorten, response: VaultResponse): Boolean {
+                if (!isIssuePath(query.path)) {
+                    return delegate?.offer(query, response) ?: false
+                }
+                issued.incrementAndGet()
+                if (!response.leaseId.isNullOrEmpty()) {
+                    // certificate would be revoked together with its lease at build finish, so it can't be shared
+                    return false
+                }
+                val data = response.data ?: return false
+                val expiration = (data[EXPIRATION_KEY] as? Number)?.toLong() ?: return false
+                if (data[CERTIFICATE_KEY] == null) {
+                    return false
+                }
+                val entry = Entry(response, System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(expiration))
+                synchronized(entries) {
+                    entries[key(query)] = entry
+                    val maxSize = TeamCityProperties.getInteger(MAX_SIZE_PARAM, 100)
+                    val iterator = entries.values.iterator()
+                    while (entries.size > maxSize && iterator.hasNext()) {
+                        iterator.next()
+                        iterator.remove()
+                        evicted.incrementAndGet()
+                    }
+                }
+                // there's no lease to manage
+                return false
+            }
+
+            private fun key(query: VaultQuery.Shorten) = Key(projectId, namespace, settings.url, settings.vaultNamespace, query.pathWithParams)
+        }
+    }
+
+    fun getStatistics() = Statistics(hits.get(), misses.get(), issued.get(), evicted.get())
+
+    fun size(): Int = synchronized(entries) { entries.size }
+
+    override fun agentShutdown() {
+        synchronized(entries) { entries.clear() }
+        val statistics = getStatistics()
+        LOG.info("HashiCorp Vault PKI certificates cache statistics: ${statistics.hits} hits, ${statistics.misses} misses, " +
+                "${statistics.issued} issued, ${statistics.evicted} evicted")
+    }
+}
@@ -0,0 +1,244 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.agent.*
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import org.jetbrains.teamcity.vault.*
+import org.jetbrains.teamcity.vault.VaultResolver.ResolvingResult
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Opt-in store of the last known good values of static secrets, used while HashiCorp Vault can't be reached.
+ *
+ * Values read by builds without a lease (static KV secrets) are kept per project connection in the agent cache directory,
+ * encrypted with AES-GCM by a key derived from a random secret in the agent system directory. When Vault is unavailable
+ * (see [VaultResolver.isVaultUnavailable]), stored values not older than the max age are used instead and reported in the build log.
+ * A build which used stored values keeps retrying the reads in background until it finishes, successful reads replace the stored values.
+ * If the build failed to log in, every retry logs in first, so the store is repaired while the build runs once Vault is back.
+ *
+ * Enabled by the [ENABLED_PARAM] build parameter, set either to `true` for all the connections or to a comma-separated list of connection IDs.
+ */
+class VaultSecretsFallbackStore(
+    dispatcher: EventDispatcher<AgentLifeCycleListener>,
+    private val agentConfiguration: BuildAgentConfiguration
+) : AgentLifeCycleAdapter() {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultSecretsFallbackStore::class.java.name)
+
+        const val ENABLED_PARAM = "teamcity.vault.fallback.enabled"
+        const val MAX_AGE_MINUTES_PARAM = "teamcity.vault.fallback.maxAgeMinutes"
+
+        // hard limit of the max age, builds can't configure a longer one
+        const val MAX_AGE_LIMIT_MINUTES_PARAM = "teamcity.internal.vault.fallback.maxAgeLimitMinutes"
+        const val REFRESH_INTERVAL_SECONDS_PARAM = "teamcity.internal.vault.fallback.refreshIntervalSeconds"
+
+        /**
+         * Token of a connection which failed to log in because HashiCorp Vault is unavailable, only stored values are used with it
+         */
+        const val NO_TOKEN = ""
+
+        private const val DIRECTORY = "hashicorp-vault-fallback"
+        private const val SECRET_FILE = "fallback.key"
+        private const val CIPHER = "AES/GCM/NoPadding"
+        private const val IV_LENGTH = 12
+        private const val TAG_LENGTH_BITS = 128
+        private const val MAX_REFRESH_INTERVAL_SECONDS = 300L
+    }
+
+    private data class Entry(val value: String? = null, val expansion: Map<String, String>? = null, val stored: Long = 0)
+
+    private val objectMapper = jacksonObjectMapper()
+    private val random = SecureRandom()
+    private val executor = Executors.newSingleThreadScheduledExecutor(NamedDaemonThreadFactory("HashiCorp Vault fallback refresh"))
+    private val refreshes = ConcurrentHashMap<Long, MutableList<Future<*>>>()
+
+    init {
+        dispatcher.addListener(this)
+    }
+
+    /**
+     * Stored values of a single connection
+     */
+    inner class Connection(private val build: AgentRunningBuild, private val settings: VaultFeatureSettings, private val file: File, private val key: SecretKeySpec) {
+        private val maxAge: Long = TimeUnit.MINUTES.toMillis(
+            (build.sharedConfigParameters[MAX_AGE_MINUTES_PARAM]?.toLongOrNull() ?: 60)
+                .coerceAtMost(TeamCityProperties.getLong(MAX_AGE_LIMIT_MINUTES_PARAM, TimeUnit.DAYS.toMinutes(1)))
+        )
+
+        /**
+         * Stores the values successfully resolved for the [parameters], they must not hold dynamic secrets
+         */
+        fun store(parameters: Collection<VaultQuery>, result: ResolvingResult) {
+            val now = System.currentTimeMillis()
+            val resolved = parameters.mapNotNull { parameter ->
+                val entry = result.replacements[parameter.full]?.let { Entry(value = it, stored = now) }
+                    ?: result.expansions[parameter.full]?.let { Entry(expansion = it, stored = now) }
+                entry?.let { parameter.full to it }
+            }
+            if (resolved.isEmpty()) {
+                return
+            }
+            synchronized(this@VaultSecretsFallbackStore) {
+                val entries = load()
+                entries.putAll(resolved)
+                save(entries.filterValues { now - it.stored <= maxAge })
+            }
+        }
+
+        /**
+         * @return the result with stored values used for the queries which failed because HashiCorp Vault is unavailable
+         */
+        fun apply(result: ResolvingResult): ResolvingResult {
+            if (result.unavailable.isEmpty()) {
+                return result
+            }
+            val entries = synchronized(this@VaultSecretsFallbackStore) { load() }
+            val now = System.currentTimeMillis()
+            val replacements = HashMap(result.replacements)
+            val expansions = HashMap(result.expansions)
+            val errors = HashMap(result.errors)
+            for (full in result.unavailable) {
+                val entry = entries[full]?.takeIf { now - it.stored <= maxAge } ?: continue
+                if (entry.value != null) replacements[full] = entry.value else expansions[full] = entry.expansion ?: continue
+                errors.remove(full)
+                val age = TimeUnit.MILLISECONDS.toMinutes(now - entry.stored)
+                build.buildLogger.warning("HashiCorp Vault is unavailable, using the value of '$full' stored $age ${"minute".pluralize(age.toInt())} ago")
+            }
+            return ResolvingResult(replacements, errors, expansions, result.unavailable.filterTo(HashSet()) { it in errors })
+        }
+
+        /**
+         * @return result of the [parameters] when the connection failed to log in, all of them are unavailable
+         */
+        fun unavailable(parameters: Collection<VaultQuery>): ResolvingResult {
+            val errors = parameters.associate { it.full to "Failed to fetch data for path ${it.full}: HashiCorp Vault is unavailable" }
+            return ResolvingResult(emptyMap(), errors, emptyMap(), errors.keys)
+        }
+
+        /**
+         * Retries resolving the [parameters] in background until it succeeds or the build finishes, the resolved values are stored
+         */
+        fun scheduleRefresh(parameters: Collection<VaultQuery>, resolve: (Collection<VaultQuery>) -> ResolvingResult) {
+            val interval = TeamCityProperties.getLong(REFRESH_INTERVAL_SECONDS_PARAM, 10)
+            schedule(parameters, resolve, interval)
+        }
+
+        private fun schedule(parameters: Collection<VaultQuery>, resolve: (Collection<VaultQuery>) -> ResolvingResult, delay: Long) {
+            // registered before the task may run, a retry is only scheduled while the build has the entry
+            val futures = refreshes.computeIfAbsent(build.buildId) { ArrayList() }
+            val future = executor.schedule({
+                val unresolved = try {
+                    val result = resolve(parameters)
+                    store(parameters, result)
+                    parameters.filter { it.full in result.errors }
+                } catch (e: Exception) {
+                    LOG.debug("Failed to refresh stored HashiCorp Vault values of connection '${settings.id}'", e)
+                    parameters
+                }
+                if (unresolved.isNotEmpty() && refreshes.containsKey(build.buildId)) {
+                    schedule(unresolved, resolve, (delay * 2).coerceAtMost(MAX_REFRESH_INTERVAL_SECONDS))
+                } else if (unresolved.isEmpty()) {
+                    LOG.info("Stored HashiCorp Vault values of connection '${settings.id}' were refreshed")
+                }
+            }, delay, TimeUnit.SECONDS)
+            synchronized(futures) { futures.add(future) }
+        }
+
+        private fun load(): MutableMap<String, Entry> {
+            if (!file.isFile) {
+                return HashMap()
+            }
+            return try {
+                val content = file.readBytes()
+                val cipher = Cipher.getInstance(CIPHER)
+                cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(TAG_LENGTH_BITS, content, 0, IV_LENGTH))
+                cipher.updateAAD(file.name.toByteArray())
+                objectMapper.readValue(cipher.doFinal(content, IV_LENGTH, content.size - IV_LENGTH))
+            } catch (e: Exception) {
+                LOG.warnAndDebugDetails("Failed to read stored HashiCorp Vault values of connection '${settings.id}', they are discarded", e)
+                file.delete()
+                HashMap()
+            }
+        }
+
+        private fun save(entries: Map<String, Entry>) {
+            val iv = ByteArray(IV_LENGTH).also { random.nextBytes(it) }
+            val cipher = Cipher.getInstance(CIPHER)
+            cipher.init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(TAG_LENGTH_BITS, iv))
+            cipher.updateAAD(file.name.toByteArray())
+            val temp = File(file.parentFile, file.name + ".tmp")
+            writeOwnerOnly(temp, iv + cipher.doFinal(objectMapper.writeValueAsBytes(entries)))
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        }
+    }
+
+    /**
+     * @return stored values of the connection, or null if the fallback is not enabled for it
+     */
+    fun forConnection(build: AgentRunningBuild, settings: VaultFeatureSettings): Connection? {
+        val enabled = build.sharedConfigParameters[ENABLED_PARAM]?.trim() ?: return null
+        if (!enabled.equals("true", ignoreCase = true) && settings.id !in enabled.split(',').map { it.trim() }) {
+            return null
+        }
+        val projectId = build.sharedConfigParameters["teamcity.project.id"] ?: return null
+        val name = sha256(VaultPinnedVersionsCache.getScope(projectId, settings.id) + "#" + settings.url + "#" + settings.vaultNamespace)
+        return try {
+            val secret = getSecret()
+            val mac = Mac.getInstance("HmacSHA256")
+            mac.init(SecretKeySpec(secret, "HmacSHA256"))
+            val key = SecretKeySpec(mac.doFinal(name.toByteArray()), "AES")
+            Connection(build, settings, File(agentConfiguration.getCacheDirectory(DIRECTORY), name), key)
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to initialize HashiCorp Vault fallback store", e)
+            null
+        }
+    }
+
+    /**
+     * Random secret the store keys are derived from, it never leaves the agent
+     */
+    @Synchronized
+    private fun getSecret(): ByteArray {
+        val file = File(File(agentConfiguration.systemDirectory, DIRECTORY), SECRET_FILE)
+        if (file.isFile) {
+            return file.readBytes()
+        }
+        file.parentFile.mkdirs()
+        val secret = ByteArray(32).also { random.nextBytes(it) }
+        writeOwnerOnly(file, secret)
+        return secret
+    }
+
+    private fun sha256(value: String): String =
+        MessageDigest.getInstance("SHA-256").digest(value.toByteArray()).joinToString("") { "%02x".format(it) }
+
+    override fun beforeBuildFinish(build: AgentRunningBuild, buildStatus: BuildFinishedStatus) {
+        // refresh uses the build session, which is revoked when the build finishes
+        refreshes.remove(build.buildId)?.let { futures -> synchronized(futures) { futures.forEach { it.cancel(true) } } }
+    }
+
+    override fun buildFinished(build: AgentRunningBuild, buildStatus: BuildFinishedStatus) {
+        refreshes.remove(build.buildId)?.let { futures -> synchronized(futures) { futures.forEach { it.cancel(true) } } }
+    }
+
+    override fun agentShutdown() {
+        executor.shutdownNow()
+    }
+}
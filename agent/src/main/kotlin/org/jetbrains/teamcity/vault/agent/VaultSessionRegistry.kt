@@ -0,0 +1,98 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.pluralize
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps all HashiCorp Vault session managers opened by running builds, one per project connection (namespace).
+ *
+ * Sessions of a build are revoked together at build finish. Sessions of builds which were not released
+ * for too long (e.g. build finish event was missed) are considered stragglers and revoked as well.
+ */
+class VaultSessionRegistry(
+    private val tokenRevoker: VaultTokenRevoker,
+    private val credentialsPool: VaultDynamicCredentialsPool
+) {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultSessionRegistry::class.java.name)
+
+        const val MAX_SESSION_AGE_PARAM = "teamcity.internal.vault.sessions.maxAgeMinutes"
+    }
+
+    private val builds = ConcurrentHashMap<Long, BuildSessions>()
+
+    /**
+     * @param settings connection settings of the session, see [getSettings]
+     */
+    @JvmOverloads
+    fun register(buildId: Long, namespace: String, sessionManager: LifecycleAwareSessionManager, settings: VaultFeatureSettings? = null) {
+        val buildSessions = builds.computeIfAbsent(buildId) { BuildSessions(System.currentTimeMillis()) }
+        if (settings != null) {
+            buildSessions.settings[namespace] = settings
+        }
+        val previous = buildSessions.sessions.put(namespace, sessionManager)
+        if (previous != null && previous !== sessionManager) {
+            revoke(previous, buildId, namespace)
+        }
+    }
+
+    fun getSession(buildId: Long, namespace: String): LifecycleAwareSessionManager? = builds[buildId]?.sessions?.get(namespace)
+
+    fun getSettings(buildId: Long, namespace: String): VaultFeatureSettings? = builds[buildId]?.settings?.get(namespace)
+
+    fun getSessions(buildId: Long): Map<String, LifecycleAwareSessionManager> = builds[buildId]?.sessions?.toMap() ?: emptyMap()
+
+    /**
+     * Stops renewal of all the build sessions and schedules revocation of their tokens.
+     *
+     * @return number of released sessions
+     */
+    fun release(buildId: Long): Int {
+        val buildSessions = builds.remove(buildId) ?: return 0
+        buildSessions.sessions.forEach { (namespace, sessionManager) ->
+            revoke(sessionManager, buildId, namespace)
+        }
+        return buildSessions.sessions.size
+    }
+
+    /**
+     * Releases sessions of the builds which are not running anymore and were not released for too long
+     *
+     * @param isRunning tells whether the build is still running, sessions of running builds are kept however old they are
+     */
+    fun releaseStale(isRunning: (Long) -> Boolean) {
+        val maxAge = TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong(MAX_SESSION_AGE_PARAM, TimeUnit.DAYS.toMinutes(1)))
+        val now = System.currentTimeMillis()
+        builds.filter { (buildId, sessions) -> now - sessions.registered > maxAge && !isRunning(buildId) }.keys.forEach { buildId ->
+            val released = release(buildId)
+            if (released > 0) {
+                LOG.warn("Released $released HashiCorp Vault ${"session".pluralize(released)} of build $buildId which was not finished properly")
+            }
+        }
+    }
+
+    fun releaseAll() {
+        builds.keys.toList().forEach { release(it) }
+    }
+
+    private fun revoke(sessionManager: LifecycleAwareSessionManager, buildId: Long, namespace: String) {
+        // revoking the token would revoke pooled leases too, the pool revokes it later
+        if (!credentialsPool.adopt(sessionManager)) {
+            tokenRevoker.revoke(sessionManager, describe(buildId, namespace))
+        }
+    }
+
+    private fun describe(buildId: Long, namespace: String) =
+        "build $buildId" + if (namespace.isNotEmpty()) " (namespace '$namespace')" else ""
+
+    private class BuildSessions(val registered: Long) {
+        val sessions = ConcurrentHashMap<String, LifecycleAwareSessionManager>()
+        val settings = ConcurrentHashMap<String, VaultFeatureSettings>()
+    }
+}
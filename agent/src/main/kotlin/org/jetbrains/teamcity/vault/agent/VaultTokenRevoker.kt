@@ -0,0 +1,146 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.jetbrains.teamcity.vault.support.VaultResponses
+import org.springframework.vault.support.VaultToken
+import org.springframework.web.client.HttpStatusCodeException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Revokes HashiCorp Vault session tokens in background, so build finish is not blocked by slow or unavailable Vault.
+ *
+ * Revocations are put into a bounded queue. Failed attempts are collected and retried together in batches
+ * with exponential backoff and jitter. Remaining revocations are flushed on agent shutdown.
+ */
+class VaultTokenRevoker(dispatcher: EventDispatcher<AgentLifeCycleListener>) : AgentLifeCycleAdapter() {
+    companion object {
+        val LOG = Logger.getInstance(Loggers.AGENT_CATEGORY + "." + VaultTokenRevoker::class.java.name)
+
+        const val THREADS_PARAM = "teamcity.internal.vault.revocation.threads"
+        const val QUEUE_CAPACITY_PARAM = "teamcity.internal.vault.revocation.queueCapacity"
+        const val MAX_ATTEMPTS_PARAM = "teamcity.internal.vault.revocation.maxAttempts"
+        const val RETRY_DELAY_PARAM = "teamcity.internal.vault.revocation.retryDelayMillis"
+        const val SHUTDOWN_TIMEOUT_PARAM = "teamcity.internal.vault.revocation.shutdownTimeoutSeconds"
+    }
+
+    private val executor = ScheduledThreadPoolExecutor(
+        TeamCityProperties.getInteger(THREADS_PARAM, 4),
+        NamedDaemonThreadFactory("HashiCorp Vault token revocation")
+    ).apply {
+        // pending retries are flushed right away on shutdown instead of waiting for their delay
+        executeExistingDelayedTasksAfterShutdownPolicy = false
+    }
+    private val queued = AtomicInteger()
+    private val retries = ConcurrentLinkedQueue<Revocation>()
+    private val retryScheduled = AtomicBoolean(false)
+    private val retryRound = AtomicInteger()
+    @Volatile
+    private var isShutdown = false
+
+    init {
+        dispatcher.addListener(this)
+    }
+
+    /**
+     * Stops token renewal right away and schedules the token revocation.
+     * If the queue is full, the revocation is performed in the caller thread.
+     */
+    fun revoke(sessionManager: LifecycleAwareSessionManager, description: String) {
+        val token = sessionManager.detach() ?: return
+        val revocation = Revocation(sessionManager, token, description)
+
+        if (isShutdown || queued.get() >= TeamCityProperties.getInteger(QUEUE_CAPACITY_PARAM, 256)) {
+            LOG.info("HashiCorp Vault token revocation queue is not available, revoking token for $description synchronously")
+            attempt(revocation, allowRetry = false)
+            return
+        }
+
+        queued.incrementAndGet()
+        try {
+            executor.execute {
+                queued.decrementAndGet()
+                attempt(revocation, allowRetry = true)
+            }
+        } catch (e: RejectedExecutionException) {
+            queued.decrementAndGet()
+            attempt(revocation, allowRetry = false)
+        }
+    }
+
+    /**
+     * @return number of revocations waiting either for the first attempt or for a retry
+     */
+    fun getPendingCount(): Int = queued.get() + retries.size
+
+    override fun agentShutdown() {
+        isShutdown = true
+        val timeout = TeamCityProperties.getLong(SHUTDOWN_TIMEOUT_PARAM, 10)
+        executor.shutdown()
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.SECONDS)) {
+                LOG.warn("Not all HashiCorp Vault tokens were revoked within $timeout seconds on agent shutdown")
+                executor.shutdownNow()
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+
+        // Last attempt for the tokens which are waiting for retry
+        generateSequence { retries.poll() }.forEach { attempt(it, allowRetry = false) }
+    }
+
+    private fun attempt(revocation: Revocation, allowRetry: Boolean) {
+        revocation.attempts++
+        try {
+            revocation.sessionManager.revokeOnce(revocation.token)
+            LOG.debug("Revoked HashiCorp Vault token for ${revocation.description}")
+        } catch (e: RuntimeException) {
+            val maxAttempts = TeamCityProperties.getInteger(MAX_ATTEMPTS_PARAM, 4)
+            if (allowRetry && !isShutdown && revocation.attempts < maxAttempts) {
+                LOG.debug("Attempt ${revocation.attempts} to revoke HashiCorp Vault token for ${revocation.description} failed, will retry: ${e.message}")
+                retries.add(revocation)
+                scheduleRetries()
+                return
+            }
+            val error = if (e is HttpStatusCodeException) VaultResponses.getError(e) else e.message
+            LOG.warnAndDebugDetails("Cannot revoke HashiCorp Vault token for ${revocation.description} after ${revocation.attempts} attempts: $error", e)
+        }
+    }
+
+    private fun scheduleRetries() {
+        if (!retryScheduled.compareAndSet(false, true)) return
+        val baseDelay = TeamCityProperties.getLong(RETRY_DELAY_PARAM, 1000)
+        val round = retryRound.getAndIncrement().coerceAtMost(6)
+        val delay = (baseDelay shl round) + ThreadLocalRandom.current().nextLong(baseDelay + 1)
+        try {
+            executor.schedule({
+                retryScheduled.set(false)
+                val batch = generateSequence { retries.poll() }.toList()
+                batch.forEach { attempt(it, allowRetry = true) }
+                if (retries.isEmpty()) {
+                    retryRound.set(0)
+                }
+            }, delay, TimeUnit.MILLISECONDS)
+        } catch (e: RejectedExecutionException) {
+            retryScheduled.set(false)
+        }
+    }
+
+    private class Revocation(val sessionManager: LifecycleAwareSessionManager, val token: VaultToken, val description: String) {
+        @Volatile
+        var attempts = 0
+    }
+}
@@ -0,0 +1,59 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.agent.BuildProgressLogger
+import org.mockito.Mockito
+import org.testng.annotations.Test
+
+class VaultBuildChangesTest {
+    @Test
+    fun testChangesAppliedLater() {
+        val build = Mockito.mock(AgentRunningBuild::class.java)
+        val changes = VaultBuildChanges(Mockito.mock(BuildProgressLogger::class.java))
+
+        changes.addParameter("secret", "value")
+        changes.addParameter("env.SECRET", "value")
+        changes.addParameter("system.secret", "value")
+        changes.addConfigParameter("env.reference", "value")
+        changes.addEnvironmentVariable("VAULT_ADDR", "http://localhost:8200")
+        changes.stopBuild("first")
+        changes.stopBuild("second")
+        Mockito.verifyNoInteractions(build)
+
+        changes.applyTo(build)
+        Mockito.verify(build).addSharedConfigParameter("secret", "value")
+        Mockito.verify(build).addSharedConfigParameter("env.reference", "value")
+        Mockito.verify(build).addSharedEnvironmentVariable("SECRET", "value")
+        Mockito.verify(build).addSharedEnvironmentVariable("VAULT_ADDR", "http://localhost:8200")
+        Mockito.verify(build).addSharedSystemProperty("secret", "value")
+        Mockito.verify(build).stopBuild("first")
+        Mockito.verifyNoMoreInteractions(build)
+    }
+
+    @Test
+    fun testChangesAppliedOnce() {
+        val build = Mockito.mock(AgentRunningBuild::class.java)
+        val changes = VaultBuildChanges(Mockito.mock(BuildProgressLogger::class.java))
+        changes.addParameter("secret", "value")
+        changes.applyTo(build)
+        Mockito.clearInvocations(build)
+
+        changes.applyTo(build)
+
+        Mockito.verifyNoInteractions(build)
+    }
+
+    @Test
+    fun testLaterValueWins() {
+        val build = Mockito.mock(AgentRunningBuild::class.java)
+        val changes = VaultBuildChanges(Mockito.mock(BuildProgressLogger::class.java))
+
+        // an expanded parameter holds the names of the created ones
+        changes.addParameter("secret", "value")
+        changes.addParameter("secret", "secret.user,secret.password")
+        changes.applyTo(build)
+
+        Mockito.verify(build).addSharedConfigParameter("secret", "secret.user,secret.password")
+        Mockito.verifyNoMoreInteractions(build)
+    }
+}
@@ -0,0 +1,159 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.sun.net.httpserver.HttpServer
+import jetbrains.buildServer.BaseTestCase
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.agent.BuildProgressLogger
+import jetbrains.buildServer.util.EventDispatcher
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.VaultQuery
+import org.jetbrains.teamcity.vault.WriteEngineCache
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.mockito.Mockito
+import org.springframework.vault.support.VaultResponse
+import org.springframework.vault.support.VaultToken
+import org.testng.Assert.*
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.util.concurrent.CopyOnWriteArrayList
+
+class VaultDynamicCredentialsPoolTest : BaseTestCase() {
+    private lateinit var vault: HttpServer
+    private lateinit var tokenRevoker: VaultTokenRevoker
+    private lateinit var pool: VaultDynamicCredentialsPool
+    private val revokedLeases = CopyOnWriteArrayList<String>()
+
+    @BeforeMethod
+    override fun setUp() {
+        super.setUp()
+        revokedLeases.clear()
+        vault = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        vault.createContext("/v1/sys/leases/revoke") { exchange ->
+            revokedLeases += jacksonObjectMapper().readValue(exchange.requestBody, Map::class.java)["lease_id"] as String
+            exchange.sendResponseHeaders(204, -1)
+            exchange.close()
+        }
+        vault.start()
+        tokenRevoker = Mockito.mock(VaultTokenRevoker::class.java)
+        pool = VaultDynamicCredentialsPool(EventDispatcher.create(AgentLifeCycleListener::class.java), tokenRevoker, EmtpySSLTrustStoreProvider())
+    }
+
+    @AfterMethod
+    override fun tearDown() {
+        pool.agentShutdown()
+        vault.stop(0)
+        super.tearDown()
+    }
+
+    @Test
+    fun testLeaseReusedUntilMinRemainingTtl() {
+        val session = createSessionManager()
+        val first = cacheFor(1, session)
+        assertTrue(first.offer(DATABASE, createLease("database/creds/app/1", 600)))
+        assertTrue(first.offer(AWS, createLease("aws/creds/app/1", 200)))
+
+        val second = cacheFor(2, createSessionManager())
+        assertEquals(second.acquire(DATABASE)?.leaseId, "database/creds/app/1")
+        // less than the 300s requested by the build are left, a fresh lease is obtained
+        assertNull(second.acquire(AWS))
+        assertTrue(revokedLeases.isEmpty())
+    }
+
+    @Test
+    fun testHeldEntryNotRevokedOnExpiry() {
+        val cache = cacheFor(1, createSessionManager())
+        cache.offer(DATABASE, createLease("database/creds/app/1", 200))
+
+        // another build finishes, the entry is not reusable anymore, but the lease is still used by the first build
+        pool.release(2)
+        assertTrue(revokedLeases.isEmpty())
+        assertNull(cacheFor(2, createSessionManager()).acquire(DATABASE))
+
+        pool.release(1)
+        assertEquals(revokedLeases, listOf("database/creds/app/1"))
+        assertEquals(pool.size(), 0)
+    }
+
+    @Test
+    fun testHeldEntryNotRevokedOnOverflow() {
+        setInternalProperty(VaultDynamicCredentialsPool.MAX_SIZE_PARAM, "1")
+        cacheFor(1, createSessionManager()).offer(DATABASE, createLease("database/creds/app/1", 600))
+        cacheFor(2, createSessionManager()).offer(AWS, createLease("aws/creds/app/1", 600))
+
+        assertTrue(revokedLeases.isEmpty())
+        assertEquals(pool.size(), 2)
+
+        pool.release(1)
+        assertEquals(revokedLeases, listOf("database/creds/app/1"))
+        assertEquals(cacheFor(3, createSessionManager()).acquire(AWS)?.leaseId, "aws/creds/app/1")
+    }
+
+    @Test
+    fun testAdoptedSessionRevokedAfterLastLease() {
+        setInternalProperty(VaultDynamicCredentialsPool.MAX_SIZE_PARAM, "2")
+        val owner = createSessionManager()
+        val first = cacheFor(1, owner)
+        first.offer(DATABASE, createLease("database/creds/app/1", 600))
+        first.offer(AWS, createLease("aws/creds/app/1", 600))
+        assertTrue(pool.adopt(owner))
+        assertFalse(pool.adopt(createSessionManager()))
+        pool.release(1)
+
+        val second = cacheFor(2, createSessionManager())
+        second.offer(VaultQuery.extract("database/creds/other!/password").shorten, createLease("database/creds/other/1", 600))
+        assertEquals(revokedLeases, listOf("database/creds/app/1"))
+        Mockito.verifyNoInteractions(tokenRevoker)
+
+        second.offer(VaultQuery.extract("aws/creds/other!/access_key").shorten, createLease("aws/creds/other/1", 600))
+        assertEquals(revokedLeases, listOf("database/creds/app/1", "aws/creds/app/1"))
+        Mockito.verify(tokenRevoker).revoke(Mockito.same(owner), Mockito.anyString())
+        Mockito.verifyNoMoreInteractions(tokenRevoker)
+    }
+
+    @Test
+    fun testNonLeasedResponsesNotPooled() {
+        val cache = cacheFor(1, createSessionManager())
+
+        assertFalse(cache.offer(DATABASE, VaultResponse()))
+        assertFalse(cache.offer(AWS, createLease("aws/creds/app/1", 0)))
+
+        assertEquals(pool.size(), 0)
+        assertNull(cacheFor(2, createSessionManager()).acquire(DATABASE))
+    }
+
+    private fun cacheFor(buildId: Long, sessionManager: LifecycleAwareSessionManager): WriteEngineCache {
+        val build = Mockito.mock(AgentRunningBuild::class.java)
+        Mockito.`when`(build.buildId).thenReturn(buildId)
+        Mockito.`when`(build.buildLogger).thenReturn(Mockito.mock(BuildProgressLogger::class.java))
+        Mockito.`when`(build.sharedConfigParameters).thenReturn(mapOf(
+            VaultDynamicCredentialsPool.ENABLED_PARAM to "true",
+            VaultDynamicCredentialsPool.MIN_REMAINING_TTL_PARAM to "300",
+            "teamcity.project.id" to "project"
+        ))
+        return pool.cacheFor(build, "namespace", settings(), sessionManager)!!
+    }
+
+    private fun createSessionManager(): LifecycleAwareSessionManager {
+        val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        Mockito.`when`(sessionManager.sessionToken).thenReturn(VaultToken.of("token"))
+        return sessionManager
+    }
+
+    private fun createLease(leaseId: String, duration: Long) = VaultResponse().also {
+        it.leaseId = leaseId
+        it.leaseDuration = duration
+        it.isRenewable = true
+    }
+
+    private fun settings() = VaultFeatureSettings("http://${vault.address.address.hostAddress}:${vault.address.port}", "")
+
+    companion object {
+        private val DATABASE = VaultQuery.extract("write:database/creds/app!/password", true).shorten
+        private val AWS = VaultQuery.extract("write:aws/creds/app!/access_key", true).shorten
+    }
+}
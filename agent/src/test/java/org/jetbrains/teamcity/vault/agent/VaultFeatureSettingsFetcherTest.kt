@@ -2,11 +2,13 @@ package org.jetbrains.teamcity.vault.agent
 
 import jetbrains.buildServer.AgentServerFunctionalTestCase
 import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.agent.BuildProgressLogger
 import jetbrains.buildServer.agent.impl.BaseAgentSpringTestCase
 import jetbrains.buildServer.util.HTTPRequestBuilder
 import jetbrains.buildServer.util.HTTPRequestBuilder.ApacheClient43RequestHandler
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
 import org.mockito.Mockito
+import org.springframework.http.HttpHeaders
 import org.testng.annotations.Test
 
 import org.testng.Assert.*
@@ -30,4 +32,52 @@ class VaultFeatureSettingsFetcherTest : BaseAgentSpringTestCase() {
     fun testGetVaultFeatureSettings() {
         vaultFeatureSettingsFetcher.getVaultFeatureSettings("namespace", build)
     }
+
+    @Test
+    fun testRequestRetriedAfterServiceUnavailable() {
+        mockRetryParameters(maxWaitSeconds = 10)
+        val responses = ArrayDeque(listOf(response(503, retryAfter = "0"), response(503, retryAfter = "0"), response(200)))
+
+        val result = vaultFeatureSettingsFetcher.requestHonoringRetryAfter(build) { responses.removeFirst() }
+
+        assertEquals(result?.statusCode, 200)
+        assertTrue(responses.isEmpty())
+    }
+
+    @Test
+    fun testRequestNotRetriedBeyondMaxWait() {
+        mockRetryParameters(maxWaitSeconds = 10)
+        var requests = 0
+
+        val result = vaultFeatureSettingsFetcher.requestHonoringRetryAfter(build) { requests++; response(503, retryAfter = "30") }
+
+        assertEquals(result?.statusCode, 503)
+        assertEquals(requests, 1)
+    }
+
+    @Test
+    fun testRequestNotRetriedWithoutRetryAfter() {
+        mockRetryParameters(maxWaitSeconds = 10)
+        var requests = 0
+
+        val result = vaultFeatureSettingsFetcher.requestHonoringRetryAfter(build) { requests++; response(503) }
+
+        assertEquals(result?.statusCode, 503)
+        assertEquals(requests, 1)
+    }
+
+    private fun mockRetryParameters(maxWaitSeconds: Long) {
+        Mockito.`when`(build.sharedConfigParameters).thenReturn(mapOf(
+            VaultFeatureSettingsFetcher.RETRY_AFTER_MAX_WAIT_SECONDS_PARAM to maxWaitSeconds.toString(),
+            VaultFeatureSettingsFetcher.RETRY_AFTER_JITTER_PARAM to "0"
+        ))
+        Mockito.`when`(build.buildLogger).thenReturn(Mockito.mock(BuildProgressLogger::class.java))
+    }
+
+    private fun response(status: Int, retryAfter: String? = null): HTTPRequestBuilder.Response {
+        val response = Mockito.mock(HTTPRequestBuilder.Response::class.java)
+        Mockito.`when`(response.statusCode).thenReturn(status)
+        Mockito.`when`(response.getHeader(HttpHeaders.RETRY_AFTER)).thenReturn(retryAfter)
+        return response
+    }
 }
\ No newline at end of file
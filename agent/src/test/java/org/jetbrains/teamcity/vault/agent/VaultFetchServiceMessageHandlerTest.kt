@@ -0,0 +1,84 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.BuildProblemData
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.agent.BuildFinishedStatus
+import jetbrains.buildServer.agent.BuildProgressLogger
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessagesRegister
+import jetbrains.buildServer.util.EventDispatcher
+import org.jetbrains.teamcity.vault.support.HashedWheelRenewalScheduler
+import org.mockito.Mockito
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class VaultFetchServiceMessageHandlerTest {
+    private lateinit var handler: VaultFetchServiceMessageHandler
+    private lateinit var register: ServiceMessagesRegister
+    private lateinit var build: AgentRunningBuild
+    private lateinit var logger: BuildProgressLogger
+    private val parameters = HashMap<String, String>()
+
+    @BeforeMethod
+    fun setUp() {
+        val dispatcher = EventDispatcher.create(AgentLifeCycleListener::class.java)
+        val trustStoreProvider = EmtpySSLTrustStoreProvider()
+        val tokenRevoker = VaultTokenRevoker(dispatcher)
+        val sessionRegistry = VaultSessionRegistry(tokenRevoker, VaultDynamicCredentialsPool(dispatcher, tokenRevoker, trustStoreProvider))
+        val leaseRegistry = VaultLeaseRegistry(Mockito.mock(HashedWheelRenewalScheduler::class.java), trustStoreProvider)
+        register = Mockito.mock(ServiceMessagesRegister::class.java)
+        handler = VaultFetchServiceMessageHandler(dispatcher, register, VaultParametersResolver(trustStoreProvider), sessionRegistry, leaseRegistry)
+
+        logger = Mockito.mock(BuildProgressLogger::class.java)
+        build = Mockito.mock(AgentRunningBuild::class.java)
+        Mockito.`when`(build.buildId).thenReturn(1L)
+        Mockito.`when`(build.buildTypeId).thenReturn("bt1")
+        Mockito.`when`(build.buildLogger).thenReturn(logger)
+        Mockito.`when`(build.sharedConfigParameters).thenReturn(parameters)
+        parameters.clear()
+    }
+
+    @Test
+    fun testHandlerRegistered() {
+        Mockito.verify(register).registerHandler(VaultFetchServiceMessageHandler.MESSAGE_NAME, handler)
+    }
+
+    @Test
+    fun testMessageOutsideOfBuildIgnored() {
+        handler.handle(ServiceMessage.parse("##teamcity[vaultFetch query='secret/app!/password' parameter='env.PASSWORD']")!!)
+
+        Mockito.verifyNoInteractions(build)
+    }
+
+    @Test
+    fun testMessageWithoutTargetRejected() {
+        handler.buildStarted(build)
+
+        handler.handle(ServiceMessage.parse("##teamcity[vaultFetch query='secret/app!/password']")!!)
+
+        Mockito.verify(logger).warning(Mockito.contains("requires"))
+        Mockito.verify(build, Mockito.never()).addSharedConfigParameter(Mockito.anyString(), Mockito.anyString())
+    }
+
+    @Test
+    fun testMessageWithoutSessionFailsBuild() {
+        handler.buildStarted(build)
+
+        handler.handle(ServiceMessage.parse("##teamcity[vaultFetch query='secret/app!/password' namespace='other' parameter='env.PASSWORD']")!!)
+
+        Mockito.verify(logger).logBuildProblem(Mockito.any(BuildProblemData::class.java))
+        Mockito.verify(build, Mockito.never()).addSharedEnvironmentVariable(Mockito.anyString(), Mockito.anyString())
+    }
+
+    @Test
+    fun testMessageAfterBuildFinishIgnored() {
+        handler.buildStarted(build)
+        handler.buildFinished(build, BuildFinishedStatus.FINISHED_SUCCESS)
+        Mockito.clearInvocations(build)
+
+        handler.handle(ServiceMessage.parse("##teamcity[vaultFetch query='secret/app!/password' parameter='env.PASSWORD']")!!)
+
+        Mockito.verifyNoInteractions(build)
+    }
+}
@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.agent.AgentRunningBuild
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.VaultQuery
+import org.jetbrains.teamcity.vault.support.HashedWheelRenewalScheduler
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.mockito.Mockito
+import org.springframework.vault.support.VaultResponse
+import org.testng.Assert.*
+import org.testng.annotations.Test
+import java.util.*
+import java.util.concurrent.ScheduledFuture
+
+class VaultLeaseRegistryTest {
+
+    @Test
+    fun testReleaseStopsRenewalWithoutVaultRequests() {
+        val renewal = Mockito.mock(ScheduledFuture::class.java)
+        val scheduler = Mockito.mock(HashedWheelRenewalScheduler::class.java)
+        Mockito.doReturn(renewal).`when`(scheduler).schedule(Mockito.anyString(), Mockito.any(Runnable::class.java), Mockito.any(Date::class.java))
+        val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        val build = Mockito.mock(AgentRunningBuild::class.java)
+        Mockito.`when`(build.buildId).thenReturn(1L)
+        val registry = VaultLeaseRegistry(scheduler, EmtpySSLTrustStoreProvider())
+
+        val listener = registry.listenerFor(build, VaultFeatureSettings("http://localhost:8200", ""), sessionManager)!!
+        val response = VaultResponse()
+        response.leaseId = "database/creds/app/1"
+        response.leaseDuration = 60
+        response.isRenewable = true
+        listener.onLease(VaultQuery.extract("database/creds/app!/password").shorten, response)
+        assertEquals(registry.getLeaseCount(1), 1)
+
+        assertEquals(registry.release(1), 1)
+
+        Mockito.verify(renewal).cancel(false)
+        assertEquals(registry.getLeaseCount(1), 0)
+        assertEquals(registry.release(1), 0)
+        // leases are revoked together with the session token
+        Mockito.verifyNoInteractions(sessionManager)
+    }
+}
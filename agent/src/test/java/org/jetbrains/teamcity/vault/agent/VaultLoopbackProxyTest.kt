@@ -0,0 +1,112 @@
+package org.jetbrains.teamcity.vault.agent
+
+import com.sun.net.httpserver.HttpServer
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.util.PasswordReplacer
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.mockito.Mockito
+import org.testng.Assert.assertEquals
+import org.testng.Assert.assertFalse
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URL
+import java.util.concurrent.atomic.AtomicInteger
+
+class VaultLoopbackProxyTest {
+    private lateinit var vault: HttpServer
+    private lateinit var proxy: VaultLoopbackProxy
+    private lateinit var build: AgentRunningBuild
+    private val parameters = HashMap<String, String>()
+    private val requests = AtomicInteger()
+
+    @BeforeMethod
+    fun setUp() {
+        vault = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        vault.createContext("/v1/") { exchange ->
+            requests.incrementAndGet()
+            val token = exchange.requestHeaders.getFirst("X-Vault-Token")
+            val body = "{\"lease_id\":\"\",\"data\":{\"id\":\"$token\",\"path\":\"${exchange.requestURI.path}\"}}".toByteArray()
+            exchange.responseHeaders.set("Content-Type", "application/json")
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        vault.createContext("/v1/pki/ca") { exchange ->
+            exchange.responseHeaders.set("Content-Type", "application/pkix-cert")
+            exchange.sendResponseHeaders(200, DER_CERTIFICATE.size.toLong())
+            exchange.responseBody.use { it.write(DER_CERTIFICATE) }
+        }
+        vault.start()
+        proxy = VaultLoopbackProxy(EmtpySSLTrustStoreProvider())
+        build = Mockito.mock(AgentRunningBuild::class.java)
+        Mockito.`when`(build.buildId).thenReturn(1L)
+        Mockito.`when`(build.sharedConfigParameters).thenReturn(parameters)
+        Mockito.`when`(build.passwordReplacer).thenReturn(Mockito.mock(PasswordReplacer::class.java))
+        parameters.clear()
+        parameters[VaultLoopbackProxy.ENABLED_PARAM] = "true"
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        proxy.releaseAll()
+        vault.stop(0)
+    }
+
+    @Test
+    fun testRequestForwardedWithSessionToken() {
+        val endpoint = proxy.start(build, settings()) { SESSION_TOKEN }!!
+
+        val (status, body) = get(endpoint.address + "/v1/auth/token/lookup-self", endpoint.credential)
+        assertEquals(status, 200)
+        assertFalse(body.contains(SESSION_TOKEN))
+        assertEquals(body, "{\"lease_id\":\"\",\"data\":{\"id\":\"${endpoint.credential}\",\"path\":\"/v1/auth/token/lookup-self\"}}")
+    }
+
+    @Test
+    fun testRequestWithoutCredentialRejected() {
+        val endpoint = proxy.start(build, settings()) { SESSION_TOKEN }!!
+
+        assertEquals(get(endpoint.address + "/v1/secret/data/app", SESSION_TOKEN).first, 403)
+        assertEquals(requests.get(), 0)
+    }
+
+    @Test
+    fun testReadsCached() {
+        parameters[VaultLoopbackProxy.CACHE_SECONDS_PARAM] = "60"
+        val endpoint = proxy.start(build, settings()) { SESSION_TOKEN }!!
+
+        repeat(3) { assertEquals(get(endpoint.address + "/v1/secret/data/app", endpoint.credential).first, 200) }
+        assertEquals(requests.get(), 1)
+    }
+
+    @Test
+    fun testBinaryResponsePassedAsIs() {
+        val endpoint = proxy.start(build, settings()) { SESSION_TOKEN }!!
+
+        val connection = URL(endpoint.address + "/v1/pki/ca").openConnection() as HttpURLConnection
+        connection.setRequestProperty("X-Vault-Token", endpoint.credential)
+        assertEquals(connection.responseCode, 200)
+        assertEquals(connection.contentType, "application/pkix-cert")
+        assertEquals(connection.inputStream.use { it.readBytes() }, DER_CERTIFICATE)
+    }
+
+    private fun settings() = VaultFeatureSettings("http://${vault.address.address.hostAddress}:${vault.address.port}", "")
+
+    private fun get(url: String, token: String): Pair<Int, String> {
+        val connection = URL(url).openConnection() as HttpURLConnection
+        connection.setRequestProperty("X-Vault-Token", token)
+        val status = connection.responseCode
+        val stream = if (status < 400) connection.inputStream else connection.errorStream
+        return status to (stream?.use { String(it.readBytes()) } ?: "")
+    }
+
+    companion object {
+        private const val SESSION_TOKEN = "s.session-token"
+
+        // start of a DER certificate, not valid UTF-8
+        private val DER_CERTIFICATE = byteArrayOf(0x30, 0x82.toByte(), 0x03, 0x5A, 0x30, 0x82.toByte(), 0x02, 0x42, 0xA0.toByte(), 0x03, 0x02, 0x01, 0x02, 0xFF.toByte(), 0xFE.toByte())
+    }
+}
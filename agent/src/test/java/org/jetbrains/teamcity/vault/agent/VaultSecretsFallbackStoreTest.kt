@@ -0,0 +1,121 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.agent.AgentRunningBuild
+import jetbrains.buildServer.agent.BuildAgentConfiguration
+import jetbrains.buildServer.agent.BuildProgressLogger
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.FileUtil
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.VaultQuery
+import org.jetbrains.teamcity.vault.VaultResolver.ResolvingResult
+import org.mockito.Mockito
+import org.testng.Assert.*
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.io.File
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+import java.util.concurrent.atomic.AtomicInteger
+
+class VaultSecretsFallbackStoreTest {
+    private lateinit var directory: File
+    private lateinit var build: AgentRunningBuild
+    private lateinit var configuration: BuildAgentConfiguration
+    private val parameters = HashMap<String, String>()
+    private val settings = VaultFeatureSettings("http://localhost:8200", "")
+    private val query = VaultQuery.extract("secret/app!/password")
+
+    @BeforeMethod
+    fun setUp() {
+        directory = Files.createTempDirectory("fallback").toFile()
+        configuration = Mockito.mock(BuildAgentConfiguration::class.java)
+        Mockito.`when`(configuration.systemDirectory).thenReturn(File(directory, "system"))
+        Mockito.`when`(configuration.getCacheDirectory(Mockito.anyString())).thenReturn(File(directory, "cache").also { it.mkdirs() })
+        build = Mockito.mock(AgentRunningBuild::class.java)
+        Mockito.`when`(build.sharedConfigParameters).thenReturn(parameters)
+        Mockito.`when`(build.buildLogger).thenReturn(Mockito.mock(BuildProgressLogger::class.java))
+        parameters.clear()
+        parameters["teamcity.project.id"] = "project1"
+        parameters[VaultSecretsFallbackStore.ENABLED_PARAM] = "true"
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        FileUtil.delete(directory)
+    }
+
+    @Test
+    fun testStoredValueUsedWhenUnavailable() {
+        newStore().forConnection(build, settings)!!.store(listOf(query), ResolvingResult(mapOf(query.full to "secret-value"), emptyMap()))
+
+        // values are read by another instance, e.g. after agent restart, and are not stored in plain text
+        val connection = newStore().forConnection(build, settings)!!
+        val stored = File(directory, "cache").listFiles()!!.single()
+        assertFalse(String(stored.readBytes(), Charsets.ISO_8859_1).contains("secret-value"))
+
+        val result = connection.apply(connection.unavailable(listOf(query)))
+        assertEquals(result.replacements, mapOf(query.full to "secret-value"))
+        assertTrue(result.errors.isEmpty())
+        assertTrue(result.unavailable.isEmpty())
+    }
+
+    @Test
+    fun testFilesReadableByOwnerOnly() {
+        if ("posix" !in FileSystems.getDefault().supportedFileAttributeViews()) return
+        newStore().forConnection(build, settings)!!.store(listOf(query), ResolvingResult(mapOf(query.full to "secret-value"), emptyMap()))
+
+        val files = File(directory, "cache").listFiles()!!.toList() + File(directory, "system").walkTopDown().filter { it.isFile }
+        assertEquals(files.size, 2)
+        files.forEach { assertEquals(PosixFilePermissions.toString(Files.getPosixFilePermissions(it.toPath())), "rw-------") }
+    }
+
+    @Test
+    fun testExpiredValueNotUsed() {
+        newStore().forConnection(build, settings)!!.store(listOf(query), ResolvingResult(mapOf(query.full to "secret-value"), emptyMap()))
+        parameters[VaultSecretsFallbackStore.MAX_AGE_MINUTES_PARAM] = "-1"
+
+        val connection = newStore().forConnection(build, settings)!!
+        val result = connection.apply(connection.unavailable(listOf(query)))
+        assertTrue(result.replacements.isEmpty())
+        assertEquals(result.errors.keys, setOf(query.full))
+    }
+
+    @Test
+    fun testDisabledForOtherConnections() {
+        parameters[VaultSecretsFallbackStore.ENABLED_PARAM] = "other, another"
+        assertNull(newStore().forConnection(build, settings))
+    }
+
+    @Test
+    fun testRefreshRetriedUntilLoggedIn() {
+        System.setProperty(VaultSecretsFallbackStore.REFRESH_INTERVAL_SECONDS_PARAM, "0")
+        val store = newStore()
+        try {
+            Mockito.`when`(build.buildId).thenReturn(1L)
+            store.forConnection(build, settings)!!.store(listOf(query), ResolvingResult(mapOf(query.full to "old-value"), emptyMap()))
+
+            // the login fails while HashiCorp Vault is unavailable, the refresh is retried until it succeeds
+            val attempts = AtomicInteger()
+            store.forConnection(build, settings)!!.scheduleRefresh(listOf(query)) {
+                if (attempts.incrementAndGet() < 3) throw IllegalStateException("Failed to log in")
+                ResolvingResult(mapOf(query.full to "new-value"), emptyMap())
+            }
+
+            val connection = newStore().forConnection(build, settings)!!
+            val deadline = System.currentTimeMillis() + 5000
+            while (connection.apply(connection.unavailable(listOf(query))).replacements[query.full] != "new-value" && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            assertEquals(connection.apply(connection.unavailable(listOf(query))).replacements, mapOf(query.full to "new-value"))
+            assertEquals(attempts.get(), 3)
+        } finally {
+            store.agentShutdown()
+            System.clearProperty(VaultSecretsFallbackStore.REFRESH_INTERVAL_SECONDS_PARAM)
+        }
+    }
+
+    private fun newStore() = VaultSecretsFallbackStore(EventDispatcher.create(AgentLifeCycleListener::class.java), configuration)
+}
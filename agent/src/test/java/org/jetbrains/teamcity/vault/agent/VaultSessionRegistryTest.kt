@@ -0,0 +1,93 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.BaseTestCase
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.mockito.Mockito
+import org.testng.Assert.*
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class VaultSessionRegistryTest : BaseTestCase() {
+    private lateinit var tokenRevoker: VaultTokenRevoker
+    private lateinit var credentialsPool: VaultDynamicCredentialsPool
+    private lateinit var registry: VaultSessionRegistry
+
+    @BeforeMethod
+    fun createRegistry() {
+        tokenRevoker = Mockito.mock(VaultTokenRevoker::class.java)
+        credentialsPool = Mockito.mock(VaultDynamicCredentialsPool::class.java)
+        registry = VaultSessionRegistry(tokenRevoker, credentialsPool)
+    }
+
+    @Test
+    fun testReleaseRevokesAllBuildSessions() {
+        val first = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        val second = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        val other = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        val settings = VaultFeatureSettings("http://localhost:8200", "")
+        registry.register(1, "", first, settings)
+        registry.register(1, "ns", second)
+        registry.register(2, "", other)
+
+        assertSame(registry.getSession(1, "ns"), second)
+        assertSame(registry.getSettings(1, ""), settings)
+        assertEquals(registry.release(1), 2)
+
+        Mockito.verify(tokenRevoker).revoke(Mockito.same(first), Mockito.anyString())
+        Mockito.verify(tokenRevoker).revoke(Mockito.same(second), Mockito.anyString())
+        Mockito.verify(tokenRevoker, Mockito.never()).revoke(Mockito.same(other), Mockito.anyString())
+        assertTrue(registry.getSessions(1).isEmpty())
+        assertSame(registry.getSession(2, ""), other)
+        assertEquals(registry.release(1), 0)
+    }
+
+    @Test
+    fun testReplacedSessionRevoked() {
+        val previous = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        val current = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        registry.register(1, "", previous)
+        registry.register(1, "", current)
+
+        Mockito.verify(tokenRevoker).revoke(Mockito.same(previous), Mockito.anyString())
+        assertSame(registry.getSession(1, ""), current)
+    }
+
+    @Test
+    fun testAdoptedSessionNotRevoked() {
+        val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        Mockito.`when`(credentialsPool.adopt(sessionManager)).thenReturn(true)
+        registry.register(1, "", sessionManager)
+
+        assertEquals(registry.release(1), 1)
+
+        Mockito.verifyNoInteractions(tokenRevoker)
+    }
+
+    @Test
+    fun testReleaseStaleKeepsRunningBuild() {
+        setInternalProperty(VaultSessionRegistry.MAX_SESSION_AGE_PARAM, "-1")
+        val running = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        val stale = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        registry.register(1, "", running)
+        registry.register(2, "", stale)
+
+        registry.releaseStale { it == 1L }
+
+        assertSame(registry.getSession(1, ""), running)
+        assertNull(registry.getSession(2, ""))
+        Mockito.verify(tokenRevoker).revoke(Mockito.same(stale), Mockito.anyString())
+        Mockito.verify(tokenRevoker, Mockito.never()).revoke(Mockito.same(running), Mockito.anyString())
+    }
+
+    @Test
+    fun testReleaseStaleKeepsRecentSessions() {
+        val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        registry.register(1, "", sessionManager)
+
+        registry.releaseStale { false }
+
+        assertSame(registry.getSession(1, ""), sessionManager)
+        Mockito.verifyNoInteractions(tokenRevoker)
+    }
+}
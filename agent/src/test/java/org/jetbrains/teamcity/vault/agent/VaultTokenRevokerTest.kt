@@ -0,0 +1,102 @@
+package org.jetbrains.teamcity.vault.agent
+
+import jetbrains.buildServer.BaseTestCase
+import jetbrains.buildServer.agent.AgentLifeCycleListener
+import jetbrains.buildServer.util.EventDispatcher
+import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
+import org.mockito.Mockito
+import org.springframework.vault.support.VaultToken
+import org.testng.Assert.*
+import org.testng.annotations.Test
+
+class VaultTokenRevokerTest : BaseTestCase() {
+
+    @Test
+    fun testFailedRevocationsRetriedInBatch() {
+        setInternalProperty(VaultTokenRevoker.RETRY_DELAY_PARAM, "10")
+        val revoker = VaultTokenRevoker(EventDispatcher.create(AgentLifeCycleListener::class.java))
+        val first = createSessionManager("first")
+        val second = createSessionManager("second")
+        Mockito.doThrow(IllegalStateException("unavailable")).doThrow(IllegalStateException("unavailable")).doNothing()
+            .`when`(first).revokeOnce(VaultToken.of("first"))
+        Mockito.doThrow(IllegalStateException("unavailable")).doNothing()
+            .`when`(second).revokeOnce(VaultToken.of("second"))
+
+        revoker.revoke(first, "build 1")
+        revoker.revoke(second, "build 2")
+
+        awaitCondition { revoker.pendingCount == 0 && Mockito.mockingDetails(first).invocations.count { it.method.name == "revokeOnce" } == 3 }
+        Mockito.verify(first, Mockito.times(3)).revokeOnce(VaultToken.of("first"))
+        Mockito.verify(second, Mockito.times(2)).revokeOnce(VaultToken.of("second"))
+        revoker.agentShutdown()
+    }
+
+    @Test
+    fun testRevocationGivesUpAfterMaxAttempts() {
+        setInternalProperty(VaultTokenRevoker.RETRY_DELAY_PARAM, "10")
+        setInternalProperty(VaultTokenRevoker.MAX_ATTEMPTS_PARAM, "2")
+        val revoker = VaultTokenRevoker(EventDispatcher.create(AgentLifeCycleListener::class.java))
+        val sessionManager = createSessionManager("token")
+        Mockito.doThrow(IllegalStateException("unavailable")).`when`(sessionManager).revokeOnce(VaultToken.of("token"))
+
+        revoker.revoke(sessionManager, "build 1")
+
+        awaitCondition { revoker.pendingCount == 0 && Mockito.mockingDetails(sessionManager).invocations.count { it.method.name == "revokeOnce" } == 2 }
+        revoker.agentShutdown()
+        Mockito.verify(sessionManager, Mockito.times(2)).revokeOnce(VaultToken.of("token"))
+    }
+
+    @Test
+    fun testPendingRetriesFlushedOnShutdown() {
+        setInternalProperty(VaultTokenRevoker.RETRY_DELAY_PARAM, "600000")
+        val revoker = VaultTokenRevoker(EventDispatcher.create(AgentLifeCycleListener::class.java))
+        val sessionManager = createSessionManager("token")
+        Mockito.doThrow(IllegalStateException("unavailable")).doNothing().`when`(sessionManager).revokeOnce(VaultToken.of("token"))
+
+        revoker.revoke(sessionManager, "build 1")
+        awaitCondition { Mockito.mockingDetails(sessionManager).invocations.any { it.method.name == "revokeOnce" } && revoker.pendingCount == 1 }
+
+        val started = System.currentTimeMillis()
+        revoker.agentShutdown()
+
+        assertTrue(System.currentTimeMillis() - started < 5000, "Shutdown must not wait for the retry delay")
+        Mockito.verify(sessionManager, Mockito.times(2)).revokeOnce(VaultToken.of("token"))
+        assertEquals(revoker.pendingCount, 0)
+    }
+
+    @Test
+    fun testRevokedSynchronouslyAfterShutdown() {
+        val revoker = VaultTokenRevoker(EventDispatcher.create(AgentLifeCycleListener::class.java))
+        revoker.agentShutdown()
+        val sessionManager = createSessionManager("token")
+
+        revoker.revoke(sessionManager, "build 1")
+
+        Mockito.verify(sessionManager).revokeOnce(VaultToken.of("token"))
+    }
+
+    @Test
+    fun testDetachedSessionNotRevoked() {
+        val revoker = VaultTokenRevoker(EventDispatcher.create(AgentLifeCycleListener::class.java))
+        val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+
+        revoker.revoke(sessionManager, "build 1")
+        revoker.agentShutdown()
+
+        Mockito.verify(sessionManager, Mockito.never()).revokeOnce(Mockito.any())
+    }
+
+    private fun createSessionManager(token: String): LifecycleAwareSessionManager {
+        val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+        Mockito.`when`(sessionManager.detach()).thenReturn(VaultToken.of(token)).thenReturn(null)
+        return sessionManager
+    }
+
+    private fun awaitCondition(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) fail("Condition was not met in time")
+            Thread.sleep(10)
+        }
+    }
+}
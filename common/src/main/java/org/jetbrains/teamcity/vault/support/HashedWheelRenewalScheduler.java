@@ -0,0 +1,422 @@
+package org.jetbrains.teamcity.vault.support;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.support.SimpleTriggerContext;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared scheduler for HashiCorp Vault token and lease renewals.
+ * <p>
+ * Timers are kept in a hashed timing wheel served by a single tick thread, expired timers are executed
+ * by a small worker pool, so one slow renewal does not block the others. Renewal times are moved
+ * slightly earlier by a random jitter to avoid renewal storms of tokens obtained at the same moment.
+ * Timers scheduled with a key replace the previous timer with the same key.
+ */
+public class HashedWheelRenewalScheduler implements TaskScheduler, DisposableBean {
+    private static final Logger LOG = Logger.getInstance(HashedWheelRenewalScheduler.class.getName());
+
+    public static final String WORKERS_PARAM = "teamcity.internal.vault.renewal.workers";
+    public static final String TICK_MILLIS_PARAM = "teamcity.internal.vault.renewal.tickMillis";
+    public static final String JITTER_FRACTION_PARAM = "teamcity.internal.vault.renewal.jitterFraction";
+    public static final String MAX_JITTER_SECONDS_PARAM = "teamcity.internal.vault.renewal.maxJitterSeconds";
+    public static final String LAG_WARNING_MILLIS_PARAM = "teamcity.internal.vault.renewal.lagWarningMillis";
+    // timers and lag are written to the log with this interval while there are timers, 0 disables the report
+    public static final String STATS_INTERVAL_SECONDS_PARAM = "teamcity.internal.vault.renewal.statsIntervalSeconds";
+
+    private static final int WHEEL_SIZE = 512;
+
+    private final long tickMillis;
+    private final List<Timeout>[] wheel;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentMap<String, Timeout> keyedTimeouts = new ConcurrentHashMap<String, Timeout>();
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    private final Object lock = new Object();
+    private volatile Thread tickThread;
+    private volatile boolean stopped;
+    private long startTime;
+    private long tick;
+    private long lastStatsReport;
+
+    public HashedWheelRenewalScheduler() {
+        this(TeamCityProperties.getInteger(WORKERS_PARAM, 2), TeamCityProperties.getLong(TICK_MILLIS_PARAM, 500));
+    }
+
+    @SuppressWarnings("unchecked")
+    public HashedWheelRenewalScheduler(int workers, long tickMillis) {
+        this.tickMillis = Math.max(10, tickMillis);
+        this.wheel = new List[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel[i] = new LinkedList<Timeout>();
+        }
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedDaemonThreadFactory("HashiCorp Vault renewal worker"));
+    }
+
+    /**
+     * Schedules a one-shot task, replacing a pending task with the same key if any.
+     * Execution time is moved earlier by a random jitter.
+     */
+    @NotNull
+    public ScheduledFuture<?> schedule(@Nullable String key, @NotNull Runnable task, @NotNull Date startTime) {
+        return scheduleAt(key, task, jitter(startTime.getTime()));
+    }
+
+    @NotNull
+    @Override
+    public ScheduledFuture<?> schedule(@NotNull Runnable task, @NotNull Date startTime) {
+        return schedule(null, task, startTime);
+    }
+
+    @Nullable
+    @Override
+    public ScheduledFuture<?> schedule(@NotNull final Runnable task, @NotNull final Trigger trigger) {
+        final SimpleTriggerContext context = new SimpleTriggerContext();
+        final Date first = trigger.nextExecutionTime(context);
+        if (first == null) return null;
+        // the same timer is rescheduled for every execution, so the returned future cancels all of them
+        final Timeout[] current = new Timeout[1];
+        final Runnable triggered = new Runnable() {
+            private Date scheduled = first;
+
+            @Override
+            public void run() {
+                Date started = new Date();
+                task.run();
+                context.update(scheduled, started, new Date());
+                Date next = trigger.nextExecutionTime(context);
+                if (next != null && !current[0].isCancelled()) {
+                    scheduled = next;
+                    current[0].reschedule(next.getTime());
+                    add(current[0]);
+                }
+            }
+        };
+        current[0] = new Timeout(null, triggered, first.getTime());
+        add(current[0]);
+        return current[0];
+    }
+
+    @NotNull
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@NotNull Runnable task, @NotNull Date startTime, long period) {
+        return scheduleRepeated(task, startTime.getTime(), period, true);
+    }
+
+    @NotNull
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@NotNull Runnable task, long period) {
+        return scheduleRepeated(task, System.currentTimeMillis(), period, true);
+    }
+
+    @NotNull
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@NotNull Runnable task, @NotNull Date startTime, long delay) {
+        return scheduleRepeated(task, startTime.getTime(), delay, false);
+    }
+
+    @NotNull
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@NotNull Runnable task, long delay) {
+        return scheduleRepeated(task, System.currentTimeMillis(), delay, false);
+    }
+
+    /**
+     * @return number of timers waiting in the wheel
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of timers scheduled with a key and not yet expired or cancelled
+     */
+    public int getKeyedCount() {
+        return keyedTimeouts.size();
+    }
+
+    /**
+     * @return number of expired timers waiting for a free worker
+     */
+    public int getWorkerQueueSize() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return delay between the planned and the actual start of the last executed task
+     */
+    public long getLastLagMillis() {
+        return lastLag.get();
+    }
+
+    public long getMaxLagMillis() {
+        return maxLag.get();
+    }
+
+    @Override
+    public void destroy() {
+        stopped = true;
+        Thread thread = tickThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelRenewalScheduler{pending=" + getPendingCount() + ", workerQueue=" + getWorkerQueueSize() +
+                ", lastLagMs=" + getLastLagMillis() + ", maxLagMs=" + getMaxLagMillis() + "}";
+    }
+
+    private ScheduledFuture<?> scheduleRepeated(final Runnable task, final long startTime, final long period, final boolean fixedRate) {
+        final Timeout[] current = new Timeout[1];
+        final Runnable repeating = new Runnable() {
+            private long next = startTime;
+
+            @Override
+            public void run() {
+                task.run();
+                next = fixedRate ? next + period : System.currentTimeMillis() + period;
+                if (!current[0].isCancelled()) {
+                    current[0].reschedule(next);
+                    add(current[0]);
+                }
+            }
+        };
+        current[0] = new Timeout(null, repeating, startTime);
+        add(current[0]);
+        return current[0];
+    }
+
+    private ScheduledFuture<?> scheduleAt(@Nullable String key, @NotNull Runnable task, long deadline) {
+        Timeout timeout = new Timeout(key, task, deadline);
+        if (key != null) {
+            Timeout previous = keyedTimeouts.put(key, timeout);
+            if (previous != null) {
+                previous.cancel(false);
+            }
+        }
+        add(timeout);
+        return timeout;
+    }
+
+    private void add(@NotNull Timeout timeout) {
+        if (stopped) {
+            throw new RejectedExecutionException("HashiCorp Vault renewal scheduler is stopped");
+        }
+        ensureStarted();
+        pending.incrementAndGet();
+        newTimeouts.add(timeout);
+    }
+
+    private long jitter(long deadline) {
+        long delay = deadline - System.currentTimeMillis();
+        if (delay <= 0) return deadline;
+        double fraction = Double.parseDouble(TeamCityProperties.getProperty(JITTER_FRACTION_PARAM, "0.1"));
+        long maxJitter = Math.min((long) (delay * fraction), TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(MAX_JITTER_SECONDS_PARAM, 60)));
+        if (maxJitter <= 0) return deadline;
+        return deadline - ThreadLocalRandom.current().nextLong(maxJitter + 1);
+    }
+
+    private void ensureStarted() {
+        if (tickThread != null) return;
+        synchronized (lock) {
+            if (tickThread != null) return;
+            startTime = System.currentTimeMillis();
+            lastStatsReport = startTime;
+            Thread thread = new NamedDaemonThreadFactory("HashiCorp Vault renewal timer").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runTicks();
+                }
+            });
+            tickThread = thread;
+            thread.start();
+        }
+    }
+
+    private void runTicks() {
+        while (!stopped) {
+            long tickDeadline = startTime + (tick + 1) * tickMillis;
+            long sleep = tickDeadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (stopped) return;
+                }
+            }
+            try {
+                transferNewTimeouts();
+                expire(wheel[(int) (tick % WHEEL_SIZE)]);
+                reportStats();
+            } catch (Throwable t) {
+                LOG.warnAndDebugDetails("Unexpected error in HashiCorp Vault renewal timer", t);
+            }
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadline - startTime) / tickMillis);
+            timeout.remainingRounds = (ticks - tick) / WHEEL_SIZE;
+            wheel[(int) (ticks % WHEEL_SIZE)].add(timeout);
+        }
+    }
+
+    private void expire(@NotNull List<Timeout> bucket) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            final Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+                pending.decrementAndGet();
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= now + tickMillis) {
+                it.remove();
+                pending.decrementAndGet();
+                if (timeout.key != null) {
+                    keyedTimeouts.remove(timeout.key, timeout);
+                }
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long lag = Math.max(0, System.currentTimeMillis() - timeout.deadline);
+                        recordLag(lag);
+                        timeout.run();
+                    }
+                });
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private void reportStats() {
+        long interval = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(STATS_INTERVAL_SECONDS_PARAM, 300));
+        long now = System.currentTimeMillis();
+        if (interval <= 0 || now - lastStatsReport < interval) return;
+        lastStatsReport = now;
+        if (getPendingCount() > 0 || getWorkerQueueSize() > 0) {
+            LOG.info("HashiCorp Vault renewals: " + this);
+        }
+    }
+
+    private void recordLag(long lag) {
+        lastLag.set(lag);
+        long max;
+        do {
+            max = maxLag.get();
+        } while (lag > max && !maxLag.compareAndSet(max, lag));
+
+        if (lag > TeamCityProperties.getLong(LAG_WARNING_MILLIS_PARAM, 5000)) {
+            LOG.warn("HashiCorp Vault renewal task started " + lag + "ms later than planned: " + this);
+        }
+    }
+
+    private final class Timeout implements ScheduledFuture<Object> {
+        private static final int WAITING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int CANCELLED = 3;
+
+        @Nullable private final String key;
+        @NotNull private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long deadline;
+        private long remainingRounds;
+
+        private Timeout(@Nullable String key, @NotNull Runnable task, long deadline) {
+            this.key = key;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        private void reschedule(long deadline) {
+            this.deadline = deadline;
+            state.compareAndSet(RUNNING, WAITING);
+        }
+
+        private void run() {
+            if (!state.compareAndSet(WAITING, RUNNING)) return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOG.warnAndDebugDetails("HashiCorp Vault renewal task failed", t);
+            } finally {
+                if (state.compareAndSet(RUNNING, DONE)) {
+                    done.countDown();
+                }
+            }
+        }
+
+        @Override
+        public long getDelay(@NotNull TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NotNull Delayed o) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = state.compareAndSet(WAITING, CANCELLED) || state.compareAndSet(RUNNING, CANCELLED);
+            if (cancelled) {
+                // the map entry holds the task and whatever it references, e.g. the session token
+                if (key != null) {
+                    keyedTimeouts.remove(key, this);
+                }
+                done.countDown();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            int current = state.get();
+            return current == DONE || current == CANCELLED;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            done.await();
+            if (isCancelled()) throw new CancellationException();
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+            if (isCancelled()) throw new CancellationException();
+            return null;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.log.Loggers;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpEntity;
 import org.springframework.scheduling.TaskScheduler;
@@ -87,6 +88,36 @@ public class LifecycleAwareSessionManager implements SessionManager, DisposableB
         }
     }
 
+    /**
+     * Stops token renewal and forgets the current token without revoking it.
+     * Used when revocation is performed asynchronously by the caller, see {@link #revokeOnce(VaultToken)}.
+     *
+     * @return the detached login token or {@literal null} if there's nothing to revoke
+     */
+    @Nullable
+    public VaultToken detach() {
+        VaultToken token = this.token;
+        this.token = null;
+
+        ScheduledFuture<?> scheduled = this.scheduled;
+        this.scheduled = null;
+        if (scheduled != null) {
+            scheduled.cancel(true);
+        }
+
+        return token instanceof LoginToken ? token : null;
+    }
+
+    /**
+     * Performs a single revocation attempt without any retries, sleeps or build log messages.
+     *
+     * @throws RuntimeException if Vault rejected the request or is not reachable
+     */
+    public void revokeOnce(@NotNull VaultToken token) {
+        restOperations.postForObject("auth/token/revoke-self",
+                new HttpEntity<Object>(VaultHttpHeaders.from(token)), Map.class);
+    }
+
     protected void revoke(VaultToken token) {
         RuntimeException e = null;
         int[] backoffs = {1, 3, 6, 0}; // last is not used
@@ -226,7 +257,12 @@ public class LifecycleAwareSessionManager implements SessionManager, DisposableB
             };
             Date startTime = refreshTrigger.nextExecutionTime((LoginToken) token);
             LOG.info("Scheduling HashiCorp Vault token refresh to " + startTime);
-            scheduled = taskScheduler.schedule(task, startTime);
+            if (taskScheduler instanceof HashedWheelRenewalScheduler) {
+                // Keyed by token, so there's only one pending renewal per token
+                scheduled = ((HashedWheelRenewalScheduler) taskScheduler).schedule(token.getToken(), task, startTime);
+            } else {
+                scheduled = taskScheduler.schedule(task, startTime);
+            }
         }
     }
 
@@ -36,6 +36,7 @@ import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Based on {@link org.springframework.vault.core.VaultTemplate}
@@ -136,6 +137,26 @@ public class VaultTemplate {
     }
 
 
+    /**
+     * Lists keys at the path, names of nested folders end with a slash
+     *
+     * @return keys, or null if there's nothing at the path
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public List<String> list(String path) {
+
+        Assert.hasText(path, "Path must not be empty");
+
+        VaultResponse response = doRead((path.endsWith("/") ? path : path + "/") + "?list=true", VaultResponse.class);
+        if (response == null || response.getData() == null) {
+            return null;
+        }
+        Object keys = response.getData().get("keys");
+        return keys instanceof List ? (List<String>) keys : null;
+    }
+
+
     public VaultResponse write(final String path, final Object body) {
 
         Assert.hasText(path, "Path must not be empty");
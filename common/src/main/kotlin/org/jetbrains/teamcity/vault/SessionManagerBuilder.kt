@@ -5,9 +5,8 @@ import jetbrains.buildServer.agent.BuildProgressLogger
 import jetbrains.buildServer.serverSide.TeamCityProperties
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
 import org.jetbrains.teamcity.vault.gcp.GcpAuthenticationHandler
+import org.jetbrains.teamcity.vault.support.HashedWheelRenewalScheduler
 import org.jetbrains.teamcity.vault.support.LifecycleAwareSessionManager
-import org.springframework.scheduling.TaskScheduler
-import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler
 import org.springframework.vault.authentication.*
 import org.springframework.vault.support.VaultToken
 import org.springframework.web.client.RestTemplate
@@ -15,10 +14,9 @@ import java.util.concurrent.TimeUnit
 
 class SessionManagerBuilder(
     private val trustStoreProvider: SSLTrustStoreProvider,
-    private val gcpAuthenticationHandler: GcpAuthenticationHandler
+    private val gcpAuthenticationHandler: GcpAuthenticationHandler,
+    private val scheduler: HashedWheelRenewalScheduler
 ) {
-    private val scheduler: TaskScheduler = ConcurrentTaskScheduler()
-
     private fun buildRestTemplate(settings: VaultFeatureSettings) = createRestTemplate(settings, trustStoreProvider)
 
     private fun buildClientAuthentication(settings: VaultFeatureSettings, template: RestTemplate): ClientAuthentication = when (settings.auth.method) {
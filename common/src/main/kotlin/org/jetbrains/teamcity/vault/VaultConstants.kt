@@ -82,11 +82,13 @@ object VaultConstants {
         const val NAMESPACE_NOT_SELECTED_VALUE = "parameter-namespace-not-selected-please-select"
         const val VAULT_ID = "teamcity_hashicorp_vault_namespace"
         const val VAULT_QUERY = "teamcity_hashicorp_vault_vaultQuery"
+        const val NAME_TEMPLATE = "teamcity_hashicorp_vault_nameTemplate"
     }
 
     object ControllerSettings {
         const val URL = "hashicorp-vault/connection"
         const val WRAP_TOKEN_PATH = "/token/v1"
+        const val RELEASE_TOKEN_PATH = "/token/v1/released"
     }
 
 
@@ -0,0 +1,361 @@
+package org.jetbrains.teamcity.vault
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import jetbrains.buildServer.util.ssl.SSLContextUtil
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
+import java.io.*
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.Socket
+import java.net.URI
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLSocket
+
+/**
+ * Optional subscriptions to HashiCorp Vault KV version 2 events (`sys/events/subscribe` WebSocket stream), one per connection.
+ *
+ * Listeners are notified about every written or deleted secret, so caches of the connection can drop exactly the affected entries
+ * and keep the rest longer. A dropped subscription reconnects with exponential backoff and listeners are told that events may have been missed.
+ * If the subscription is rejected (e.g. Vault doesn't support events or the token lacks the `subscribe` capability) it is stopped
+ * until the connection is used with another token, caches then rely on their TTLs.
+ *
+ * There's no dedicated token for the subscription: a child token would be revoked together with its parent, and an orphan one
+ * requires `sudo`. The subscription runs on the token of the last [subscribe] call, which is a build or test session token revoked
+ * shortly after. Once the stream is dropped, a reconnect with the revoked token is rejected, the subscription then waits
+ * for the next [subscribe] call with a live token and caches use the short TTL meanwhile.
+ *
+ * The stream is read from a plain socket which doesn't go through the HTTP proxy used for the other Vault requests,
+ * so no subscription is made when a proxy is configured for the Vault URL.
+ *
+ * Vault only delivers events for the paths the policies of the subscriber token allow, so receiving no event for a path
+ * means it hasn't changed only for callers of the same scope as the subscriber token, see [isSubscribed].
+ */
+class VaultEventSubscriber(private val trustStoreProvider: SSLTrustStoreProvider) {
+    companion object {
+        private val LOG = Logger.getInstance(VaultEventSubscriber::class.java)
+
+        const val ENABLED_PARAM = "teamcity.internal.vault.events.enabled"
+        const val MAX_BACKOFF_SECONDS_PARAM = "teamcity.internal.vault.events.maxBackoffSeconds"
+        const val MAX_RECONNECT_ATTEMPTS_PARAM = "teamcity.internal.vault.events.maxReconnectAttempts"
+        // events are small JSON documents, a larger message stops the subscription
+        const val MAX_MESSAGE_BYTES_PARAM = "teamcity.internal.vault.events.maxMessageBytes"
+
+        // data-write, data-delete, data-destroy and the other events changing secret data
+        private const val EVENT_TYPE = "kv-v2/data-*"
+        private const val WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11"
+        private const val KV2_DATA_SEGMENT = "data/"
+
+        private const val OPCODE_CONTINUATION = 0x0
+        private const val OPCODE_TEXT = 0x1
+        private const val OPCODE_CLOSE = 0x8
+        private const val OPCODE_PING = 0x9
+        private const val OPCODE_PONG = 0xA
+
+        fun getConnectionKey(settings: VaultFeatureSettings) = settings.url + "#" + settings.vaultNamespace
+
+        /**
+         * @return paths of the changed secret as they may be queried: the KV2 data path and the path within the mount without `data/`
+         */
+        fun getChangedPaths(event: Map<*, *>): Set<String> {
+            val data = event["data"] as? Map<*, *> ?: return emptySet()
+            val metadata = (data["event"] as? Map<*, *>)?.get("metadata") as? Map<*, *> ?: return emptySet()
+            val mount = ((data["plugin_info"] as? Map<*, *>)?.get("mount_path") as? String)?.trim('/')?.plus("/")
+            val paths = listOfNotNull(metadata["path"] as? String, metadata["data_path"] as? String).map { it.trim('/') }
+            val result = HashSet(paths)
+            if (mount != null) {
+                paths.filter { it.startsWith(mount + KV2_DATA_SEGMENT) }.mapTo(result) { mount + it.removePrefix(mount + KV2_DATA_SEGMENT) }
+            }
+            return result
+        }
+    }
+
+    interface Listener {
+        /**
+         * @param paths paths of the written or deleted secret, without leading slash
+         */
+        fun onSecretChanged(connection: String, paths: Set<String>)
+
+        /**
+         * Called when the subscription of the connection is dropped, events may have been missed until it reconnects
+         */
+        fun onEventsMissed(connection: String)
+    }
+
+    private val listeners = CopyOnWriteArrayList<Listener>()
+    private val subscriptions = ConcurrentHashMap<String, Subscription>()
+    private val threadFactory = NamedDaemonThreadFactory("HashiCorp Vault events")
+    private val objectMapper = jacksonObjectMapper()
+    private val random = SecureRandom()
+
+    fun addListener(listener: Listener) {
+        listeners += listener
+    }
+
+    /**
+     * @param scope scope of the caller, see [subscribe]. If not null, the subscription counts only if its token has been passed with the same scope
+     * @return true if events of the connection are being received right now
+     */
+    @JvmOverloads
+    fun isSubscribed(settings: VaultFeatureSettings, scope: String? = null): Boolean {
+        val subscription = subscriptions[getConnectionKey(settings)] ?: return false
+        return subscription.connected && (scope == null || scope == subscription.connectedScope)
+    }
+
+    /**
+     * Starts the subscription of the connection unless it's running, reconnects of a running one use the latest [token].
+     * Callers pass their session tokens, so a stopped subscription is restarted as soon as the connection is used again
+     *
+     * @param scope scope the [token] has been issued for, tokens of the same scope have the same policies
+     */
+    @JvmOverloads
+    fun subscribe(settings: VaultFeatureSettings, token: String, scope: String? = null) {
+        if (!TeamCityProperties.getBoolean(ENABLED_PARAM) || settings.url.isBlank()) {
+            return
+        }
+        val key = getConnectionKey(settings)
+        if (isProxied(settings)) {
+            LOG.debug("HashiCorp Vault events of '$key' are not subscribed to, the connection goes through a proxy")
+            return
+        }
+        val subscription = subscriptions.computeIfAbsent(key) { Subscription(key, settings) }
+        subscription.use(token, scope)
+        subscription.startIfStopped()
+    }
+
+    fun shutdown() {
+        subscriptions.values.forEach { it.stop() }
+        subscriptions.clear()
+    }
+
+    private fun isProxied(settings: VaultFeatureSettings): Boolean {
+        val proxies = try {
+            ProxySelector.getDefault()?.select(URI.create(settings.url))
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+        return proxies.orEmpty().any { it.type() != Proxy.Type.DIRECT }
+    }
+
+    private class RejectedException(message: String, val token: String) : IOException(message)
+
+    private class MessageTooLargeException(message: String) : Exception(message)
+
+    private inner class Subscription(private val key: String, private val settings: VaultFeatureSettings) : Runnable {
+        @Volatile var token: String = ""
+        @Volatile private var scope: String? = null
+        @Volatile var connected = false
+        // scope of the token the stream has been opened with
+        @Volatile var connectedScope: String? = null
+        // token the subscription was rejected with, it's not retried
+        @Volatile private var rejectedToken: String? = null
+        private var thread: Thread? = null
+        @Volatile private var socket: Socket? = null
+        @Volatile private var stopped = false
+
+        @Synchronized
+        fun use(token: String, scope: String?) {
+            this.token = token
+            this.scope = scope
+        }
+
+        @Synchronized
+        fun startIfStopped() {
+            if (thread?.isAlive == true || token == rejectedToken) {
+                return
+            }
+            stopped = false
+            thread = threadFactory.newThread(this).also { it.start() }
+        }
+
+        fun stop() {
+            stopped = true
+            socket?.close()
+        }
+
+        override fun run() {
+            val maxBackoff = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(MAX_BACKOFF_SECONDS_PARAM, 300))
+            val maxAttempts = TeamCityProperties.getInteger(MAX_RECONNECT_ATTEMPTS_PARAM, 10)
+            var backoff = 1000L
+            var attempts = 0
+            while (!stopped) {
+                try {
+                    connect { attempts = 0; backoff = 1000L }
+                } catch (e: RejectedException) {
+                    // synchronized with startIfStopped, so a token passed meanwhile is either retried here or starts a new thread
+                    synchronized(this) {
+                        rejectedToken = e.token
+                        if (token == e.token) {
+                            LOG.info("HashiCorp Vault events of '$key' are not available, cached data relies on TTLs: ${e.message}")
+                            thread = null
+                            return
+                        }
+                    }
+                    continue
+                } catch (e: MessageTooLargeException) {
+                    LOG.warn("HashiCorp Vault events subscription of '$key' is stopped: ${e.message}")
+                    break
+                } catch (e: IOException) {
+                    LOG.debug("HashiCorp Vault events subscription of '$key' was dropped", e)
+                } catch (e: Exception) {
+                    LOG.warnAndDebugDetails("Failed to subscribe to HashiCorp Vault events of '$key'", e)
+                    break
+                } finally {
+                    if (connected) {
+                        connected = false
+                        listeners.forEach { it.onEventsMissed(key) }
+                    }
+                }
+                if (stopped || ++attempts > maxAttempts) {
+                    break
+                }
+                try {
+                    Thread.sleep(backoff)
+                } catch (e: InterruptedException) {
+                    break
+                }
+                backoff = (backoff * 2).coerceAtMost(maxBackoff)
+            }
+        }
+
+        private fun connect(onConnected: () -> Unit) {
+            val uri = URI.create(settings.url)
+            val secure = uri.scheme.equals("https", ignoreCase = true)
+            val port = if (uri.port > 0) uri.port else if (secure) 443 else 80
+            val timeout = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong("${VaultConstants.PARAMETER_PREFIX}${VaultConstants.VAULT_CLIENT_CONNECTION_TIMEOUT_SECONDS}", 5)).toInt()
+            val plain = Socket()
+            this.socket = plain
+            plain.use {
+                plain.connect(InetSocketAddress(uri.host, port), timeout)
+                plain.keepAlive = true
+                val socket = if (secure) {
+                    val trustStore = trustStoreProvider.trustStore
+                    val context = if (trustStore != null) SSLContextUtil.createUserSSLContext(trustStore) else SSLContext.getDefault()
+                    (context.socketFactory.createSocket(plain, uri.host, port, true) as SSLSocket).also {
+                        // raw SSL sockets don't verify the host name unlike the HTTP clients
+                        it.sslParameters = it.sslParameters.apply { endpointIdentificationAlgorithm = "HTTPS" }
+                        this.socket = it
+                    }
+                } else plain
+                val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+                val output = BufferedOutputStream(socket.getOutputStream())
+                val (token, scope) = synchronized(this) { token to scope }
+                handshake(uri, port, input, output, token)
+                connectedScope = scope
+                connected = true
+                onConnected()
+                LOG.info("Subscribed to HashiCorp Vault events of '$key'")
+                readMessages(input, output)
+            }
+        }
+
+        private fun handshake(uri: URI, port: Int, input: DataInputStream, output: OutputStream, token: String) {
+            val nonce = Base64.getEncoder().encodeToString(ByteArray(16).also { random.nextBytes(it) })
+            val request = StringBuilder()
+                .append("GET ${uri.rawPath.orEmpty().trimEnd('/')}/v1/sys/events/subscribe/$EVENT_TYPE?json=true HTTP/1.1\r\n")
+                .append("Host: ${uri.host}:$port\r\n")
+                .append("Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Version: 13\r\n")
+                .append("Sec-WebSocket-Key: $nonce\r\n")
+                .append("X-Vault-Token: $token\r\n")
+            if (settings.vaultNamespace.isNotBlank()) {
+                request.append("X-Vault-Namespace: ${settings.vaultNamespace}\r\n")
+            }
+            output.write(request.append("\r\n").toString().toByteArray(Charsets.ISO_8859_1))
+            output.flush()
+
+            val status = readLine(input)
+            val headers = generateSequence { readLine(input).takeIf { it.isNotEmpty() } }
+                .associate { it.substringBefore(':').trim().lowercase() to it.substringAfter(':').trim() }
+            val code = status.split(' ').getOrNull(1)?.toIntOrNull()
+            if (code != 101) {
+                if (code != null && code in 400..499) {
+                    throw RejectedException(status, token)
+                }
+                throw IOException("Unexpected response to HashiCorp Vault events subscription: $status")
+            }
+            val expected = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1").digest((nonce + WEBSOCKET_GUID).toByteArray()))
+            if (headers["sec-websocket-accept"] != expected) {
+                throw IOException("Invalid WebSocket handshake response of HashiCorp Vault events subscription")
+            }
+        }
+
+        private fun readMessages(input: DataInputStream, output: OutputStream) {
+            val message = ByteArrayOutputStream()
+            val maxSize = TeamCityProperties.getLong(MAX_MESSAGE_BYTES_PARAM, 1024 * 1024)
+            while (!stopped) {
+                val first = input.readUnsignedByte()
+                val second = input.readUnsignedByte()
+                val opcode = first and 0x0F
+                var length = (second and 0x7F).toLong()
+                if (length == 126L) length = input.readUnsignedShort().toLong() else if (length == 127L) length = input.readLong()
+                // checked before the payload is allocated, the length may be anything up to 2^63
+                if (length < 0 || length > maxSize - message.size()) {
+                    throw MessageTooLargeException("HashiCorp Vault event exceeds $maxSize bytes")
+                }
+                val mask = if (second and 0x80 != 0) ByteArray(4).also { input.readFully(it) } else null
+                val payload = ByteArray(length.toInt()).also { input.readFully(it) }
+                mask?.let { payload.indices.forEach { i -> payload[i] = (payload[i].toInt() xor mask[i % 4].toInt()).toByte() } }
+
+                when (opcode) {
+                    OPCODE_PING -> writeFrame(output, OPCODE_PONG, payload)
+                    OPCODE_CLOSE -> {
+                        writeFrame(output, OPCODE_CLOSE, payload)
+                        throw EOFException("HashiCorp Vault closed the events subscription")
+                    }
+                    OPCODE_TEXT, OPCODE_CONTINUATION -> {
+                        message.write(payload)
+                        if (first and 0x80 != 0) {
+                            onMessage(message.toByteArray())
+                            message.reset()
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun onMessage(message: ByteArray) {
+            val paths = try {
+                getChangedPaths(objectMapper.readValue(message, Map::class.java))
+            } catch (e: IOException) {
+                LOG.debug("Failed to parse HashiCorp Vault event of '$key'", e)
+                // the changed secret is unknown
+                listeners.forEach { it.onEventsMissed(key) }
+                return
+            }
+            if (paths.isNotEmpty()) {
+                listeners.forEach { it.onSecretChanged(key, paths) }
+            }
+        }
+
+        // client frames are always masked, payloads of control frames are shorter than 126 bytes
+        private fun writeFrame(output: OutputStream, opcode: Int, payload: ByteArray) {
+            val mask = ByteArray(4).also { random.nextBytes(it) }
+            output.write(0x80 or opcode)
+            output.write(0x80 or payload.size.coerceAtMost(125))
+            output.write(mask)
+            for (i in 0 until payload.size.coerceAtMost(125)) {
+                output.write(payload[i].toInt() xor mask[i % 4].toInt())
+            }
+            output.flush()
+        }
+
+        private fun readLine(input: InputStream): String {
+            val line = StringBuilder()
+            while (true) {
+                val c = input.read()
+                if (c < 0) throw EOFException("HashiCorp Vault closed the events subscription")
+                if (c == '\n'.code) return line.toString().trimEnd('\r')
+                line.append(c.toChar())
+            }
+        }
+    }
+}
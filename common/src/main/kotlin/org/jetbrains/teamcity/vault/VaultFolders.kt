@@ -0,0 +1,103 @@
+package org.jetbrains.teamcity.vault
+
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import jetbrains.buildServer.util.retry.Retrier
+import org.jetbrains.teamcity.vault.support.VaultTemplate
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Reading of whole KV folders: a query path ending with a slash lists the folder recursively and reads all the leaf secrets in parallel.
+ *
+ * KV version 2 folders are listed using `<mount>/metadata/<folder>/`. If the mount is unknown, a KV2 folder has to be referenced
+ * like a single secret, `<mount>/data/<folder>/`.
+ * Depth of the listed tree and the number of entries are limited, a folder exceeding the limits is reported as an error rather than read partially.
+ */
+object VaultFolders {
+    const val MAX_DEPTH_PARAM = "teamcity.internal.vault.folders.maxDepth"
+    const val MAX_ENTRIES_PARAM = "teamcity.internal.vault.folders.maxEntries"
+    const val PARALLELISM_PARAM = "teamcity.internal.vault.folders.parallelism"
+
+    private const val KV2_DATA_SEGMENT = "data"
+    private const val KV2_METADATA_SEGMENT = "metadata"
+
+    /**
+     * @return true if the query reads a whole folder, see [VaultQuery.isFolder]
+     */
+    fun isFolderQuery(query: VaultQuery.Shorten) = query.path.endsWith("/")
+
+    /**
+     * @param mount mount of the folder, if known. Data of KV2 secrets is then unwrapped
+     * @return data of every leaf secret by its path relative to the folder
+     */
+    fun read(client: VaultTemplate, folder: String, retrier: Retrier, mount: VaultMountTables.Mount? = null): Map<String, Map<String, Any>> {
+        val (listRoot, readRoot) = if (mount != null) {
+            mount.getMetadataPath(folder).trimEnd('/') to mount.getDataPath(folder).trimEnd('/')
+        } else getRoots(folder.trim('/'))
+        val leaves = list(client, listRoot, retrier)
+        if (leaves.isEmpty()) {
+            throw IllegalStateException("There are no secrets in HashiCorp Vault folder '$folder'")
+        }
+
+        val parallelism = TeamCityProperties.getInteger(PARALLELISM_PARAM, 8).coerceIn(1, leaves.size)
+        val executor = Executors.newFixedThreadPool(parallelism, NamedDaemonThreadFactory("HashiCorp Vault folder reader"))
+        try {
+            val futures = leaves.map { leaf ->
+                leaf to executor.submit(Callable { retrier.execute(Callable { client.read("$readRoot/$leaf") }) })
+            }
+            return futures.associateTo(LinkedHashMap()) { (leaf, future) ->
+                val response = try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause as? Exception ?: e
+                }
+                val data = response?.data ?: throw IllegalStateException("There's no data in HashiCorp Vault response for '$readRoot/$leaf'")
+                @Suppress("UNCHECKED_CAST")
+                leaf to if (mount?.isKV2 == true) data[VaultResolver.DATA_KEY] as? Map<String, Any> ?: emptyMap() else data
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun list(client: VaultTemplate, root: String, retrier: Retrier): List<String> {
+        val maxDepth = TeamCityProperties.getInteger(MAX_DEPTH_PARAM, 5)
+        val maxEntries = TeamCityProperties.getInteger(MAX_ENTRIES_PARAM, 500)
+        val leaves = ArrayList<String>()
+        var level = listOf("")
+        var depth = 0
+        while (level.isNotEmpty()) {
+            if (depth >= maxDepth) {
+                throw IllegalStateException("HashiCorp Vault folder '$root' is nested deeper than $maxDepth levels")
+            }
+            val next = ArrayList<String>()
+            for (prefix in level) {
+                val keys = retrier.execute(Callable { client.list("$root/$prefix") }) ?: emptyList()
+                for (key in keys) {
+                    if (key.endsWith("/")) next += prefix + key else leaves += prefix + key
+                }
+                if (leaves.size + next.size > maxEntries) {
+                    throw IllegalStateException("HashiCorp Vault folder '$root' has more than $maxEntries entries")
+                }
+            }
+            level = next
+            depth++
+        }
+        return leaves
+    }
+
+    /**
+     * @return paths used to list the folder and to read its secrets
+     */
+    private fun getRoots(folder: String): Pair<String, String> {
+        val segments = folder.split('/')
+        val index = segments.withIndex().indexOfFirst { (i, segment) -> i > 0 && (segment == KV2_DATA_SEGMENT || segment == KV2_METADATA_SEGMENT) }
+        if (index < 0) {
+            return folder to folder
+        }
+        fun replaced(segment: String) = segments.toMutableList().also { it[index] = segment }.joinToString("/")
+        return replaced(KV2_METADATA_SEGMENT) to replaced(KV2_DATA_SEGMENT)
+    }
+}
@@ -0,0 +1,10 @@
+package org.jetbrains.teamcity.vault
+
+import org.springframework.vault.support.VaultResponse
+
+/**
+ * Notified about responses carrying a lease (dynamic secrets), so the lease can be renewed and revoked when no longer needed.
+ */
+interface VaultLeaseListener {
+    fun onLease(query: VaultQuery.Shorten, response: VaultResponse)
+}
@@ -0,0 +1,21 @@
+package org.jetbrains.teamcity.vault
+
+import org.jetbrains.teamcity.vault.support.VaultTemplate
+import org.springframework.http.HttpEntity
+import org.springframework.vault.support.VaultResponse
+
+/**
+ * Operations on leases of dynamic secrets
+ */
+object VaultLeases {
+    /**
+     * @return response with the new lease duration
+     */
+    fun renew(client: VaultTemplate, leaseId: String, incrementSeconds: Long): VaultResponse? {
+        return client.write("sys/leases/renew", HttpEntity(mapOf("lease_id" to leaseId, "increment" to incrementSeconds)))
+    }
+
+    fun revoke(client: VaultTemplate, leaseId: String) {
+        client.write("sys/leases/revoke", HttpEntity(mapOf("lease_id" to leaseId)))
+    }
+}
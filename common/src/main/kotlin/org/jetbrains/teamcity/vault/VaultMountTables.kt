@@ -0,0 +1,113 @@
+package org.jetbrains.teamcity.vault
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.jetbrains.teamcity.vault.support.VaultTemplate
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Cache of HashiCorp Vault mount tables, one per connection (Vault URL and namespace).
+ *
+ * Tables are loaded from `sys/internal/ui/mounts`, which lists the mounts visible to the token, and are reloaded after the TTL
+ * or when a read through a known mount returns 404. If the table can't be loaded (e.g. the token lacks the permission),
+ * the failure is cached for the same TTL and the mount of every path is unknown.
+ */
+class VaultMountTables {
+    companion object {
+        private val LOG = Logger.getInstance(VaultMountTables::class.java)
+
+        const val ENABLED_PARAM = "teamcity.internal.vault.mounts.enabled"
+        const val TTL_SECONDS_PARAM = "teamcity.internal.vault.mounts.ttlSeconds"
+
+        private const val MOUNTS_PATH = "sys/internal/ui/mounts"
+        private const val SECRET_MOUNTS_KEY = "secret"
+        private const val KV_TYPE = "kv"
+        private const val KV2_DATA_PREFIX = "data/"
+        private const val KV2_METADATA_PREFIX = "metadata/"
+    }
+
+    data class Mount(val path: String, val type: String, val kvVersion: Int?) {
+        val isKV2: Boolean get() = type == KV_TYPE && kvVersion == 2
+
+        /**
+         * @return path of the secret within the mount, without the KV2 `data/` segment
+         */
+        fun getLogicalPath(path: String): String = path.trim('/').removePrefix(this.path).removePrefix(KV2_DATA_PREFIX)
+
+        /**
+         * @return path to read the secret data from, `data/` segment is added for KV2 secrets if it's missing
+         */
+        fun getDataPath(path: String): String {
+            val relative = path.trim('/').removePrefix(this.path)
+            return when {
+                !isKV2 || relative.startsWith(KV2_DATA_PREFIX) || relative.startsWith(KV2_METADATA_PREFIX) -> path.trim('/')
+                else -> this.path + KV2_DATA_PREFIX + relative
+            }
+        }
+
+        fun getMetadataPath(path: String): String =
+            if (isKV2) this.path + KV2_METADATA_PREFIX + getLogicalPath(path) else path.trim('/')
+
+        /**
+         * True if data read from [path] is wrapped into the KV2 `data` and `metadata` keys
+         */
+        fun isWrappedData(path: String): Boolean = isKV2 && !path.trim('/').removePrefix(this.path).startsWith(KV2_METADATA_PREFIX)
+    }
+
+    /**
+     * Mount table of a single connection accessed with the given client
+     */
+    inner class Connection(private val key: String, private val client: VaultTemplate) {
+        /**
+         * @return the mount [path] belongs to, or null if it's unknown
+         */
+        fun findMount(path: String): Mount? {
+            val normalized = path.trim('/') + "/"
+            return getTable(key, client).firstOrNull { normalized.startsWith(it.path) }
+        }
+
+        fun invalidate() {
+            tables.remove(key)
+        }
+    }
+
+    private class Table(val mounts: List<Mount>, val loaded: Long)
+
+    private val tables = ConcurrentHashMap<String, Table>()
+
+    /**
+     * @return mount table of the connection, or null if mount tables are disabled
+     */
+    fun forConnection(settings: VaultFeatureSettings, client: VaultTemplate): Connection? {
+        if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PARAM)) {
+            return null
+        }
+        return Connection(settings.url + "#" + settings.vaultNamespace, client)
+    }
+
+    private fun getTable(key: String, client: VaultTemplate): List<Mount> {
+        val ttl = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(TTL_SECONDS_PARAM, 300))
+        val existing = tables[key]
+        if (existing != null && System.currentTimeMillis() - existing.loaded < ttl) {
+            return existing.mounts
+        }
+        val table = Table(load(client), System.currentTimeMillis())
+        tables[key] = table
+        return table.mounts
+    }
+
+    private fun load(client: VaultTemplate): List<Mount> {
+        return try {
+            val secretMounts = client.read(MOUNTS_PATH)?.data?.get(SECRET_MOUNTS_KEY) as? Map<*, *> ?: return emptyList()
+            secretMounts.mapNotNull { (path, description) ->
+                val mount = description as? Map<*, *> ?: return@mapNotNull null
+                val options = mount["options"] as? Map<*, *>
+                Mount(path.toString().trimStart('/'), mount["type"]?.toString() ?: "", options?.get("version")?.toString()?.toIntOrNull())
+            }.sortedByDescending { it.path.length } // nested mounts first
+        } catch (e: Exception) {
+            LOG.debug("Failed to load HashiCorp Vault mount table, KV versions will be detected from responses", e)
+            emptyList()
+        }
+    }
+}
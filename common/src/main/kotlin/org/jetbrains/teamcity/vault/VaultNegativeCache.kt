@@ -0,0 +1,123 @@
+package org.jetbrains.teamcity.vault
+
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.springframework.http.HttpStatus
+import org.springframework.web.client.HttpStatusCodeException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Short-lived cache of reads which failed because the path doesn't exist (404),
+ * so broken references repeated by builds, parameter validation and test queries don't reach HashiCorp Vault every time.
+ * Permission failures (403) are not cached: they depend on the token, and entries are shared by all the tokens of the connection.
+ *
+ * Only reads are cached, write engine requests always go to Vault. Entries are kept per scope, like [VaultPinnedVersionsCache],
+ * and are dropped when the caller explicitly asks to retry.
+ */
+class VaultNegativeCache {
+    companion object {
+        const val TTL_SECONDS_PARAM = "teamcity.internal.vault.negativeCache.ttlSeconds"
+        // used while events of the connection are received, see VaultEventSubscriber
+        const val SUBSCRIBED_TTL_SECONDS_PARAM = "teamcity.internal.vault.negativeCache.subscribedTtlSeconds"
+        const val MAX_SIZE_PARAM = "teamcity.internal.vault.negativeCache.maxSize"
+
+        /**
+         * Build parameter, set it to `true` to retry the reads which have recently failed instead of reporting the cached failures
+         */
+        const val REFRESH_PARAM = "teamcity.vault.negativeCache.refresh"
+
+        /**
+         * @return true if the read failed because the path doesn't exist rather than because of Vault availability or the token permissions
+         */
+        fun isCacheable(e: Throwable): Boolean {
+            var cause: Throwable? = e
+            while (cause != null) {
+                if (cause is HttpStatusCodeException) {
+                    return cause.statusCode == HttpStatus.NOT_FOUND
+                }
+                cause = cause.cause
+            }
+            return false
+        }
+    }
+
+    private data class Key(val scope: String, val url: String, val vaultNamespace: String, val pathWithParams: String)
+
+    private class Entry(val message: String, val expires: Long)
+
+    private val entries = LinkedHashMap<Key, Entry>()
+
+    /**
+     * Cache view of a single connection within the scope
+     */
+    inner class Scope(private val scope: String, private val settings: VaultFeatureSettings, private val refresh: Boolean, private val subscribed: Boolean) {
+        /**
+         * @return message of the cached failure, or null if the path should be read
+         */
+        fun get(query: VaultQuery.Shorten): String? {
+            val key = key(query)
+            synchronized(entries) {
+                if (refresh) {
+                    entries.remove(key)
+                    return null
+                }
+                val entry = entries[key] ?: return null
+                if (entry.expires <= System.currentTimeMillis()) {
+                    entries.remove(key)
+                    return null
+                }
+                return "${entry.message} (failure is cached for ${TimeUnit.MILLISECONDS.toSeconds(entry.expires - System.currentTimeMillis()) + 1}s more)"
+            }
+        }
+
+        fun put(query: VaultQuery.Shorten, message: String) {
+            val ttl = TimeUnit.SECONDS.toMillis(
+                if (subscribed) TeamCityProperties.getLong(SUBSCRIBED_TTL_SECONDS_PARAM, 600) else TeamCityProperties.getLong(TTL_SECONDS_PARAM, 30)
+            )
+            synchronized(entries) {
+                entries[key(query)] = Entry(message, System.currentTimeMillis() + ttl)
+                val maxSize = TeamCityProperties.getInteger(MAX_SIZE_PARAM, 1000)
+                val iterator = entries.values.iterator()
+                while (entries.size > maxSize && iterator.hasNext()) {
+                    iterator.next()
+                    iterator.remove()
+                }
+            }
+        }
+
+        private fun key(query: VaultQuery.Shorten) = Key(scope, settings.url, settings.vaultNamespace, query.pathWithParams)
+    }
+
+    /**
+     * @param refresh true if the caller explicitly retries, cached failures of the queried paths are then dropped
+     * @param subscribed true if changes of the connection secrets are received as events with a token of the same [scope],
+     * failures are then cached longer. Events of another scope may not cover the paths of this one
+     * @return cache of the connection, or null if the cache is disabled or there's no scope to keep entries in
+     */
+    @JvmOverloads
+    fun forScope(scope: String?, settings: VaultFeatureSettings, refresh: Boolean, subscribed: Boolean = false): Scope? {
+        if (scope == null || TeamCityProperties.getLong(TTL_SECONDS_PARAM, 30) <= 0) {
+            return null
+        }
+        return Scope(scope, settings, refresh, subscribed)
+    }
+
+    /**
+     * Drops cached failures of the [paths] in all the scopes of the connection, see [VaultEventSubscriber.getConnectionKey]
+     */
+    fun invalidate(connection: String, paths: Set<String>) {
+        synchronized(entries) {
+            entries.keys.removeIf { it.url + "#" + it.vaultNamespace == connection && it.pathWithParams.substringBefore(VaultQuery.PARAMS_PREFIX).trim('/') in paths }
+        }
+    }
+
+    /**
+     * Drops all cached failures of the connection
+     */
+    fun invalidate(connection: String) {
+        synchronized(entries) {
+            entries.keys.removeIf { it.url + "#" + it.vaultNamespace == connection }
+        }
+    }
+
+    fun size(): Int = synchronized(entries) { entries.size }
+}
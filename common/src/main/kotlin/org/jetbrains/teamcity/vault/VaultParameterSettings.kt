@@ -3,16 +3,38 @@ package org.jetbrains.teamcity.vault
 import org.jetbrains.teamcity.vault.VaultConstants.FeatureSettings.DEFAULT_ID
 import org.jetbrains.teamcity.vault.VaultConstants.ParameterSettings
 
-data class VaultParameterSettings(
+data class VaultParameterSettings @JvmOverloads constructor(
     val namespace: String,
-    val vaultQuery: String
+    val vaultQuery: String,
+    val nameTemplate: String? = null
 ) {
     fun toMap(): Map<String, String> = mapOf(
         ParameterSettings.VAULT_ID to namespace,
         ParameterSettings.VAULT_QUERY to vaultQuery
-    )
+    ) + (nameTemplate?.let { mapOf(ParameterSettings.NAME_TEMPLATE to it) } ?: emptyMap())
+
+    /**
+     * Name of the parameter created for the [key] of a multi-key query declared by the [parameterName] parameter.
+     *
+     * The template may use `{name}` for the declaring parameter name, `{key}` for the key (nested keys are joined with dots)
+     * and `{KEY}` for the key in upper case with all the characters not allowed in environment variable names replaced with underscores.
+     */
+    fun getExpandedParameterName(parameterName: String, key: String): String {
+        val template = nameTemplate?.takeIf { it.isNotBlank() }
+            ?: if (parameterName.startsWith("env.")) DEFAULT_ENV_NAME_TEMPLATE else DEFAULT_NAME_TEMPLATE
+        return template
+            .replace(NAME_PLACEHOLDER, parameterName)
+            .replace(KEY_PLACEHOLDER, key)
+            .replace(UPPER_KEY_PLACEHOLDER, key.replace("[^a-zA-Z0-9_]".toRegex(), "_").toUpperCase())
+    }
 
     companion object {
+        private const val NAME_PLACEHOLDER = "{name}"
+        private const val KEY_PLACEHOLDER = "{key}"
+        private const val UPPER_KEY_PLACEHOLDER = "{KEY}"
+        private const val DEFAULT_NAME_TEMPLATE = "$NAME_PLACEHOLDER.$KEY_PLACEHOLDER"
+        private const val DEFAULT_ENV_NAME_TEMPLATE = "${NAME_PLACEHOLDER}_$UPPER_KEY_PLACEHOLDER"
+
         fun getInvalidProperties(arguments: Map<String, String>): Map<String, String> {
             val invalids = mutableMapOf<String, String>()
             if (arguments[ParameterSettings.VAULT_QUERY].isNullOrBlank()) {
@@ -23,6 +45,11 @@ data class VaultParameterSettings(
                 invalids[ParameterSettings.VAULT_ID] = "Please choose a vault connection"
             }
 
+            val nameTemplate = arguments[ParameterSettings.NAME_TEMPLATE]
+            if (!nameTemplate.isNullOrBlank() && !nameTemplate.contains(KEY_PLACEHOLDER) && !nameTemplate.contains(UPPER_KEY_PLACEHOLDER)) {
+                invalids[ParameterSettings.NAME_TEMPLATE] = "The name template should contain $KEY_PLACEHOLDER or $UPPER_KEY_PLACEHOLDER"
+            }
+
             return invalids
         }
 
@@ -33,8 +60,8 @@ data class VaultParameterSettings(
 
             val namespace = arguments[ParameterSettings.VAULT_ID] ?: DEFAULT_ID
             val query = arguments.getValue(ParameterSettings.VAULT_QUERY)
-            return VaultParameterSettings(namespace, query)
+            return VaultParameterSettings(namespace, query, arguments[ParameterSettings.NAME_TEMPLATE]?.takeIf { it.isNotBlank() })
         }
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package org.jetbrains.teamcity.vault
+
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import org.springframework.vault.support.VaultResponse
+import java.util.concurrent.TimeUnit
+
+/**
+ * Memory-only cache of pinned KV2 secret versions (`path@N` and `path?version=N` queries).
+ *
+ * Content of a secret version never changes, so entries live long and are evicted when the cache is full or after the max age,
+ * which bounds for how long a version deleted in HashiCorp Vault may still be served. Entries are kept per scope (e.g. project connection),
+ * so a cached secret is only returned to the callers which have already read it using the same credentials.
+ */
+class VaultPinnedVersionsCache {
+    companion object {
+        const val ENABLED_PARAM = "teamcity.internal.vault.pinnedVersions.cache.enabled"
+        const val MAX_SIZE_PARAM = "teamcity.internal.vault.pinnedVersions.cache.maxSize"
+        const val MAX_AGE_MINUTES_PARAM = "teamcity.internal.vault.pinnedVersions.cache.maxAgeMinutes"
+
+        private const val METADATA_KEY = "metadata"
+
+        /**
+         * Builds and users of a project connection use the same credentials, so they may share cached versions
+         */
+        fun getScope(projectId: String, namespace: String) = "$projectId/$namespace"
+    }
+
+    private data class Key(val scope: String, val url: String, val vaultNamespace: String, val pathWithParams: String)
+
+    private class Entry(val response: VaultResponse, val created: Long)
+
+    // access-ordered, so the least recently used version is evicted first
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+
+    /**
+     * Cache view of a single connection within the [scope]
+     */
+    inner class Scope(private val scope: String, private val settings: VaultFeatureSettings) {
+        fun get(query: VaultQuery.Shorten): VaultResponse? {
+            val key = key(query)
+            val maxAge = TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong(MAX_AGE_MINUTES_PARAM, TimeUnit.DAYS.toMinutes(1)))
+            synchronized(entries) {
+                val entry = entries[key] ?: return null
+                if (System.currentTimeMillis() - entry.created > maxAge) {
+                    entries.remove(key)
+                    return null
+                }
+                return entry.response
+            }
+        }
+
+        /**
+         * Caches the response if it holds a live version: deleted and destroyed versions may be restored or have no data
+         */
+        fun offer(query: VaultQuery.Shorten, response: VaultResponse) {
+            val metadata = response.data?.get(METADATA_KEY) as? Map<*, *> ?: return
+            if (response.data[VaultResolver.DATA_KEY] == null || metadata["destroyed"] == true || !(metadata["deletion_time"] as? String).isNullOrEmpty()) {
+                return
+            }
+            synchronized(entries) {
+                entries[key(query)] = Entry(response, System.currentTimeMillis())
+                val maxSize = TeamCityProperties.getInteger(MAX_SIZE_PARAM, 1000)
+                val iterator = entries.values.iterator()
+                while (entries.size > maxSize && iterator.hasNext()) {
+                    iterator.next()
+                    iterator.remove()
+                }
+            }
+        }
+
+        private fun key(query: VaultQuery.Shorten) = Key(scope, settings.url, settings.vaultNamespace, query.pathWithParams)
+    }
+
+    /**
+     * @return cache of the connection, or null if the cache is disabled or there's no scope to keep entries in
+     */
+    fun forScope(scope: String?, settings: VaultFeatureSettings): Scope? {
+        if (scope == null || !TeamCityProperties.getBooleanOrTrue(ENABLED_PARAM)) {
+            return null
+        }
+        return Scope(scope, settings)
+    }
+
+    /**
+     * Drops cached versions of the [paths] in all the scopes of the connection, e.g. after a version was deleted or destroyed
+     */
+    fun invalidate(connection: String, paths: Set<String>) {
+        synchronized(entries) {
+            entries.keys.removeIf { it.url + "#" + it.vaultNamespace == connection && it.pathWithParams.substringBefore(VaultQuery.PARAMS_PREFIX).trim('/') in paths }
+        }
+    }
+
+    fun size(): Int = synchronized(entries) { entries.size }
+}
@@ -10,18 +10,56 @@ data class VaultQuery(val vaultPath: String, val jsonPath: String? = null, val i
         const val WRITE_PREFIX: String = "write:";
         const val SECRET_KEY_PREFIX: String = "!/";
         const val PARAMS_PREFIX: String = "?";
+        const val ALL_KEYS: String = "*"
+        const val VERSION_PARAM: String = "version"
+
+        private val VERSION_PARAM_REGEX = Regex("$VERSION_PARAM=\\d+")
+        private val PINNED_VERSION_REGEX = Regex("(.+)@(\\d+)")
 
         @JvmStatic
         fun extract(path: String, isWriteEngineEnabled: Boolean? = false): VaultQuery {
             val isWriteEngine = isWriteEngineEnabled == true && path.startsWith(WRITE_PREFIX)
             val split = path.substringAfter(WRITE_PREFIX).split(SECRET_KEY_PREFIX, PARAMS_PREFIX, limit = 3)
             val secretKey = if (path.contains(SECRET_KEY_PREFIX)) split[1] else null
-            val params = if (isWriteEngine && path.contains(PARAMS_PREFIX)) split.last() else null
+            val params = if (isWriteEngine && path.contains(PARAMS_PREFIX)) {
+                split.last()
+            } else if (path.contains(PARAMS_PREFIX)) {
+                // reads only support selecting a version of a KV2 secret
+                split.last().takeIf { VERSION_PARAM_REGEX.matches(it) }
+            } else null
             return VaultQuery(split[0], secretKey, isWriteEngine, params)
         }
     }
 
-    val shorten: Shorten = Shorten(vaultPath, params)
+    /**
+     * `path@N` pins version N of a KV2 secret, it's read like `path?version=N`
+     */
+    val shorten: Shorten = PINNED_VERSION_REGEX.matchEntire(vaultPath)
+        ?.takeIf { isWriteEngine != true && params == null }
+        ?.let { Shorten(it.groupValues[1], "$VERSION_PARAM=${it.groupValues[2]}") }
+        ?: Shorten(vaultPath, params)
+
+    /**
+     * Multi-key queries expand a secret into several parameters: [ALL_KEYS] as the key selects all the keys, `path!/{a,b}` selects the listed ones
+     */
+    val isMultiKey: Boolean get() = jsonPath == ALL_KEYS || (jsonPath != null && jsonPath.startsWith("{") && jsonPath.endsWith("}"))
+
+    /**
+     * Folder queries read all the secrets of a KV folder, their path ends with a slash
+     */
+    val isFolder: Boolean get() = isWriteEngine != true && vaultPath.endsWith("/")
+
+    /**
+     * True if the query resolves into several parameters rather than into a single value
+     */
+    val isExpanding: Boolean get() = isMultiKey || isFolder
+
+    /**
+     * Keys listed in a multi-key query, or null if all the keys are selected
+     */
+    val selectedKeys: List<String>? get() = if (!isMultiKey || jsonPath == ALL_KEYS) null else {
+        jsonPath!!.removeSurrounding("{", "}").split(',').map { it.trim() }.filter { it.isNotEmpty() }
+    }
 
     val full: String get() {
         var sb = StringBuilder()
@@ -36,7 +74,7 @@ data class VaultQuery(val vaultPath: String, val jsonPath: String? = null, val i
 
         val extractedParams: Map<String, String>? get() = params?.let {
             it.split("&")
-                .map { it.split("=")}
+                .map { it.split("=", limit = 2) }
                 .filter { it.size == 2 }
                 .associateTo(HashMap()) { it[0] to it[1] }
         }
@@ -4,6 +4,7 @@ package org.jetbrains.teamcity.vault
 import jetbrains.buildServer.parameters.ReferencesResolverUtil
 
 object VaultReferencesUtil {
+    private val REFERENCE_REGEX = Regex("%([^%]+)%")
 
     @JvmStatic
     fun hasReferences(parameters: Map<String, String>, namespaces: Collection<String>): Boolean {
@@ -35,6 +36,26 @@ object VaultReferencesUtil {
         }
     }
 
+    /**
+     * @return references of the [namespaces] used by the [values] directly or through the [parameters] they reference
+     */
+    @JvmStatic
+    fun collectReachable(values: Collection<String>, parameters: Map<String, String>, namespaces: Collection<String>): Set<String> {
+        val references = LinkedHashSet<String>()
+        val visited = HashSet<String>()
+        val queue = ArrayDeque(values)
+        while (queue.isNotEmpty()) {
+            val value = queue.removeFirst()
+            if (!ReferencesResolverUtil.mayContainReference(value)) continue
+            references.addAll(getVaultReferences(value, namespaces))
+            REFERENCE_REGEX.findAll(value)
+                .map { it.groupValues[1] }
+                .filter { visited.add(it) }
+                .forEach { name -> parameters[name]?.let { queue.addLast(it) } }
+        }
+        return references
+    }
+
     @JvmStatic
     fun getPath(ref: String, namespace: String): String {
         val prefix = VaultConstants.VAULT_PARAMETER_PREFIX + if (isDefault(namespace)) "" else "$namespace:"
@@ -11,52 +11,111 @@ import org.springframework.vault.authentication.SimpleSessionManager
 import org.springframework.vault.client.VaultEndpoint
 import org.springframework.vault.support.VaultResponse
 import org.springframework.vault.support.VaultToken
+import org.springframework.web.client.HttpServerErrorException
+import org.springframework.web.client.ResourceAccessException
+import java.io.IOException
 import java.net.URI
 import java.util.concurrent.Callable
 
 
 open class VaultResolver(private val trustStoreProvider: SSLTrustStoreProvider) {
+    private val mountTables = VaultMountTables()
+    private val pinnedVersions = VaultPinnedVersionsCache()
+    private val negativeCache = VaultNegativeCache()
+    private val events = VaultEventSubscriber(trustStoreProvider).also {
+        it.addListener(object : VaultEventSubscriber.Listener {
+            override fun onSecretChanged(connection: String, paths: Set<String>) {
+                negativeCache.invalidate(connection, paths)
+                pinnedVersions.invalidate(connection, paths)
+            }
+
+            override fun onEventsMissed(connection: String) {
+                // pinned versions are immutable, only a deleted version may be served until the max age
+                negativeCache.invalidate(connection)
+            }
+        })
+    }
+
     companion object {
         private val LOG = Logger.getInstance(VaultResolver::class.java)
         private val defaultRetrier = VaultRetrier.getRetrier("fetching the data from the vault")
         const val DATA_KEY = "data"
-    }
-
-    data class ResolvingResult(val replacements: Map<String, String>, val errors: Map<String, String>)
 
-    fun doFetchAndPrepareReplacements(
-        settings: VaultFeatureSettings,
-        token: String,
-        parameters: Collection<VaultQuery>
-    ): ResolvingResult{
-        return doFetchAndPrepareReplacements(settings, token, parameters, defaultRetrier)
+        /**
+         * @return true if the request failed because HashiCorp Vault couldn't be reached or failed to process it,
+         * rather than because of the request itself
+         */
+        fun isVaultUnavailable(e: Throwable): Boolean {
+            var cause: Throwable? = e
+            while (cause != null) {
+                if (cause is IOException || cause is ResourceAccessException || cause is HttpServerErrorException) {
+                    return true
+                }
+                cause = cause.cause
+            }
+            return false
+        }
     }
 
+    /**
+     * @param expansions values of multi-key queries by the flattened secret key
+     * @param unavailable queries which failed because HashiCorp Vault was unavailable, see [isVaultUnavailable]
+     */
+    data class ResolvingResult(
+        val replacements: Map<String, String>,
+        val errors: Map<String, String>,
+        val expansions: Map<String, Map<String, String>> = emptyMap(),
+        val unavailable: Set<String> = emptySet()
+    )
+
+    /**
+     * Kotlin callers pass the optional arguments by name, Java callers get the overloads generated for the leading ones
+     *
+     * @param writeEngineCache reuses responses of write engine requests, see [WriteEngineCache]
+     * @param leaseListener is notified about leases of the fetched secrets
+     * @param cacheScope scope of cached pinned secret versions and failed reads, see [VaultPinnedVersionsCache.getScope]. Nothing is cached if null
+     * @param refreshCachedFailures true if the caller explicitly retries, failed reads cached for the queried paths are then ignored
+     */
+    @JvmOverloads
     fun doFetchAndPrepareReplacements(
         settings: VaultFeatureSettings,
         token: String,
         parameters: Collection<VaultQuery>,
-        retrier: Retrier
+        retrier: Retrier = defaultRetrier,
+        writeEngineCache: WriteEngineCache? = null,
+        leaseListener: VaultLeaseListener? = null,
+        cacheScope: String? = null,
+        refreshCachedFailures: Boolean = false
     ): ResolvingResult {
         val endpoint = VaultEndpoint.from(URI.create(settings.url))
         val factory = createClientHttpRequestFactory(trustStoreProvider)
         val client = VaultTemplate(endpoint, settings.vaultNamespace, factory, SimpleSessionManager({ VaultToken.of(token) }))
+        if (cacheScope != null) {
+            events.subscribe(settings, token, cacheScope)
+        }
 
-        return doFetchAndPrepareReplacements(client, parameters, retrier)
-    }
-
-    fun doFetchAndPrepareReplacements(client: VaultTemplate, parameters: Collection<VaultQuery>): ResolvingResult {
-        return doFetchAndPrepareReplacements(client, parameters, defaultRetrier);
+        return VaultParametersFetcher(client, retrier, writeEngineCache, leaseListener, mountTables.forConnection(settings, client),
+            pinnedVersions.forScope(cacheScope, settings), negativeCache.forScope(cacheScope, settings, refreshCachedFailures, events.isSubscribed(settings, cacheScope)))
+            .doFetchAndPrepareReplacements(parameters)
     }
 
-    fun doFetchAndPrepareReplacements(client: VaultTemplate, parameters: Collection<VaultQuery>, retrier: Retrier): ResolvingResult {
+    @JvmOverloads
+    fun doFetchAndPrepareReplacements(client: VaultTemplate, parameters: Collection<VaultQuery>, retrier: Retrier = defaultRetrier): ResolvingResult {
         return VaultParametersFetcher(client, retrier).doFetchAndPrepareReplacements(parameters)
     }
 
     class VaultParametersFetcher(
         private val client: VaultTemplate,
-        private var retrier: Retrier = defaultRetrier
+        private var retrier: Retrier = defaultRetrier,
+        private val writeEngineCache: WriteEngineCache? = null,
+        private val leaseListener: VaultLeaseListener? = null,
+        private val mounts: VaultMountTables.Connection? = null,
+        private val pinnedVersions: VaultPinnedVersionsCache.Scope? = null,
+        private val negativeCache: VaultNegativeCache.Scope? = null
     ) {
+        // whether data read for a query is wrapped into KV2 data and metadata, as known from the mount table
+        private val knownLayouts = HashMap<String, Boolean>()
+
         fun doFetchAndPrepareReplacements(parameters: Collection<VaultQuery>): ResolvingResult {
             val paramsGroupedByEngineType = parameters.groupBy( {it.isWriteEngine == true}, { it.shorten } ).mapValues { it.value.toHashSet() }
             val responses = paramsGroupedByEngineType.map { (isWriteEngine, queries) ->  fetch(client, queries, isWriteEngine)}
@@ -70,61 +129,208 @@ open class VaultResolver(private val trustStoreProvider: SSLTrustStoreProvider)
 
         private fun fetch(client: VaultTemplate, queries: Collection<VaultQuery.Shorten>, isWriteEngine: Boolean): HashMap<String, HashiCorpVaultResponse<Exception, VaultResponse>> {
             val responses = HashMap<String, HashiCorpVaultResponse<Exception, VaultResponse>>(queries.size)
-            for (query in queries.toSet()) {
+            val decryptQueries = if (isWriteEngine) queries.filter { VaultTransit.isDecryptQuery(it) }.toSet() else emptySet()
+            decryptQueries.groupBy { it.path }.forEach { (path, pathQueries) ->
                 try {
+                    val decrypted = retrier.execute(Callable { VaultTransit.decrypt(client, path, pathQueries) })
+                    decrypted.forEach { (query, response) -> responses[query.pathWithParams] = response }
+                } catch (e: Exception) {
+                    LOG.warn(getErrorMessage(path), e)
+                    pathQueries.forEach { responses[it.pathWithParams] = Error(e) }
+                }
+            }
+
+            val folderQueries = if (isWriteEngine) emptySet() else queries.filter { VaultFolders.isFolderQuery(it) }.toSet()
+            for (query in folderQueries) {
+                try {
+                    val mount = mounts?.findMount(query.path)
+                    val response = VaultResponse()
+                    response.data = VaultFolders.read(client, query.path, retrier, mount)
+                    if (mount != null) {
+                        // leaves are already unwrapped
+                        knownLayouts[query.pathWithParams] = false
+                    }
+                    responses[query.pathWithParams] = Response(response)
+                } catch (e: Exception) {
+                    LOG.warn(getErrorMessage(query.pathWithParams), e)
+                    responses[query.pathWithParams] = Error(e)
+                }
+            }
+
+            for (query in queries.toSet() - decryptQueries - folderQueries) {
+                try {
+                    val cached = if (isWriteEngine) writeEngineCache?.acquire(query) else null
+                    if (cached != null) {
+                        responses[query.pathWithParams] = Response(cached)
+                        continue
+                    }
+                    val failure = if (isWriteEngine) null else negativeCache?.get(query)
+                    if (failure != null) {
+                        responses[query.pathWithParams] = Error(failure)
+                        continue
+                    }
 
                     val response = retrier.execute(Callable {
                         if (isWriteEngine) {
                             client.write(query.path.removePrefix("/"), query.extractedParams?.let { HttpEntity(it) } ?: HttpEntity.EMPTY)
                         } else {
-                            client.read(query.path.removePrefix("/"))
+                            read(query)
                         }
                     })
 
                     if (response == null) {
                         val errorMessage = getErrorMessage(query.pathWithParams)
                         LOG.warn(errorMessage)
+                        if (!isWriteEngine) {
+                            negativeCache?.put(query, errorMessage)
+                        }
                         responses[query.pathWithParams] = Error(errorMessage)
                     } else {
+                        val pooled = isWriteEngine && writeEngineCache?.offer(query, response) == true
+                        if (!pooled && !response.leaseId.isNullOrEmpty()) {
+                            leaseListener?.onLease(query, response)
+                        }
                         responses[query.pathWithParams] = Response(response)
                     }
                 } catch (e: Exception) {
                     LOG.warn(getErrorMessage(query.pathWithParams), e)
+                    if (!isWriteEngine && VaultNegativeCache.isCacheable(e)) {
+                        negativeCache?.put(query, e.message ?: getErrorMessage(query.pathWithParams))
+                    }
                     responses[query.pathWithParams] = Error(e)
                 }
             }
             return responses
         }
 
+        private fun read(query: VaultQuery.Shorten): VaultResponse? {
+            val version = query.extractedParams?.get(VaultQuery.VERSION_PARAM)
+            var mount = mounts?.findMount(query.path)
+            if (version != null && mount != null && !mount.isKV2) {
+                throw IllegalArgumentException("Secret versions are only supported by KV version 2 mounts, '${mount.path}' is not")
+            }
+            val cached = if (version != null) pinnedVersions?.get(query) else null
+            var response = cached ?: read(mount, query.path, version)
+            if (response == null && mount != null) {
+                // the mount may have been moved or upgraded, reload the table and retry if the path resolves differently
+                mounts!!.invalidate()
+                val reloaded = mounts.findMount(query.path)
+                if (reloaded != mount) {
+                    mount = reloaded
+                    response = read(mount, query.path, version)
+                }
+            }
+            if (version != null && cached == null && response != null) {
+                pinnedVersions?.offer(query, response)
+            }
+            if (mount != null) {
+                knownLayouts[query.pathWithParams] = mount.isWrappedData(query.path)
+            } else {
+                knownLayouts.remove(query.pathWithParams)
+            }
+            return response
+        }
+
+        private fun read(mount: VaultMountTables.Mount?, path: String, version: String?): VaultResponse? {
+            val dataPath = mount?.getDataPath(path) ?: path.removePrefix("/")
+            return client.read(dataPath + (version?.let { "${VaultQuery.PARAMS_PREFIX}${VaultQuery.VERSION_PARAM}=$it" } ?: ""))
+        }
+
         private fun getErrorMessage(path: String) = "Failed to fetch data for path '$path'"
 
         private fun getReplacements(parameters: Collection<VaultQuery>, responses: HashMap<String, HashiCorpVaultResponse<Exception, VaultResponse>>): ResolvingResult {
             val replacements = HashMap<String, String>()
             val errors = HashMap<String, String>()
+            val expansions = HashMap<String, Map<String, String>>()
+            val unavailable = HashSet<String>()
 
             for (parameter in parameters) {
                 val response = responses[parameter.shorten.pathWithParams]
                 when (response) {
                     is Response -> {
                         try {
-                            val value = extract(response.value, parameter)
-                            replacements[parameter.full] = value
+                            if (parameter.isFolder) {
+                                expansions[parameter.full] = expandFolder(response.value, parameter)
+                            } else if (parameter.isMultiKey) {
+                                expansions[parameter.full] = expand(unwrap(response.value.data, parameter), parameter)
+                            } else {
+                                replacements[parameter.full] = extract(response.value, parameter)
+                            }
                         } catch (e: ResolvingError) {
                             errors[parameter.full] = e.message!!
                         }
                     }
 
-                    is Error -> errors[parameter.full] = "Failed to fetch data for path ${parameter.full}: ${response.value.message}"
+                    is Error -> {
+                        errors[parameter.full] = "Failed to fetch data for path ${parameter.full}: ${response.value.message}"
+                        if (isVaultUnavailable(response.value)) {
+                            unavailable += parameter.full
+                        }
+                    }
                     else -> errors[parameter.full] = "Failed to fetch data for path ${parameter.full}"
                 }
             }
-            return ResolvingResult(replacements, errors)
+            return ResolvingResult(replacements, errors, expansions, unavailable)
         }
 
+        /**
+         * @return values of all the folder secrets, keys are relative secret paths joined by dots,
+         * followed by the secret keys for multi-key queries
+         */
         @Throws(ResolvingError::class)
-        private fun extract(response: VaultResponse, parameter: VaultQuery): String {
+        private fun expandFolder(response: VaultResponse, parameter: VaultQuery): Map<String, String> {
+            val result = LinkedHashMap<String, String>()
+            response.data.forEach { (leaf, leafData) ->
+                @Suppress("UNCHECKED_CAST")
+                val data = unwrap(leafData as Map<String, Any>, parameter)
+                val prefix = leaf.replace('/', '.')
+                val leafQuery = parameter.copy(vaultPath = parameter.vaultPath + leaf)
+                if (parameter.isMultiKey) {
+                    expand(data, leafQuery).forEach { (key, value) -> result["$prefix.$key"] = value }
+                } else {
+                    result[prefix] = extract(data, leafQuery)
+                }
+            }
+            return result
+        }
+
+        /**
+         * @return all the selected keys of the secret, nested maps and lists are flattened with keys joined by dots
+         */
+        @Throws(ResolvingError::class)
+        private fun expand(data: Map<String, Any>, parameter: VaultQuery): Map<String, String> {
+            val result = LinkedHashMap<String, String>()
+            val selectedKeys = parameter.selectedKeys
+            if (selectedKeys == null) {
+                flatten("", data, result)
+            } else {
+                for (key in selectedKeys) {
+                    val value = data[key] ?: throw ResolvingError("'$key' is missing in HashiCorp Vault response for '${parameter.vaultPath}'")
+                    flatten(key, value, result)
+                }
+            }
+            if (result.isEmpty()) {
+                throw ResolvingError("There's no data in HashiCorp Vault response for '${parameter.vaultPath}'")
+            }
+            return result
+        }
+
+        private fun flatten(prefix: String, value: Any?, result: MutableMap<String, String>) {
+            fun child(key: Any?) = if (prefix.isEmpty()) key.toString() else "$prefix.$key"
+            when (value) {
+                null -> {}
+                is Map<*, *> -> value.forEach { (key, nested) -> flatten(child(key), nested, result) }
+                is List<*> -> value.forEachIndexed { index, nested -> flatten(child(index), nested, result) }
+                else -> result[prefix] = value.toString()
+            }
+        }
+
+        @Throws(ResolvingError::class)
+        private fun extract(response: VaultResponse, parameter: VaultQuery): String = extract(unwrap(response.data, parameter), parameter)
+
+        @Throws(ResolvingError::class)
+        private fun extract(data: Map<String, Any>, parameter: VaultQuery): String {
             val jsonPath = parameter.jsonPath
-            val data = unwrapKV2IfNeeded(response.data)
             if (jsonPath == null) {
                 if (data.isEmpty()) {
                     throw ResolvingError("There's no data in HashiCorp Vault response for '${parameter.vaultPath}'")
@@ -166,6 +372,15 @@ open class VaultResolver(private val trustStoreProvider: SSLTrustStoreProvider)
             }
         }
 
+        private fun unwrap(data: Map<String, Any>, parameter: VaultQuery): Map<String, Any> {
+            @Suppress("UNCHECKED_CAST")
+            return when (knownLayouts[parameter.shorten.pathWithParams]) {
+                true -> data[DATA_KEY] as? Map<String, Any> ?: emptyMap()
+                false -> data
+                null -> unwrapKV2IfNeeded(data)
+            }
+        }
+
         private fun unwrapKV2IfNeeded(data: Map<String, Any>): Map<String, Any> {
             if (isKV2Data(data)) {
                 @Suppress("UNCHECKED_CAST")
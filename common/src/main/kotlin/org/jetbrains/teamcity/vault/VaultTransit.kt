@@ -0,0 +1,56 @@
+package org.jetbrains.teamcity.vault
+
+import org.jetbrains.teamcity.vault.support.VaultTemplate
+import org.springframework.http.HttpEntity
+import org.springframework.vault.support.VaultResponse
+
+/**
+ * Batch decryption with the Transit secrets engine.
+ *
+ * All `write:<mount>/decrypt/<key>?ciphertext=...` queries for the same key are decrypted with a single request using `batch_input`,
+ * each query gets a response shaped like the response of a single decryption request.
+ */
+object VaultTransit {
+    private const val DECRYPT_SEGMENT = "decrypt"
+    private const val CIPHERTEXT_KEY = "ciphertext"
+    private const val CONTEXT_KEY = "context"
+    private const val PLAINTEXT_KEY = "plaintext"
+    private const val ERROR_KEY = "error"
+    private const val BATCH_INPUT_KEY = "batch_input"
+    private const val BATCH_RESULTS_KEY = "batch_results"
+
+    fun isDecryptQuery(query: VaultQuery.Shorten): Boolean {
+        val segments = query.path.trim('/').split('/')
+        return segments.size >= 3 && segments[segments.size - 2] == DECRYPT_SEGMENT && segments.last().isNotEmpty() &&
+                query.extractedParams?.containsKey(CIPHERTEXT_KEY) == true
+    }
+
+    /**
+     * Decrypts ciphertexts of the queries sharing the same [path]
+     *
+     * @return response for every query, items which failed to decrypt are reported as errors
+     */
+    fun decrypt(client: VaultTemplate, path: String, queries: List<VaultQuery.Shorten>): Map<VaultQuery.Shorten, HashiCorpVaultResponse<Exception, VaultResponse>> {
+        val batchInput = queries.map { query ->
+            query.extractedParams.orEmpty().filterKeys { it == CIPHERTEXT_KEY || it == CONTEXT_KEY }
+        }
+        val response = client.write(path.removePrefix("/"), HttpEntity(mapOf(BATCH_INPUT_KEY to batchInput)))
+        val results = response?.data?.get(BATCH_RESULTS_KEY) as? List<*>
+        if (results == null || results.size != queries.size) {
+            throw IllegalStateException("Unexpected HashiCorp Vault batch decryption response for '$path': " +
+                    "expected ${queries.size} results, got ${results?.size ?: "none"}")
+        }
+
+        return queries.indices.associate { i ->
+            val result = results[i] as? Map<*, *>
+            val plaintext = result?.get(PLAINTEXT_KEY) as? String
+            queries[i] to if (plaintext != null) {
+                val itemResponse = VaultResponse()
+                itemResponse.data = mapOf(PLAINTEXT_KEY to plaintext)
+                Response(itemResponse)
+            } else {
+                Error(result?.get(ERROR_KEY) as? String ?: "No plaintext in HashiCorp Vault batch decryption response for '${queries[i].pathWithParams}'")
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.jetbrains.teamcity.vault
+
+import org.springframework.vault.support.VaultResponse
+
+/**
+ * Allows reusing responses of write engines (dynamic credentials) instead of writing to HashiCorp Vault on every fetch.
+ */
+interface WriteEngineCache {
+    /**
+     * @return previously obtained response for the query which is still good to use, or null if Vault should be called
+     */
+    fun acquire(query: VaultQuery.Shorten): VaultResponse?
+
+    /**
+     * Called with every response obtained from Vault for a write engine query
+     *
+     * @return true if the cache took over the response lease, so it must not be managed by anybody else
+     */
+    fun offer(query: VaultQuery.Shorten, response: VaultResponse): Boolean
+}
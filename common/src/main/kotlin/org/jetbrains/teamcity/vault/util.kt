@@ -24,7 +24,10 @@ import org.springframework.vault.support.VaultResponse
 import org.springframework.web.client.HttpStatusCodeException
 import org.springframework.web.client.RestTemplate
 import org.springframework.web.util.DefaultUriTemplateHandler
+import java.io.File
 import java.net.URI
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
 import java.time.Duration
 
 fun isDefault(namespace: String): Boolean {
@@ -164,4 +167,24 @@ fun <T> BuildProgressLogger.activity(activityName: String, activityType: String,
     } finally {
         this.activityFinished(activityName, activityType)
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Replaces [file] with a new file which is readable and writable by its owner only from the moment it's created,
+ * so other users can't open it before [bytes] are written. Permissions are restricted right after creation
+ * on file systems without POSIX permissions.
+ */
+fun writeOwnerOnly(file: File, bytes: ByteArray) {
+    val path = file.toPath()
+    Files.deleteIfExists(path)
+    if ("posix" in path.fileSystem.supportedFileAttributeViews()) {
+        Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+    } else {
+        Files.createFile(path)
+        file.setReadable(false, false)
+        file.setReadable(true, true)
+        file.setWritable(false, false)
+        file.setWritable(true, true)
+    }
+    Files.write(path, bytes)
+}
@@ -0,0 +1,287 @@
+package org.jetbrains.teamcity.vault
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import jetbrains.buildServer.BaseTestCase
+import org.testng.Assert.*
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.Test
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.InputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class VaultEventSubscriberTest : BaseTestCase() {
+    private val settings = VaultFeatureSettings("http://localhost:8200", "")
+    private var server: ServerSocket? = null
+    private var subscriber: VaultEventSubscriber? = null
+
+    @Test
+    fun testChangedPaths() {
+        val event = jacksonObjectMapper().readValue(EVENT, Map::class.java)
+        assertEquals(VaultEventSubscriber.getChangedPaths(event), setOf("secret/data/app/db", "secret/app/db"))
+    }
+
+    @Test
+    fun testChangedPathsOfUnknownEvent() {
+        assertEquals(VaultEventSubscriber.getChangedPaths(mapOf("data" to mapOf("event_type" to "kv-v2/data-write"))), emptySet<String>())
+    }
+
+    @Test
+    fun testNegativeCacheInvalidated() {
+        val cache = VaultNegativeCache()
+        val scope = cache.forScope("project1/", settings, false)!!
+        val changed = VaultQuery.extract("/secret/app/db!/password").shorten
+        val other = VaultQuery.extract("secret/app/web!/password").shorten
+        scope.put(changed, "missing")
+        scope.put(other, "missing")
+
+        cache.invalidate(VaultEventSubscriber.getConnectionKey(settings), setOf("secret/data/app/db", "secret/app/db"))
+
+        assertNull(scope.get(changed))
+        assertNotNull(scope.get(other))
+    }
+
+    @AfterMethod
+    fun stopServer() {
+        subscriber?.shutdown()
+        server?.close()
+    }
+
+    @Test
+    fun testFragmentedEventReceived() {
+        val connection = startSubscription("token1")
+        val events = LinkedBlockingQueue<String>()
+        subscriber!!.addListener(recordingListener(events))
+
+        val client = connection.accept()
+        assertEquals(client.token, "token1")
+        assertEquals(client.path, "/v1/sys/events/subscribe/kv-v2/data-*?json=true")
+        awaitSubscribed()
+
+        val event = EVENT.trimIndent().toByteArray()
+        client.writeFrame(0x1, event.copyOfRange(0, 100), fin = false)
+        // control frames may be interleaved with fragments of a message
+        client.writeFrame(0x9, "ping".toByteArray())
+        client.writeFrame(0x0, event.copyOfRange(100, 200), fin = false)
+        client.writeFrame(0x0, event.copyOfRange(200, event.size))
+
+        assertEquals(client.readFrame(), 0xA to "ping")
+        assertEquals(events.poll(10, TimeUnit.SECONDS), "changed [secret/app/db, secret/data/app/db]")
+        client.close()
+    }
+
+    @Test
+    fun testReconnectedWithLatestTokenAfterClose() {
+        val connection = startSubscription("token1")
+        val events = LinkedBlockingQueue<String>()
+        subscriber!!.addListener(recordingListener(events))
+
+        val first = connection.accept()
+        awaitSubscribed()
+        // e.g. the first token was revoked at build finish and another build uses the connection
+        subscriber!!.subscribe(connectionSettings(), "token2")
+        first.writeFrame(0x8, byteArrayOf(0x03, 0xE8.toByte()))
+
+        assertEquals(first.readFrame(), 0x8 to String(byteArrayOf(0x03, 0xE8.toByte()), Charsets.ISO_8859_1))
+        assertEquals(events.poll(10, TimeUnit.SECONDS), "missed")
+        assertFalse(subscriber!!.isSubscribed(connectionSettings()))
+
+        val second = connection.accept()
+        assertEquals(second.token, "token2")
+        awaitSubscribed()
+        second.close()
+        first.close()
+    }
+
+    @Test
+    fun testRejectedTokenNotRetried() {
+        val connection = startSubscription("revoked")
+
+        connection.accept(status = "403 Forbidden").close()
+        awaitCondition { !subscriber!!.isSubscribed(connectionSettings()) }
+        connection.server.soTimeout = 2000
+        subscriber!!.subscribe(connectionSettings(), "revoked")
+        try {
+            connection.accept()
+            fail("Subscription with the rejected token must not be retried")
+        } catch (e: java.net.SocketTimeoutException) {
+            // expected
+        }
+
+        subscriber!!.subscribe(connectionSettings(), "token2")
+        connection.server.soTimeout = 10000
+        val client = connection.accept()
+        assertEquals(client.token, "token2")
+        client.close()
+    }
+
+    @Test
+    fun testTooLargeMessageStopsSubscription() {
+        setInternalProperty(VaultEventSubscriber.MAX_MESSAGE_BYTES_PARAM, "100")
+        val connection = startSubscription("token1")
+        val events = LinkedBlockingQueue<String>()
+        subscriber!!.addListener(recordingListener(events))
+
+        val client = connection.accept()
+        awaitSubscribed()
+        // every fragment fits, the message doesn't
+        client.writeFrame(0x1, ByteArray(60), fin = false)
+        client.writeFrame(0x0, ByteArray(60))
+
+        assertEquals(events.poll(10, TimeUnit.SECONDS), "missed")
+        assertFalse(subscriber!!.isSubscribed(connectionSettings()))
+        connection.server.soTimeout = 2000
+        try {
+            connection.accept()
+            fail("Subscription stopped because of a too large message must not reconnect")
+        } catch (e: java.net.SocketTimeoutException) {
+            // expected
+        }
+        client.close()
+    }
+
+    @Test
+    fun testSubscribedOnlyForScopeOfToken() {
+        val connection = startSubscription("token1", "project1")
+        val client = connection.accept()
+        awaitSubscribed()
+
+        assertTrue(subscriber!!.isSubscribed(connectionSettings(), "project1"))
+        // the token of another project may not see the paths of this one
+        assertFalse(subscriber!!.isSubscribed(connectionSettings(), "project2"))
+        client.close()
+    }
+
+    private fun startSubscription(token: String, scope: String? = null): Connection {
+        setInternalProperty(VaultEventSubscriber.ENABLED_PARAM, "true")
+        val serverSocket = ServerSocket(0, 10, InetAddress.getLoopbackAddress()).also { it.soTimeout = 10000 }
+        server = serverSocket
+        subscriber = VaultEventSubscriber(EmptyTrustStoreProvider).also { it.subscribe(connectionSettings(), token, scope) }
+        return Connection(serverSocket)
+    }
+
+    private fun connectionSettings() = VaultFeatureSettings("http://127.0.0.1:${server!!.localPort}", "")
+
+    private fun awaitSubscribed() = awaitCondition { subscriber!!.isSubscribed(connectionSettings()) }
+
+    private fun awaitCondition(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) fail("Condition was not met in time")
+            Thread.sleep(10)
+        }
+    }
+
+    private fun recordingListener(events: MutableCollection<String>) = object : VaultEventSubscriber.Listener {
+        override fun onSecretChanged(connection: String, paths: Set<String>) {
+            events += "changed ${paths.sorted()}"
+        }
+
+        override fun onEventsMissed(connection: String) {
+            events += "missed"
+        }
+    }
+
+    private object EmptyTrustStoreProvider : jetbrains.buildServer.util.ssl.SSLTrustStoreProvider {
+        override fun getTrustStore(): java.security.KeyStore? = null
+    }
+
+    /**
+     * Minimal WebSocket server side of the events subscription
+     */
+    private class Connection(val server: ServerSocket) {
+        fun accept(status: String = "101 Switching Protocols"): Client {
+            val socket = server.accept()
+            val input = DataInputStream(socket.getInputStream())
+            val requestLine = readLine(input)
+            val headers = generateSequence { readLine(input).takeIf { it.isNotEmpty() } }
+                .associate { it.substringBefore(':').trim().lowercase() to it.substringAfter(':').trim() }
+            val output = DataOutputStream(socket.getOutputStream())
+            val accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                .digest((headers["sec-websocket-key"] + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").toByteArray()))
+            output.write(("HTTP/1.1 $status\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: $accept\r\n\r\n").toByteArray())
+            output.flush()
+            return Client(socket, input, output, requestLine.split(' ')[1], headers["x-vault-token"])
+        }
+
+        private fun readLine(input: InputStream): String {
+            val line = StringBuilder()
+            while (true) {
+                val c = input.read()
+                if (c < 0 || c == '\n'.code) return line.toString().trimEnd('\r')
+                line.append(c.toChar())
+            }
+        }
+    }
+
+    private class Client(private val socket: Socket, private val input: DataInputStream, private val output: DataOutputStream,
+                         val path: String, val token: String?) {
+        // server frames are not masked
+        fun writeFrame(opcode: Int, payload: ByteArray, fin: Boolean = true) {
+            output.write((if (fin) 0x80 else 0) or opcode)
+            if (payload.size < 126) {
+                output.write(payload.size)
+            } else {
+                output.write(126)
+                output.writeShort(payload.size)
+            }
+            output.write(payload)
+            output.flush()
+        }
+
+        /**
+         * @return opcode and unmasked payload of a client frame
+         */
+        fun readFrame(): Pair<Int, String> {
+            socket.soTimeout = 10000
+            val opcode = input.readUnsignedByte() and 0x0F
+            val second = input.readUnsignedByte()
+            assertTrue(second and 0x80 != 0, "Client frames must be masked")
+            val mask = ByteArray(4).also { input.readFully(it) }
+            val payload = ByteArray(second and 0x7F).also { input.readFully(it) }
+            payload.indices.forEach { payload[it] = (payload[it].toInt() xor mask[it % 4].toInt()).toByte() }
+            return opcode to String(payload, Charsets.ISO_8859_1)
+        }
+
+        fun close() = socket.close()
+    }
+
+    companion object {
+        private const val EVENT = """
+            {
+              "id": "a3be9fb1-b514-519f-5b25-b6f144a8c1ce",
+              "source": "https://vaultproject.io/",
+              "specversion": "1.0",
+              "type": "*",
+              "data": {
+                "event": {
+                  "id": "a3be9fb1-b514-519f-5b25-b6f144a8c1ce",
+                  "metadata": {
+                    "current_version": "2",
+                    "data_path": "secret/data/app/db",
+                    "modified": "true",
+                    "oldest_version": "0",
+                    "operation": "data-write",
+                    "path": "secret/data/app/db"
+                  }
+                },
+                "event_type": "kv-v2/data-write",
+                "plugin_info": {
+                  "mount_class": "secret",
+                  "mount_accessor": "kv_5dc4d18e",
+                  "mount_path": "secret/",
+                  "plugin": "kv"
+                }
+              },
+              "datacontentype": "application/cloudevents",
+              "time": "2024-01-01T00:00:00.000Z"
+            }
+        """
+    }
+}
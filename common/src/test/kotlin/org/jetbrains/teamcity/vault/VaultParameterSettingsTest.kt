@@ -35,6 +35,21 @@ class VaultParameterSettingsTest {
         Assert.assertEquals(FeatureSettings.DEFAULT_ID, settings.namespace)
     }
 
+    @Test
+    fun testExpandedParameterName() {
+        val settings = VaultParameterSettings(TEST_NAMESPACE, "secret/app!/*")
+        Assert.assertEquals(settings.getExpandedParameterName("app", "db.password"), "app.db.password")
+        Assert.assertEquals(settings.getExpandedParameterName("env.APP", "db.password"), "env.APP_DB_PASSWORD")
+
+        val templated = settings.copy(nameTemplate = "env.{KEY}")
+        Assert.assertEquals(templated.getExpandedParameterName("app", "db-host"), "env.DB_HOST")
+    }
+
+    @Test(expectedExceptions = [IllegalArgumentException::class])
+    fun testCreatePojo_NameTemplateWithoutKey() {
+        VaultParameterSettings(getVaultParametersMap(TEST_VAULT_QUERY, TEST_NAMESPACE) + (ParameterSettings.NAME_TEMPLATE to "env.APP"))
+    }
+
     private fun getVaultParametersMap(vaultQuery: String?, id: String?) = buildMap {
         if (vaultQuery != null) put(ParameterSettings.VAULT_QUERY, vaultQuery)
         if (id != null) put(ParameterSettings.VAULT_ID, id)
@@ -111,4 +111,16 @@ class VaultReferencesUtilTest {
     private fun doNamespaceTest(string: String, expected: String) {
         then(VaultReferencesUtil.getNamespace(string)).isEqualTo(expected)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testReachableReferences() {
+        val parameters = mapOf(
+            "db.password" to "%vault:/db!/password%",
+            "db.url" to "jdbc:%db.host%/%vault:first:/db!/name%",
+            "db.host" to "localhost",
+            "unused" to "%vault:/unused!/value%"
+        )
+        val references = VaultReferencesUtil.collectReachable(listOf("--password %db.password% --url %db.url%"), parameters, listOf("", "first"))
+        then(references).containsOnly("vault:/db!/password", "vault:first:/db!/name")
+    }
+}
@@ -1,6 +1,7 @@
 package org.jetbrains.teamcity.vault
 
 import assertk.assertions.contains
+import assertk.assertions.containsOnly
 import assertk.assertions.isEmpty
 import assertk.assertions.isNotEmpty
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
@@ -8,6 +9,7 @@ import jetbrains.buildServer.BaseTestCase
 import org.jetbrains.teamcity.vault.VaultResolver.VaultParametersFetcher
 import org.jetbrains.teamcity.vault.support.VaultTemplate
 import org.mockito.Mockito
+import org.springframework.http.HttpEntity
 import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import org.springframework.vault.support.VaultResponse
@@ -66,6 +68,218 @@ class VaultResolverTest : BaseTestCase(){
         assertk.assertThat(replacements).contains("/$PATH" to VALUE)
     }
 
+    @Test
+    fun testFetch_WriteEngineCache() {
+        val query = VaultQuery(PATH, null, true)
+        val cached = VaultResponse()
+        cached.data = mapOf(VaultResolver.DATA_KEY to VALUE)
+        val offered = ArrayList<VaultQuery.Shorten>()
+        val cache = object : WriteEngineCache {
+            override fun acquire(query: VaultQuery.Shorten): VaultResponse? = if (offered.isEmpty()) null else cached
+            override fun offer(query: VaultQuery.Shorten, response: VaultResponse): Boolean {
+                offered += query
+                return true
+            }
+        }
+        Mockito.`when`(vaultTemplate.write(Mockito.eq(PATH), Mockito.any())).thenReturn(cached)
+        val fetcher = VaultParametersFetcher(vaultTemplate, writeEngineCache = cache)
+
+        fetcher.doFetchAndPrepareReplacements(listOf(query))
+        val (replacements, errors) = fetcher.doFetchAndPrepareReplacements(listOf(query))
+
+        assertk.assertThat(errors).isEmpty()
+        assertk.assertThat(replacements).contains("/$PATH" to VALUE)
+        assertEquals(offered, listOf(query.shorten))
+        Mockito.verify(vaultTemplate, Mockito.times(1)).write(Mockito.eq(PATH), Mockito.any())
+    }
+
+    @Test
+    fun testFetch_LeaseListener() {
+        val query = VaultQuery(PATH, null)
+        val response = VaultResponse()
+        response.data = mapOf(VaultResolver.DATA_KEY to VALUE)
+        response.leaseId = "database/creds/role/abc"
+        val leases = ArrayList<String>()
+        val listener = object : VaultLeaseListener {
+            override fun onLease(query: VaultQuery.Shorten, response: VaultResponse) {
+                leases += response.leaseId!!
+            }
+        }
+        Mockito.`when`(vaultTemplate.read(PATH)).thenReturn(response)
+        val fetcher = VaultParametersFetcher(vaultTemplate, leaseListener = listener)
+
+        val (replacements, errors) = fetcher.doFetchAndPrepareReplacements(listOf(query))
+
+        assertk.assertThat(errors).isEmpty()
+        assertk.assertThat(replacements).contains("/$PATH" to VALUE)
+        assertEquals(leases, listOf("database/creds/role/abc"))
+    }
+
+    @Test
+    fun testFetch_TransitBatchDecrypt() {
+        val first = VaultQuery.extract("write:transit/decrypt/key?ciphertext=vault:v1:Zmlyc3Q=", true)
+        val second = VaultQuery.extract("write:transit/decrypt/key?ciphertext=vault:v1:c2Vjb25k", true)
+        Mockito.`when`(vaultTemplate.write(Mockito.eq("transit/decrypt/key"), Mockito.any())).thenAnswer { invocation ->
+            @Suppress("UNCHECKED_CAST")
+            val batchInput = (invocation.getArgument<HttpEntity<Map<String, Any>>>(1).body!!["batch_input"]) as List<Map<String, String>>
+            val response = VaultResponse()
+            response.data = mapOf("batch_results" to batchInput.map {
+                val ciphertext = it.getValue("ciphertext")
+                if (ciphertext == "vault:v1:Zmlyc3Q=") mapOf("plaintext" to "Zmlyc3Q=") else mapOf("error" to "cipher: message authentication failed")
+            })
+            response
+        }
+
+        val (replacements, errors) = vaultParametersFetcher.doFetchAndPrepareReplacements(listOf(first, second))
+
+        assertk.assertThat(replacements).contains(first.full to "Zmlyc3Q=")
+        assertEquals(errors.keys, setOf(second.full))
+        Mockito.verify(vaultTemplate, Mockito.times(1)).write(Mockito.eq("transit/decrypt/key"), Mockito.any())
+    }
+
+    @Test
+    fun testFetch_MultiKey() {
+        val all = VaultQuery.extract("$PATH!/*")
+        val selected = VaultQuery.extract("$PATH!/{user, db}")
+        val response = VaultResponse()
+        response.data = mapOf("user" to "admin", "port" to 5432, "db" to mapOf("host" to "localhost", "replicas" to listOf("r1", "r2")))
+        Mockito.`when`(vaultTemplate.read(PATH)).thenReturn(response)
+
+        val result = vaultParametersFetcher.doFetchAndPrepareReplacements(listOf(all, selected))
+
+        assertk.assertThat(result.errors).isEmpty()
+        assertEquals(result.expansions[all.full], mapOf("user" to "admin", "port" to "5432", "db.host" to "localhost", "db.replicas.0" to "r1", "db.replicas.1" to "r2"))
+        assertEquals(result.expansions[selected.full], mapOf("user" to "admin", "db.host" to "localhost", "db.replicas.0" to "r1", "db.replicas.1" to "r2"))
+        Mockito.verify(vaultTemplate, Mockito.times(1)).read(PATH)
+    }
+
+    @Test
+    fun testFetch_MultiKeyMissingKey() {
+        val query = VaultQuery.extract("$PATH!/{user,missing}")
+        val response = VaultResponse()
+        response.data = mapOf("user" to "admin")
+        Mockito.`when`(vaultTemplate.read(PATH)).thenReturn(response)
+
+        val result = vaultParametersFetcher.doFetchAndPrepareReplacements(listOf(query))
+
+        assertEquals(result.errors.keys, setOf(query.full))
+        assertk.assertThat(result.expansions).isEmpty()
+    }
+
+    @Test
+    fun testFetch_Folder() {
+        val query = VaultQuery.extract("secret/data/teams/")
+        Mockito.`when`(vaultTemplate.list("secret/metadata/teams/")).thenReturn(listOf("a", "sub/"))
+        Mockito.`when`(vaultTemplate.list("secret/metadata/teams/sub/")).thenReturn(listOf("b"))
+        Mockito.`when`(vaultTemplate.read("secret/data/teams/a")).thenReturn(VaultResponse().apply { data = mapOf("value" to "first") })
+        Mockito.`when`(vaultTemplate.read("secret/data/teams/sub/b")).thenReturn(VaultResponse().apply { data = mapOf("password" to "second") })
+
+        val result = vaultParametersFetcher.doFetchAndPrepareReplacements(listOf(query))
+
+        assertk.assertThat(result.errors).isEmpty()
+        assertEquals(result.expansions[query.full], mapOf("a" to "first", "sub.b" to "second"))
+    }
+
+    @Test
+    fun testFetch_FolderTooLarge() {
+        val query = VaultQuery.extract("kv/teams/")
+        Mockito.`when`(vaultTemplate.list("kv/teams/")).thenReturn((0..1000).map { "secret$it" })
+
+        val result = vaultParametersFetcher.doFetchAndPrepareReplacements(listOf(query))
+
+        assertEquals(result.errors.keys, setOf(query.full))
+        Mockito.verify(vaultTemplate, Mockito.never()).read(Mockito.anyString())
+    }
+
+    @Test
+    fun testFetch_MountTableRewritesKV2Paths() {
+        val mounts = VaultMountTables().forConnection(VaultFeatureSettings("http://localhost:8200", ""), vaultTemplate)
+        val fetcher = VaultParametersFetcher(vaultTemplate, mounts = mounts)
+        Mockito.`when`(vaultTemplate.read("sys/internal/ui/mounts")).thenReturn(VaultResponse().apply {
+            data = mapOf("secret" to mapOf(
+                "secret/" to mapOf("type" to "kv", "options" to mapOf("version" to "2")),
+                "kv/" to mapOf("type" to "kv", "options" to mapOf("version" to "1"))
+            ))
+        })
+        Mockito.`when`(vaultTemplate.read("secret/data/app")).thenReturn(kv2Response(VALUE))
+        Mockito.`when`(vaultTemplate.read("secret/data/app?version=2")).thenReturn(kv2Response("old"))
+        Mockito.`when`(vaultTemplate.read("kv/app")).thenReturn(VaultResponse().apply { data = mapOf("value" to "kv1") })
+
+        val latest = VaultQuery.extract("secret/app!/value")
+        val pinned = VaultQuery.extract("secret/app!/value?version=2")
+        val kv1 = VaultQuery.extract("kv/app")
+        val (replacements, errors) = fetcher.doFetchAndPrepareReplacements(listOf(latest, pinned, kv1))
+
+        assertk.assertThat(errors).isEmpty()
+        assertEquals(replacements, mapOf(latest.full to VALUE, pinned.full to "old", kv1.full to "kv1"))
+        Mockito.verify(vaultTemplate, Mockito.times(1)).read("sys/internal/ui/mounts")
+    }
+
+    @Test
+    fun testFetch_PinnedVersionCached() {
+        val pinnedVersions = VaultPinnedVersionsCache().forScope(VaultPinnedVersionsCache.getScope("project1", ""), VaultFeatureSettings("http://localhost:8200", ""))
+        val fetcher = VaultParametersFetcher(vaultTemplate, pinnedVersions = pinnedVersions)
+        Mockito.`when`(vaultTemplate.read("secret/data/app?version=3")).thenReturn(kv2Response(VALUE))
+        val pinned = VaultQuery.extract("secret/data/app@3!/value")
+        val latest = VaultQuery.extract("secret/data/app!/value")
+        Mockito.`when`(vaultTemplate.read("secret/data/app")).thenReturn(kv2Response("latest"))
+
+        repeat(2) {
+            val (replacements, errors) = fetcher.doFetchAndPrepareReplacements(listOf(pinned, latest))
+            assertk.assertThat(errors).isEmpty()
+            assertEquals(replacements, mapOf(pinned.full to VALUE, latest.full to "latest"))
+        }
+        Mockito.verify(vaultTemplate, Mockito.times(1)).read("secret/data/app?version=3")
+        Mockito.verify(vaultTemplate, Mockito.times(2)).read("secret/data/app")
+    }
+
+    @Test
+    fun testFetch_MissingPathCached() {
+        val settings = VaultFeatureSettings("http://localhost:8200", "")
+        val cache = VaultNegativeCache()
+        val scope = VaultPinnedVersionsCache.getScope("project1", "")
+        val missing = VaultQuery.extract("$PATH/missing!/value")
+
+        repeat(2) {
+            val (_, errors) = VaultParametersFetcher(vaultTemplate, negativeCache = cache.forScope(scope, settings, false))
+                .doFetchAndPrepareReplacements(listOf(missing))
+            assertk.assertThat(errors.keys).containsOnly(missing.full)
+        }
+        Mockito.verify(vaultTemplate, Mockito.times(1)).read("$PATH/missing")
+
+        // explicit retry reads the path again
+        Mockito.`when`(vaultTemplate.read("$PATH/missing")).thenReturn(VaultResponse().apply { data = mapOf("value" to VALUE) })
+        val (replacements, errors) = VaultParametersFetcher(vaultTemplate, negativeCache = cache.forScope(scope, settings, true))
+            .doFetchAndPrepareReplacements(listOf(missing))
+        assertk.assertThat(errors).isEmpty()
+        assertEquals(replacements, mapOf(missing.full to VALUE))
+        assertEquals(cache.size(), 0)
+    }
+
+    @Test
+    fun testFetch_ForbiddenPathNotCached() {
+        val settings = VaultFeatureSettings("http://localhost:8200", "")
+        val cache = VaultNegativeCache()
+        val scope = VaultPinnedVersionsCache.getScope("project1", "")
+        val forbidden = VaultQuery.extract("$PATH/forbidden!/value")
+        Mockito.`when`(vaultTemplate.read("$PATH/forbidden"))
+            .thenThrow(HttpClientErrorException.create(HttpStatus.FORBIDDEN, "permission denied", HttpHeaders.EMPTY, byteArrayOf(), Charset.defaultCharset()))
+
+        repeat(2) {
+            val (_, errors) = VaultParametersFetcher(vaultTemplate, negativeCache = cache.forScope(scope, settings, false))
+                .doFetchAndPrepareReplacements(listOf(forbidden))
+            assertk.assertThat(errors.keys).containsOnly(forbidden.full)
+        }
+        // another token of the connection may be allowed to read the path
+        Mockito.verify(vaultTemplate, Mockito.times(2)).read("$PATH/forbidden")
+        assertEquals(cache.size(), 0)
+    }
+
+    private fun kv2Response(value: String) = VaultResponse().apply {
+        data = mapOf("data" to mapOf("value" to value),
+            "metadata" to mapOf("created_time" to "2024-01-01T00:00:00Z", "deletion_time" to "", "destroyed" to false, "version" to 1))
+    }
+
     companion object {
         const val PATH = "path"
         const val VALUE = "value"
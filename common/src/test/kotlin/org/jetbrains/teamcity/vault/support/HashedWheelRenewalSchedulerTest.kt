@@ -0,0 +1,92 @@
+package org.jetbrains.teamcity.vault.support
+
+import org.springframework.scheduling.Trigger
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.Date
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class HashedWheelRenewalSchedulerTest {
+    private lateinit var scheduler: HashedWheelRenewalScheduler
+
+    @BeforeMethod
+    fun setUp() {
+        scheduler = HashedWheelRenewalScheduler(2, 10)
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        scheduler.destroy()
+    }
+
+    @Test
+    fun testTaskExecuted() {
+        val latch = CountDownLatch(1)
+        scheduler.schedule(Runnable { latch.countDown() }, Date(System.currentTimeMillis() + 50))
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun testKeyedTaskReplacesPrevious() {
+        val first = AtomicInteger()
+        val second = CountDownLatch(1)
+        scheduler.schedule("token", Runnable { first.incrementAndGet() }, Date(System.currentTimeMillis() + 100))
+        scheduler.schedule("token", Runnable { second.countDown() }, Date(System.currentTimeMillis() + 100))
+
+        Assert.assertTrue(second.await(5, TimeUnit.SECONDS))
+        Thread.sleep(200)
+        Assert.assertEquals(first.get(), 0)
+    }
+
+    @Test
+    fun testCancelledTaskNotExecuted() {
+        val executed = AtomicInteger()
+        val future = scheduler.schedule(Runnable { executed.incrementAndGet() }, Date(System.currentTimeMillis() + 100))
+        Assert.assertTrue(future.cancel(false))
+
+        Thread.sleep(300)
+        Assert.assertEquals(executed.get(), 0)
+        Assert.assertEquals(scheduler.pendingCount, 0)
+    }
+
+    @Test
+    fun testCancelledKeyedTaskForgotten() {
+        val future = scheduler.schedule("session", Runnable { }, Date(System.currentTimeMillis() + 60_000))
+        Assert.assertEquals(scheduler.keyedCount, 1)
+
+        Assert.assertTrue(future.cancel(false))
+        Assert.assertEquals(scheduler.keyedCount, 0)
+    }
+
+    @Test
+    fun testTriggeredTaskCancelledAfterFirstRun() {
+        val executed = AtomicInteger()
+        val firstRun = CountDownLatch(1)
+        val trigger = Trigger { context -> Date((context.lastCompletionTime()?.time ?: System.currentTimeMillis()) + 100) }
+        val future = scheduler.schedule(Runnable { executed.incrementAndGet(); firstRun.countDown() }, trigger)!!
+
+        Assert.assertTrue(firstRun.await(5, TimeUnit.SECONDS))
+        Assert.assertTrue(future.cancel(false))
+        val executedBeforeCancel = executed.get()
+
+        Thread.sleep(500)
+        Assert.assertEquals(executed.get(), executedBeforeCancel)
+        Assert.assertEquals(scheduler.pendingCount, 0)
+    }
+
+    @Test
+    fun testSlowTaskDoesNotBlockOthers() {
+        val release = CountDownLatch(1)
+        val fast = CountDownLatch(1)
+        scheduler.schedule(Runnable { release.await(5, TimeUnit.SECONDS) }, Date())
+        scheduler.schedule(Runnable { fast.countDown() }, Date(System.currentTimeMillis() + 50))
+
+        Assert.assertTrue(fast.await(2, TimeUnit.SECONDS))
+        release.countDown()
+    }
+}
@@ -66,10 +66,18 @@ class HashiCorpVaultConnectionResolver(private val connector: VaultConnector) {
         return effectiveFeatures.map { (_, settings) -> settings }
     }
 
+    data class IssuedAgentSettings(val settings: VaultFeatureSettings, val accessor: String?)
+
     fun serverFeatureSettingsToAgentSettings(settings: VaultFeatureSettings, namespace: String, build: SBuild?): VaultFeatureSettings =
+        issueAgentSettings(settings, namespace, build).settings
+
+    /**
+     * Same as [serverFeatureSettingsToAgentSettings], also returns the accessor of the issued token, if any
+     */
+    fun issueAgentSettings(settings: VaultFeatureSettings, namespace: String, build: SBuild?): IssuedAgentSettings =
         if (settings.auth is Auth.AppRoleAuthServer || settings.auth is Auth.LdapServer) {
-            val wrappedToken: String = try {
-                connector.requestWrappedToken(settings)
+            val wrappedToken: LeasedWrappedTokenInfo = try {
+                connector.requestWrappedTokenInfo(settings)
             } catch (e: Throwable) {
                 var message = "Failed to fetch HashiCorp Vault wrapped token: ${e.message}, namespace: $namespace, project feature id: ${settings.id}"
                 if (build != null) {
@@ -79,15 +87,15 @@ class HashiCorpVaultConnectionResolver(private val connector: VaultConnector) {
             }
             val featureSettingsMap = settings.toFeatureProperties().toMutableMap()
             val agentAuth = when (settings.auth) {
-                is Auth.AppRoleAuthServer -> Auth.AppRoleAuthAgent(wrappedToken)
-                is Auth.LdapServer -> Auth.LdapAgent(wrappedToken)
+                is Auth.AppRoleAuthServer -> Auth.AppRoleAuthAgent(wrappedToken.wrapped)
+                is Auth.LdapServer -> Auth.LdapAgent(wrappedToken.wrapped)
                 else -> throw RuntimeException("Settings auth shouldn't change")
             }
 
             agentAuth.toMap(featureSettingsMap)
-            VaultFeatureSettings.getAgentFeatureFromProperties(featureSettingsMap)
+            IssuedAgentSettings(VaultFeatureSettings.getAgentFeatureFromProperties(featureSettingsMap), wrappedToken.accessor)
         } else {
-            settings
+            IssuedAgentSettings(settings, null)
         }
 
     private data class ConnectionDescriptor(val projectId: String, val parameterNamespace: String)
@@ -1,24 +1,20 @@
 package org.jetbrains.teamcity.vault.server
 
 import com.intellij.openapi.diagnostic.Logger
-import com.intellij.openapi.util.text.StringUtil
 import jetbrains.buildServer.log.Loggers
 import jetbrains.buildServer.serverSide.BuildsManager
-import jetbrains.buildServer.serverSide.CustomDataConflictException
-import jetbrains.buildServer.serverSide.CustomDataStorage
 import jetbrains.buildServer.serverSide.IOGuard
 import jetbrains.buildServer.serverSide.ProjectManager
-import jetbrains.buildServer.serverSide.RunningBuildEx
-import jetbrains.buildServer.serverSide.SRunningBuild
 import jetbrains.buildServer.web.util.WebAuthUtil
 import org.apache.commons.lang.StringEscapeUtils
 import org.jetbrains.teamcity.vault.VaultConstants
-import org.jetbrains.teamcity.vault.VaultFeatureSettings
 import org.jetbrains.teamcity.vault.server.HashiCorpVaultConnectionResolver.ParameterNamespaceCollisionException
 import org.springframework.http.HttpStatus
 import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.*
+import org.springframework.web.context.request.async.DeferredResult
 import org.springframework.web.server.ResponseStatusException
+import java.util.concurrent.ConcurrentHashMap
 import javax.servlet.http.HttpServletRequest
 
 @RestController
@@ -27,24 +23,23 @@ class HashicorpVaultConnectionController(
     private val projectManager: ProjectManager,
     private val buildsManager: BuildsManager,
     private val hashiCorpVaultConnectionResolver: HashiCorpVaultConnectionResolver,
+    private val requestExecutor: VaultRequestExecutor,
+    private val tokenGuard: VaultTokenGuard,
+    private val accessorRevoker: VaultAccessorRevoker,
 ) {
     private val LOG = Logger.getInstance("${Loggers.SERVER_CATEGORY}.${HashicorpVaultConnectionController::class.java.name}")
 
-    companion object {
-        private const val STORAGE_ID = "hashicorp-vault-token-generation"
-        private const val IS_GENERATED = "isGenerated"
-    }
-
-    fun getTokenGenerationId(feature: VaultFeatureSettings) = "$STORAGE_ID-${feature.id}"
+    // build id and connection id of the tokens being issued
+    private val issuing: MutableSet<Pair<Long, String>> = ConcurrentHashMap.newKeySet()
 
     @ExceptionHandler(ResponseStatusException::class)
     fun handleResponseStatusException(ex: ResponseStatusException): ResponseEntity<String> {
-        return ResponseEntity(StringEscapeUtils.escapeHtml(ex.reason), ex.status)
+        return ResponseEntity(StringEscapeUtils.escapeHtml(ex.reason), ex.responseHeaders, ex.status)
     }
 
     // http:localhost:8111/bs/app/url/path?namespace=something
     @RequestMapping(VaultConstants.ControllerSettings.WRAP_TOKEN_PATH, method = [RequestMethod.GET], produces = ["application/json"])
-    fun getToken(@RequestParam(name = "namespace") namespace: String, request: HttpServletRequest): Map<String, String> {
+    fun getToken(@RequestParam(name = "namespace") namespace: String, request: HttpServletRequest): DeferredResult<Map<String, String>> {
         val buildId = WebAuthUtil.getAuthenticatedBuildId(request) ?: throw ResponseStatusException(
             HttpStatus.UNAUTHORIZED,
             "No authenticated build has been found. Access to the build tokens is denied."
@@ -61,42 +56,61 @@ class HashicorpVaultConnectionController(
             throw ResponseStatusException(HttpStatus.CONFLICT, "Project connection with ID '$namespace' is declared more than once in the same project")
         } ?: throw ResponseStatusException(HttpStatus.NOT_FOUND, "Project connection with ID '$namespace' not found")
 
-        if (hasTokenBeenGenerated(build, feature)) {
-            val errorMessage = "There has been an attempt to generate a second HashiCorp Vault token for build ${build.buildId} in project ${project.projectId}"
-            LOG.error(errorMessage)
-            throw ResponseStatusException(HttpStatus.UNAUTHORIZED, "A token has already been generated for this build")
+        val issuance = build.buildId to feature.id
+        if (tokenGuard.isAcquired(build, feature.id)) {
+            rejectSecondToken(build.buildId, project.projectId, issuance)
         }
 
-        return try {
-            val agentFeatureSettings = IOGuard.allowNetworkCall<VaultFeatureSettings, Exception> {
-                hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(feature, namespace, build)
+        // Vault login may be slow, it must not occupy the web server thread
+        return requestExecutor.execute(project.projectId, "request token for hashicorp vault namespace ${feature.id} build ${build.buildId} of ${project.projectId}",
+            onAbandoned = {
+                // the request has timed out and the agent retries it, the token it has never received must not block the retry
+                accessorRevoker.revokeNow(build.buildId, feature.id)
+                tokenGuard.release(build, feature.id)
             }
-            agentFeatureSettings.toFeatureProperties()
-        } catch (e: Throwable) {
-            LOG.warnAndDebugDetails("Failed to request token for hashicorp vault namespace ${feature.id} build ${build.buildId} of ${project.projectId}", e)
-            throw ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to request token", e)
-        }
-    }
-
-    private fun hasTokenBeenGenerated(build: SRunningBuild, feature: VaultFeatureSettings): Boolean {
-        (1..3).forEach { attempt ->
-            val customStorage = (build as RunningBuildEx).temporaryCustomDataStorage
-            val tokenGenerationId = getTokenGenerationId(feature)
-            customStorage.refresh()
-            val value = customStorage.getValue(tokenGenerationId)
-            if (!StringUtil.isEmpty(value)) {
-                return true
+        ) {
+            // the token is marked as generated only once the request is admitted, so the agent can retry a rejected request
+            if (!tokenGuard.tryAcquire(build, feature.id)) {
+                rejectSecondToken(build.buildId, project.projectId, issuance)
             }
-
-            customStorage.putValue(tokenGenerationId, IS_GENERATED)
+            issuing.add(issuance)
             try {
-                customStorage.flush(CustomDataStorage.ConflictResolution.FAIL)
-            } catch (e: CustomDataConflictException) {
-                // build storage has been changed by some other node, we need to run refresh again
+                val issued = IOGuard.allowNetworkCall<HashiCorpVaultConnectionResolver.IssuedAgentSettings, Exception> {
+                    hashiCorpVaultConnectionResolver.issueAgentSettings(feature, namespace, build)
+                }
+                // revoked by the server as well, in case the agent is gone before revoking the token itself
+                issued.accessor?.let { accessorRevoker.track(build, feature.id, it) }
+                issued.settings.toFeatureProperties()
+            } catch (e: Exception) {
+                // no token has been issued, the agent may retry
+                tokenGuard.release(build, feature.id)
+                throw e
+            } finally {
+                issuing.remove(issuance)
             }
-            return false
         }
+    }
 
-        return false
+    private fun rejectSecondToken(buildId: Long, projectId: String, issuance: Pair<Long, String>): Nothing {
+        if (issuance in issuing) {
+            // the previous request of the agent has timed out, but its token is still being issued
+            throw VaultRequestExecutor.ServiceUnavailableException("HashiCorp Vault token is being issued, retry later", requestExecutor.getRetryAfterSeconds())
+        }
+        val errorMessage = "There has been an attempt to generate a second HashiCorp Vault token for build $buildId in project $projectId"
+        LOG.error(errorMessage)
+        throw ResponseStatusException(HttpStatus.UNAUTHORIZED, "A token has already been generated for this build")
+    }
+
+    /**
+     * The agent reports it has released the build token of the connection, so the server doesn't revoke it by accessor
+     */
+    @RequestMapping(VaultConstants.ControllerSettings.RELEASE_TOKEN_PATH, method = [RequestMethod.POST])
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    fun tokenReleased(@RequestParam(name = "namespace") namespace: String, request: HttpServletRequest) {
+        val buildId = WebAuthUtil.getAuthenticatedBuildId(request) ?: throw ResponseStatusException(
+            HttpStatus.UNAUTHORIZED,
+            "No authenticated build has been found"
+        )
+        accessorRevoker.untrack(buildId, namespace)
     }
 }
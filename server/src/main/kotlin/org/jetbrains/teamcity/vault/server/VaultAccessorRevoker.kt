@@ -0,0 +1,253 @@
+package org.jetbrains.teamcity.vault.server
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.*
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.FileUtil
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
+import org.jetbrains.teamcity.vault.AuthMethod
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.pluralize
+import org.jetbrains.teamcity.vault.server.HashiCorpVaultConnectionResolver.ParameterNamespaceCollisionException
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.*
+
+/**
+ * Revokes HashiCorp Vault tokens issued for builds by their accessors once the builds finish, unless the agent reported
+ * it released the token itself (see [untrack]). Normally the agent revokes its token, or keeps it for pooled dynamic
+ * credentials which must outlive the build, so only tokens of builds whose agent was lost are revoked here.
+ *
+ * Revocations are queued and sent in bursts, using one renewable server session per project connection.
+ * Accessors of issued tokens are written to a file in the plugin data directory, so that the revocation
+ * is not lost on server restart. The file contains only project ids, connection ids and accessors, no secrets.
+ * The data directory is shared by the server nodes, each node keeps the tokens it has issued in its own file.
+ */
+class VaultAccessorRevoker(
+    dispatcher: EventDispatcher<BuildServerListener>,
+    serverPaths: ServerPaths,
+    private val projectManager: ProjectManager,
+    private val buildsManager: BuildsManager,
+    private val connectionResolver: HashiCorpVaultConnectionResolver,
+    private val trustStoreProvider: SSLTrustStoreProvider,
+    teamCityNodes: TeamCityNodes
+) : BuildServerAdapter() {
+    companion object {
+        private val LOG = Logger.getInstance(Loggers.SERVER_CATEGORY + "." + VaultAccessorRevoker::class.java.name)
+
+        const val ENABLED_PARAM = "teamcity.internal.vault.accessorRevocation.enabled"
+        const val INTERVAL_MILLIS_PARAM = "teamcity.internal.vault.accessorRevocation.intervalMillis"
+        const val BATCH_SIZE_PARAM = "teamcity.internal.vault.accessorRevocation.batchSize"
+        const val THREADS_PARAM = "teamcity.internal.vault.accessorRevocation.threads"
+        const val MAX_ATTEMPTS_PARAM = "teamcity.internal.vault.accessorRevocation.maxAttempts"
+        const val SESSION_IDLE_SECONDS_PARAM = "teamcity.internal.vault.accessorRevocation.sessionIdleSeconds"
+
+        private const val SEPARATOR = "\t"
+    }
+
+    data class PendingRevocation(val buildId: Long, val projectId: String, val namespace: String, val accessor: String) {
+        @Volatile
+        var attempts = 0
+
+        fun serialize() = listOf(buildId.toString(), projectId, namespace, accessor).joinToString(SEPARATOR)
+    }
+
+    private val pendingFile = File(serverPaths.pluginDataDirectory, "hashicorp-vault/pendingRevocations-${teamCityNodes.currentNode.id}.txt")
+
+    // tokens of running builds, revoked when the build finishes
+    private val tracked = ConcurrentHashMap<Long, MutableList<PendingRevocation>>()
+    private val due = ConcurrentLinkedQueue<PendingRevocation>()
+    private val sessions = ConcurrentHashMap<VaultFeatureSettings, VaultRevocationSession>()
+
+    @Volatile
+    private var dirty = false
+    private val scheduler = Executors.newSingleThreadScheduledExecutor(NamedDaemonThreadFactory("HashiCorp Vault accessor revocation"))
+    private val workers = Executors.newFixedThreadPool(TeamCityProperties.getInteger(THREADS_PARAM, 4), NamedDaemonThreadFactory("HashiCorp Vault accessor revocation worker"))
+
+    init {
+        dispatcher.addListener(this)
+    }
+
+    fun track(build: SBuild, namespace: String, accessor: String) {
+        if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PARAM)) return
+        val projectId = build.projectId ?: return
+        tracked.computeIfAbsent(build.buildId) { CopyOnWriteArrayList() } += PendingRevocation(build.buildId, projectId, namespace, accessor)
+        // written to the file with the next flush
+        dirty = true
+    }
+
+    /**
+     * The agent revoked the token of the connection itself or keeps it for pooled credentials, revoking it by accessor
+     * would revoke the leases created with it
+     */
+    fun untrack(buildId: Long, namespace: String) {
+        val revocations = tracked[buildId] ?: return
+        if (revocations.removeIf { it.namespace == namespace }) {
+            dirty = true
+        }
+    }
+
+    /**
+     * The token of the connection has been issued but never delivered to the agent, it is revoked with the next burst
+     */
+    fun revokeNow(buildId: Long, namespace: String) {
+        val revocations = tracked[buildId] ?: return
+        val undelivered = revocations.filter { it.namespace == namespace }
+        if (undelivered.isNotEmpty()) {
+            revocations.removeAll(undelivered)
+            due.addAll(undelivered)
+            dirty = true
+        }
+    }
+
+    fun getPendingCount(): Int = due.size
+
+    fun getTrackedCount(): Int = tracked.values.sumOf { it.size }
+
+    override fun serverStartup() {
+        load()
+        val interval = TeamCityProperties.getLong(INTERVAL_MILLIS_PARAM, 2000)
+        scheduler.scheduleWithFixedDelay({ flush() }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    override fun buildFinished(build: SRunningBuild) {
+        release(build.buildId)
+    }
+
+    override fun buildInterrupted(build: SRunningBuild) {
+        release(build.buildId)
+    }
+
+    override fun serverShutdown() {
+        scheduler.shutdownNow()
+        workers.shutdownNow()
+        // whatever is not revoked yet stays in the file for the next start
+        persist()
+        sessions.values.forEach { it.close() }
+        sessions.clear()
+    }
+
+    private fun release(buildId: Long) {
+        val revocations = tracked.remove(buildId) ?: return
+        due.addAll(revocations)
+        dirty = true
+    }
+
+    /**
+     * Sends a burst of due revocations, grouped by project connection
+     */
+    internal fun flush() {
+        try {
+            if (dirty) persist()
+
+            val batch = ArrayList<PendingRevocation>()
+            val batchSize = TeamCityProperties.getInteger(BATCH_SIZE_PARAM, 100)
+            while (batch.size < batchSize) {
+                batch += due.poll() ?: break
+            }
+            if (batch.isNotEmpty()) {
+                val failed = ConcurrentLinkedQueue<PendingRevocation>()
+                batch.groupBy { it.projectId to it.namespace }
+                    .map { (key, revocations) -> workers.submit { revoke(key.first, key.second, revocations, failed) } }
+                    .forEach { it.get() }
+
+                val maxAttempts = TeamCityProperties.getInteger(MAX_ATTEMPTS_PARAM, 5)
+                failed.forEach {
+                    if (++it.attempts < maxAttempts) due += it
+                    else LOG.warn("Giving up revoking HashiCorp Vault token by accessor '${it.accessor}' of build ${it.buildId} after ${it.attempts} attempts")
+                }
+                persist()
+            }
+
+            closeIdleSessions()
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to revoke HashiCorp Vault tokens by accessors", e)
+        }
+    }
+
+    private fun revoke(projectId: String, namespace: String, revocations: List<PendingRevocation>, failed: MutableCollection<PendingRevocation>) {
+        val connection = findConnection(projectId, namespace)
+        if (connection == null) {
+            LOG.info("HashiCorp Vault connection '$namespace' of project $projectId not found, " +
+                    "${revocations.size} ${"token".pluralize(revocations.size)} won't be revoked by accessor")
+            return
+        }
+        if (connection.auth.method == AuthMethod.GCP_IAM) {
+            return
+        }
+
+        val session = sessions.computeIfAbsent(connection) { VaultRevocationSession(it, trustStoreProvider) }
+        revocations.forEach { revocation ->
+            try {
+                if (!session.revokeAccessor(revocation.accessor)) failed += revocation
+            } catch (e: Exception) {
+                LOG.warnAndDebugDetails("Failed to revoke HashiCorp Vault token by accessor '${revocation.accessor}' of build ${revocation.buildId}", e)
+                failed += revocation
+            }
+        }
+    }
+
+    private fun findConnection(projectId: String, namespace: String): VaultFeatureSettings? {
+        val project = projectManager.findProjectById(projectId) ?: return null
+        return try {
+            connectionResolver.getVaultConnection(project, namespace)
+        } catch (e: ParameterNamespaceCollisionException) {
+            null
+        }
+    }
+
+    private fun closeIdleSessions() {
+        val idle = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(SESSION_IDLE_SECONDS_PARAM, 600))
+        val now = System.currentTimeMillis()
+        sessions.values.filter { now - it.lastUsed > idle }.forEach {
+            sessions.remove(it.settings, it)
+            it.close()
+        }
+    }
+
+    @Synchronized
+    private fun persist() {
+        dirty = false
+        val entries = tracked.values.flatten() + due
+        try {
+            if (entries.isEmpty()) {
+                FileUtil.delete(pendingFile)
+                return
+            }
+            pendingFile.parentFile.mkdirs()
+            val temp = File(pendingFile.parentFile, pendingFile.name + ".tmp")
+            temp.writeText(entries.joinToString("\n", postfix = "\n") { it.serialize() })
+            Files.move(temp.toPath(), pendingFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            dirty = true
+            LOG.warnAndDebugDetails("Failed to store pending HashiCorp Vault token revocations to $pendingFile", e)
+        }
+    }
+
+    private fun load() {
+        if (!pendingFile.isFile) return
+        try {
+            pendingFile.readLines().filter { it.isNotBlank() }.forEach { line ->
+                val parts = line.split(SEPARATOR)
+                val buildId = parts.getOrNull(0)?.toLongOrNull()
+                if (parts.size != 4 || buildId == null) {
+                    LOG.warn("Skipping malformed pending HashiCorp Vault token revocation: $line")
+                    return@forEach
+                }
+                val revocation = PendingRevocation(buildId, parts[1], parts[2], parts[3])
+                if (buildsManager.findRunningBuildById(buildId) != null) {
+                    tracked.computeIfAbsent(buildId) { CopyOnWriteArrayList() } += revocation
+                } else {
+                    due += revocation
+                }
+            }
+            LOG.info("Loaded ${due.size} pending HashiCorp Vault token ${"revocation".pluralize(due.size)} from $pendingFile")
+        } catch (e: IOException) {
+            LOG.warnAndDebugDetails("Failed to load pending HashiCorp Vault token revocations from $pendingFile", e)
+        }
+    }
+}
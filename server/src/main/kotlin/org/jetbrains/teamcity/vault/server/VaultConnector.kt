@@ -86,7 +86,7 @@ class VaultConnector(
         /**
          * @return true if operation succeed or it doesn't makes sense to try again later
          */
-        private fun revokeAccessor(template: RestTemplate, accessor: String, settings: VaultFeatureSettings): Boolean {
+        internal fun revokeAccessor(template: RestTemplate, accessor: String, settings: VaultFeatureSettings): Boolean {
             template.errorHandler = object : DefaultResponseErrorHandler() {
                 override fun hasError(statusCode: HttpStatus?): Boolean {
                     if (statusCode == HttpStatus.FORBIDDEN || statusCode == HttpStatus.BAD_REQUEST) return false
@@ -124,7 +124,7 @@ class VaultConnector(
         /**
          * @return true if operation succeed
          */
-        private fun revokeSelf(template: RestTemplate): Boolean {
+        internal fun revokeSelf(template: RestTemplate): Boolean {
             val backoffs = intArrayOf(1, 3, 6, 0) // last is not used
             var e: Exception? = null
             for (backoff in backoffs) {
@@ -196,7 +196,7 @@ class VaultConnector(
             return performLogin(template.defaultTemplate, settings, extractTokenAndAccessor)
         }
 
-        private fun performLogin(template: RestTemplate, settings: VaultFeatureSettings, extractor: (VaultResponse) -> Pair<String, String>): Pair<String, String> {
+        internal fun performLogin(template: RestTemplate, settings: VaultFeatureSettings, extractor: (VaultResponse) -> Pair<String, String>): Pair<String, String> {
             when (val auth = settings.auth) {
                 is Auth.AppRoleAuthServer -> {
                     val options = AppRoleAuthenticationOptions.builder()
@@ -276,13 +276,11 @@ class VaultConnector(
 
 
     @Suppress("UnstableApiUsage")
-    fun requestWrappedToken(settings: VaultFeatureSettings): String {
-        try {
-            val (token, _) = doRequestWrappedToken(settings, trustStoreProvider)
-            return token
-        } catch (e: Exception) {
-            throw e
-        }
+    fun requestWrappedToken(settings: VaultFeatureSettings): String = requestWrappedTokenInfo(settings).wrapped
+
+    fun requestWrappedTokenInfo(settings: VaultFeatureSettings): LeasedWrappedTokenInfo {
+        val (token, accessor) = doRequestWrappedToken(settings, trustStoreProvider)
+        return LeasedWrappedTokenInfo(token, accessor, settings)
     }
 
     fun tryRequestToken(settings: VaultFeatureSettings): LeasedTokenInfo {
@@ -11,6 +11,7 @@ import jetbrains.buildServer.serverSide.connections.ProjectConnectionsManager
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
 import jetbrains.buildServer.web.openapi.WebControllerManager
 import org.jdom.Element
+import org.jetbrains.teamcity.vault.VaultConstants
 import org.jetbrains.teamcity.vault.VaultFeatureSettings
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
@@ -20,7 +21,8 @@ class VaultOAuthTestConnectionController(
     private val trustStoreProvider: SSLTrustStoreProvider,
     private val connector: VaultConnector,
     private val projectConnectionsManager: ProjectConnectionsManager,
-    private val projectManager: ProjectManager
+    private val projectManager: ProjectManager,
+    private val requestExecutor: VaultRequestExecutor
 ) : BaseFormXmlController(server) {
     init {
         wcm.registerController("/admin/hashicorp-vault-test-connection.html", this)
@@ -37,10 +39,10 @@ class VaultOAuthTestConnectionController(
         PluginPropertiesUtil.bindPropertiesFromRequest(request, propertiesBean)
         val properties = propertiesBean.properties.toMutableMap()
 
-        doTestConnection(properties, xmlResponse)
+        doTestConnection(request.getParameter(VaultConstants.PROJECT_ID).orEmpty(), properties, xmlResponse)
     }
 
-    private fun doTestConnection(properties: Map<String, String>, xmlResponse: Element) {
+    private fun doTestConnection(projectId: String, properties: Map<String, String>, xmlResponse: Element) {
         val processor = VaultProjectConnectionProvider.getParametersProcessor(projectConnectionsManager, projectManager)
         val errors = ActionErrors()
         processor.process(properties).forEach { errors.addError(it) }
@@ -52,8 +54,10 @@ class VaultOAuthTestConnectionController(
         try {
             val settings = VaultFeatureSettings(properties)
             IOGuard.allowNetworkCall<Exception> {
-                val token = connector.tryRequestToken(settings)
-                VaultConnector.revoke(token, trustStoreProvider)
+                requestExecutor.executeAndWait(projectId, VaultRequestExecutor.Priority.INTERACTIVE, "test HashiCorp Vault connection ${settings.url}") {
+                    val token = connector.tryRequestToken(settings)
+                    VaultConnector.revoke(token, trustStoreProvider)
+                }
             }
             XmlResponseUtil.writeTestResult(xmlResponse, "")
             return
@@ -0,0 +1,213 @@
+package org.jetbrains.teamcity.vault.server
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.BuildTypeSettings
+import jetbrains.buildServer.serverSide.Parameter
+import jetbrains.buildServer.serverSide.SProject
+import jetbrains.buildServer.serverSide.SimpleParameter
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.serverSide.parameters.remote.RemoteParameterConstants
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import org.jetbrains.teamcity.vault.*
+import org.jetbrains.teamcity.vault.server.HashiCorpVaultConnectionResolver.ParameterNamespaceCollisionException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Validates all HashiCorp Vault parameters and `%vault:...%` references used in a project and its subprojects,
+ * including the references in build steps and build features of its build configurations and templates.
+ *
+ * Queries are deduplicated, each unique Vault path is fetched once using a single session per connection,
+ * fetches are performed with bounded parallelism in the interactive lane of [VaultRequestExecutor].
+ */
+class VaultParametersValidator(
+    private val vaultResolver: VaultResolver,
+    private val hashiCorpVaultConnectionResolver: HashiCorpVaultConnectionResolver,
+    private val testSessionPool: VaultTestSessionPool,
+    private val requestExecutor: VaultRequestExecutor
+) {
+    companion object {
+        private val LOG = Logger.getInstance(Loggers.SERVER_CATEGORY + "." + VaultParametersValidator::class.java.name)
+
+        const val PARALLELISM_PARAM = "teamcity.internal.vault.validation.parallelism"
+    }
+
+    data class Usage(val owner: String, val parameterName: String)
+
+    data class PathReport(
+        val namespace: String,
+        val query: String,
+        val usages: List<Usage>,
+        val latencyMillis: Long?,
+        val size: Int?,
+        val error: String?
+    ) {
+        val isSuccessful: Boolean get() = error == null
+    }
+
+    // connections are compared by settings, so a connection inherited by several subprojects uses a single session
+    private data class Reference(val connection: VaultFeatureSettings?, val namespace: String, val query: VaultQuery)
+
+    fun validate(project: SProject, userId: Long?): List<PathReport> {
+        val isWriteEngineEnabled = project.getParameterValue(VaultConstants.FeatureFlags.FEATURE_ENABLE_WRITE_ENGINES)?.toBoolean() ?: false
+        val usages = collectReferences(project, isWriteEngineEnabled)
+
+        val reports = ArrayList<PathReport>()
+        val unresolved = usages.filterKeys { it.connection == null }
+        unresolved.forEach { (reference, referenceUsages) ->
+            reports += PathReport(reference.namespace, reference.query.full, referenceUsages, null, null, "HashiCorp Vault connection '${reference.namespace}' not found")
+        }
+
+        val executor = Executors.newFixedThreadPool(TeamCityProperties.getInteger(PARALLELISM_PARAM, 8), NamedDaemonThreadFactory("HashiCorp Vault parameters validation"))
+        try {
+            usages.filterKeys { it.connection != null }.entries
+                .groupBy { it.key.connection!! }
+                .forEach { (connection, connectionUsages) ->
+                    // same path may be used with different keys, fetch it once
+                    val paths = connectionUsages.groupBy { it.key.query.shorten }.values.map { pathUsages -> pathUsages.associate { it.key to it.value } }
+                    reports += validateConnection(project, userId, connection, paths, executor)
+                }
+        } finally {
+            executor.shutdownNow()
+        }
+        return reports.sortedWith(compareBy({ it.namespace }, { it.query }))
+    }
+
+    /**
+     * Logs in to the connection once, then validates its paths in parallel with that session
+     */
+    private fun validateConnection(
+        project: SProject,
+        userId: Long?,
+        connection: VaultFeatureSettings,
+        paths: List<Map<Reference, List<Usage>>>,
+        executor: ExecutorService
+    ): List<PathReport> {
+        val key = VaultTestSessionPool.Key(project.projectId, userId, connection)
+        val agentSettingsProvider = { hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(connection, connection.id, build = null) }
+        return try {
+            requestExecutor.executeAndWait(project.projectId, VaultRequestExecutor.Priority.INTERACTIVE, "log in to HashiCorp Vault connection '${connection.id}'") {
+                testSessionPool.withSession(key, agentSettingsProvider) { _, _ -> }
+            }
+            testSessionPool.withSession(key, agentSettingsProvider) { agentSettings, token ->
+                paths.map { references -> executor.submit(Callable { validatePath(project, connection, agentSettings, token, references) }) }
+                    .flatMap { it.get() }
+            }
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to log in to HashiCorp Vault connection '${connection.id}' of project ${project.projectId}", e)
+            paths.flatMap { references ->
+                references.map { (reference, usages) -> PathReport(reference.namespace, reference.query.full, usages, null, null, e.message ?: e.javaClass.simpleName) }
+            }
+        }
+    }
+
+    private fun validatePath(
+        project: SProject,
+        connection: VaultFeatureSettings,
+        agentSettings: VaultFeatureSettings,
+        token: String,
+        references: Map<Reference, List<Usage>>
+    ): List<PathReport> {
+        val queries = references.keys.map { it.query }
+        if (queries.any { it.isWriteEngine == true }) {
+            // validation must not generate any secrets
+            return references.map { (reference, usages) ->
+                PathReport(reference.namespace, reference.query.full, usages, null, null, "Write engine queries are not validated")
+            }
+        }
+
+        val started = System.currentTimeMillis()
+        return try {
+            val result = requestExecutor.executeAndWait(project.projectId, VaultRequestExecutor.Priority.INTERACTIVE, "validate HashiCorp Vault path") {
+                vaultResolver.doFetchAndPrepareReplacements(agentSettings, token, queries, cacheScope = VaultPinnedVersionsCache.getScope(project.projectId, connection.id))
+            }
+            val latency = System.currentTimeMillis() - started
+            references.map { (reference, usages) ->
+                val full = reference.query.full
+                val size = result.replacements[full]?.length ?: result.expansions[full]?.values?.sumOf { it.length }
+                PathReport(reference.namespace, full, usages, latency, size, result.errors[full])
+            }
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to validate HashiCorp Vault path '${queries.first().shorten.pathWithParams}'", e)
+            val latency = System.currentTimeMillis() - started
+            references.map { (reference, usages) ->
+                PathReport(reference.namespace, reference.query.full, usages, latency, null, e.message ?: e.javaClass.simpleName)
+            }
+        }
+    }
+
+    private fun collectReferences(project: SProject, isWriteEngineEnabled: Boolean): Map<Reference, List<Usage>> {
+        val result = LinkedHashMap<Reference, MutableList<Usage>>()
+        val connections = HashMap<Pair<String, String>, VaultFeatureSettings?>()
+
+        fun connection(owner: SProject, namespace: String): VaultFeatureSettings? = connections.getOrPut(owner.projectId to namespace) {
+            try {
+                hashiCorpVaultConnectionResolver.getVaultConnection(owner, namespace)
+            } catch (e: ParameterNamespaceCollisionException) {
+                null
+            }
+        }
+
+        fun collect(ownerProject: SProject, ownerDescription: String, parameters: Collection<Parameter>) {
+            val namespaces = try {
+                hashiCorpVaultConnectionResolver.getVaultConnections(ownerProject).map { it.id }
+            } catch (e: ParameterNamespaceCollisionException) {
+                emptyList()
+            }
+
+            for (parameter in parameters) {
+                val arguments = parameter.controlDescription?.parameterTypeArguments
+                if (arguments?.get(RemoteParameterConstants.REMOTE_TYPE_PARAM) == VaultConstants.PARAMETER_TYPE) {
+                    val settings = try {
+                        VaultParameterSettings(arguments)
+                    } catch (e: IllegalArgumentException) {
+                        continue
+                    }
+                    val query = if (parameter.value.startsWith(VaultConstants.VAULT_PARAMETER_PREFIX)) {
+                        VaultReferencesUtil.getPath(parameter.value, VaultConstants.FeatureSettings.DEFAULT_VAULT_NAMESPACE)
+                    } else {
+                        settings.vaultQuery
+                    }
+                    val reference = Reference(connection(ownerProject, settings.namespace), settings.namespace, VaultQuery.extract(query, isWriteEngineEnabled))
+                    result.getOrPut(reference) { ArrayList() } += Usage(ownerDescription, parameter.name)
+                    continue
+                }
+
+                val references = HashSet<String>()
+                VaultReferencesUtil.collect(mapOf(parameter.name to parameter.value), references, namespaces)
+                references.forEach { ref ->
+                    val namespace = VaultReferencesUtil.getNamespace(ref)
+                    val query = VaultQuery.extract(VaultReferencesUtil.getPath(ref, namespace), isWriteEngineEnabled)
+                    val reference = Reference(connection(ownerProject, namespace), namespace, query)
+                    result.getOrPut(reference) { ArrayList() } += Usage(ownerDescription, parameter.name)
+                }
+            }
+        }
+
+        // build steps and features may refer to secrets as well, their settings are not parameters
+        fun collectSettings(ownerProject: SProject, ownerDescription: String, settings: BuildTypeSettings) {
+            settings.buildRunners.forEach { runner ->
+                collect(ownerProject, "build step '${runner.name.ifEmpty { runner.id }}' of $ownerDescription", runner.parameters.map { SimpleParameter(it.key, it.value) })
+            }
+            settings.buildFeatures.forEach { feature ->
+                collect(ownerProject, "build feature '${feature.type}' of $ownerDescription", feature.parameters.map { SimpleParameter(it.key, it.value) })
+            }
+        }
+
+        val projects = listOf(project) + project.projects
+        projects.forEach { p -> collect(p, "project '${p.externalId}'", p.ownParametersCollection) }
+        project.buildTypes.forEach {
+            val description = "build configuration '${it.externalId}'"
+            collect(it.project, description, it.ownParametersCollection)
+            collectSettings(it.project, description, it)
+        }
+        project.buildTypeTemplates.forEach {
+            val description = "template '${it.externalId}'"
+            collect(it.project, description, it.ownParametersCollection)
+            collectSettings(it.project, description, it)
+        }
+        return result
+    }
+}
@@ -0,0 +1,343 @@
+package org.jetbrains.teamcity.vault.server
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.ProjectManager
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.web.context.request.async.DeferredResult
+import org.springframework.web.server.ResponseStatusException
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded executor for HashiCorp Vault calls made on behalf of HTTP requests.
+ *
+ * Vault latency must not hold web server threads: requests are processed asynchronously,
+ * a request is answered with 503 when the executor is saturated or the request deadline has passed.
+ *
+ * Requests are split into priority lanes: token issuance for starting builds is served before the interactive
+ * traffic (test connection, test query). Within a lane pending requests are admitted per project: projects are served
+ * in weighted round-robin order and a single project can't occupy more than its share of the queue,
+ * so a scale-out in one project doesn't lock out the others.
+ * Rejected requests get a `Retry-After` header based on the backlog of the project.
+ */
+class VaultRequestExecutor(private val projectManager: ProjectManager) : DisposableBean {
+    companion object {
+        private val LOG = Logger.getInstance(Loggers.SERVER_CATEGORY + "." + VaultRequestExecutor::class.java.name)
+
+        const val THREADS_PARAM = "teamcity.internal.vault.requests.threads"
+        const val QUEUE_CAPACITY_PARAM = "teamcity.internal.vault.requests.queueCapacity"
+        const val INTERACTIVE_QUEUE_CAPACITY_PARAM = "teamcity.internal.vault.requests.interactiveQueueCapacity"
+        const val PROJECT_QUEUE_CAPACITY_PARAM = "teamcity.internal.vault.requests.projectQueueCapacity"
+        const val INTERACTIVE_SHARE_PARAM = "teamcity.internal.vault.requests.interactiveEvery"
+        const val TIMEOUT_SECONDS_PARAM = "teamcity.internal.vault.requests.timeoutSeconds"
+        const val RETRY_AFTER_SECONDS_PARAM = "teamcity.internal.vault.requests.retryAfterSeconds"
+        const val MAX_RETRY_AFTER_SECONDS_PARAM = "teamcity.internal.vault.requests.maxRetryAfterSeconds"
+        const val QUEUE_WAIT_WARNING_MILLIS_PARAM = "teamcity.internal.vault.requests.queueWaitWarningMillis"
+        // queue statistics are written to the log with this interval while there are requests, 0 disables the report
+        const val STATS_INTERVAL_SECONDS_PARAM = "teamcity.internal.vault.requests.statsIntervalSeconds"
+        // upper bound of the project weight, project administrators can't raise their share above it
+        const val MAX_PROJECT_WEIGHT_PARAM = "teamcity.internal.vault.requests.maxProjectWeight"
+
+        // project parameter, the number of requests of the project served in a row when other projects are waiting
+        const val PROJECT_WEIGHT_PARAM = "teamcity.vault.requests.weight"
+    }
+
+    enum class Priority {
+        BUILD, INTERACTIVE
+    }
+
+    class QueueWaitStats {
+        private val count = AtomicLong()
+        private val totalMillis = AtomicLong()
+        private val maxMillis = AtomicLong()
+
+        fun getCount() = count.get()
+
+        fun getAverageMillis(): Long = count.get().let { if (it == 0L) 0 else totalMillis.get() / it }
+
+        fun getMaxMillis() = maxMillis.get()
+
+        internal fun record(waitMillis: Long) {
+            count.incrementAndGet()
+            totalMillis.addAndGet(waitMillis)
+            maxMillis.accumulateAndGet(waitMillis) { a, b -> maxOf(a, b) }
+        }
+    }
+
+    private val threads = TeamCityProperties.getInteger(THREADS_PARAM, 16)
+
+    // the executor queue holds one slot per admitted request, the request itself is picked from the lanes
+    private val executor = ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS,
+        LinkedBlockingQueue(),
+        NamedDaemonThreadFactory("HashiCorp Vault requests")
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    // request timeouts and statistics reports
+    private val timer = Executors.newSingleThreadScheduledExecutor(NamedDaemonThreadFactory("HashiCorp Vault requests timer"))
+
+    private val lanes = mapOf(
+        Priority.BUILD to FairQueue(QUEUE_CAPACITY_PARAM, 1000),
+        Priority.INTERACTIVE to FairQueue(INTERACTIVE_QUEUE_CAPACITY_PARAM, 100)
+    )
+    private val waitStats = Priority.values().associateWith { QueueWaitStats() }
+    private var buildsServedInRow = 0
+    // accessed by the timer thread only
+    private var reportedCount = 0L
+
+    init {
+        val interval = TeamCityProperties.getLong(STATS_INTERVAL_SECONDS_PARAM, 300)
+        if (interval > 0) {
+            timer.scheduleWithFixedDelay({ reportStats() }, interval, interval, TimeUnit.SECONDS)
+        }
+    }
+
+    /**
+     * Runs [task] asynchronously on behalf of [projectId]. The returned result is completed with the task value,
+     * or with [ResponseStatusException] if the task failed, was not admitted or could not be completed in time.
+     *
+     * A task which has already started can't be stopped when the request times out, its value is passed to [onAbandoned]
+     * once it completes, so that whatever the task has created for the caller can be undone.
+     */
+    fun <T> execute(projectId: String, description: String, onAbandoned: (T) -> Unit = {}, task: () -> T): DeferredResult<T> {
+        val timeout = getTimeoutMillis()
+        val result = DeferredResult<T>(timeout)
+        val future = submit(projectId, Priority.BUILD, description, timeout, onAbandoned, task)
+        val timeOut = Runnable {
+            if (future.cancel(true)) {
+                LOG.warn("Request to $description did not complete in ${timeout}ms")
+                result.setErrorResult(ServiceUnavailableException("HashiCorp Vault request timed out, retry later", getRetryAfterSeconds(lanes.getValue(Priority.BUILD).size(projectId))))
+            }
+        }
+        // the container times the request out as well, but not when the result is consumed outside of a web request
+        val scheduledTimeOut = timer.schedule(timeOut, timeout, TimeUnit.MILLISECONDS)
+        future.whenComplete { value, e ->
+            scheduledTimeOut.cancel(false)
+            when (e) {
+                null -> result.setResult(value)
+                is CancellationException -> Unit
+                else -> result.setErrorResult(e)
+            }
+        }
+
+        result.onTimeout(timeOut)
+        return result
+    }
+
+    /**
+     * Runs [task] on behalf of [projectId] and waits for the result. Used by the controllers which can't process requests
+     * asynchronously, the queue still keeps their Vault calls behind the build traffic.
+     */
+    fun <T> executeAndWait(projectId: String, priority: Priority, description: String, task: () -> T): T {
+        val timeout = getTimeoutMillis()
+        val future = submit(projectId, priority, description, timeout, {}, task)
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            future.cancel(true)
+            throw ServiceUnavailableException("HashiCorp Vault request timed out, retry later", getRetryAfterSeconds(0))
+        } catch (e: ExecutionException) {
+            // report the original failure to the caller, not the wrapper made for the HTTP response
+            val cause = e.cause ?: e
+            throw (cause as? ResponseStatusException)?.takeIf { it !is ServiceUnavailableException }?.cause ?: cause
+        }
+    }
+
+    fun getQueueSize(): Int = lanes.values.sumOf { it.size() }
+
+    fun getQueueSize(priority: Priority): Int = lanes.getValue(priority).size()
+
+    fun getQueueSize(projectId: String): Int = lanes.values.sumOf { it.size(projectId) }
+
+    fun getActiveCount(): Int = executor.activeCount
+
+    fun getQueueWaitStats(priority: Priority): QueueWaitStats = waitStats.getValue(priority)
+
+    override fun toString(): String = "VaultRequestExecutor{queued=${getQueueSize()}, active=${getActiveCount()}, " +
+            Priority.values().joinToString { priority ->
+                val stats = getQueueWaitStats(priority)
+                "${priority.name.lowercase()}: served=${stats.getCount()}, avgWaitMs=${stats.getAverageMillis()}, maxWaitMs=${stats.getMaxMillis()}"
+            } + "}"
+
+    override fun destroy() {
+        executor.shutdownNow()
+        timer.shutdownNow()
+    }
+
+    private fun <T> submit(projectId: String, priority: Priority, description: String, timeout: Long, onAbandoned: (T) -> Unit, task: () -> T): CompletableFuture<T> {
+        val future = CompletableFuture<T>()
+        // resolved before the queue is locked, the project lookup must not hold the other requests
+        val weight = getProjectWeight(projectId)
+        val request = Request(projectId, priority, weight, System.currentTimeMillis() + timeout, future) {
+            try {
+                val value = task()
+                if (!future.complete(value)) {
+                    abandon(description, value, onAbandoned)
+                }
+            } catch (e: ResponseStatusException) {
+                future.completeExceptionally(e)
+            } catch (e: Throwable) {
+                LOG.warnAndDebugDetails("Failed to $description", e)
+                future.completeExceptionally(ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "HashiCorp Vault request failed", e))
+            }
+        }
+
+        val lane = lanes.getValue(priority)
+        val pending = lane.offer(request)
+        if (pending != null) {
+            val retryAfter = getRetryAfterSeconds(pending)
+            LOG.warn("Too many pending HashiCorp Vault requests of project $projectId ($pending), rejecting request to $description, retry after ${retryAfter}s")
+            future.completeExceptionally(ServiceUnavailableException("HashiCorp Vault requests queue is full, retry later", retryAfter))
+            return future
+        }
+
+        try {
+            executor.execute { poll()?.run() }
+        } catch (e: RejectedExecutionException) {
+            lane.remove(request)
+            future.completeExceptionally(ServiceUnavailableException("HashiCorp Vault requests are not accepted", getRetryAfterSeconds(0)))
+        }
+        return future
+    }
+
+    private fun reportStats() {
+        val count = waitStats.values.sumOf { it.getCount() }
+        if (count == reportedCount && getQueueSize() == 0) return
+        reportedCount = count
+        LOG.info("HashiCorp Vault requests: $this")
+    }
+
+    private fun <T> abandon(description: String, value: T, onAbandoned: (T) -> Unit) {
+        LOG.info("Request to $description completed after the caller had been answered, discarding the result")
+        try {
+            onAbandoned(value)
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to discard the result of request to $description", e)
+        }
+    }
+
+    @Synchronized
+    private fun poll(): Request? {
+        val build = lanes.getValue(Priority.BUILD)
+        val interactive = lanes.getValue(Priority.INTERACTIVE)
+        // builds go first, yet a continuous build load must not lock the UI out completely
+        val request = if (buildsServedInRow >= TeamCityProperties.getInteger(INTERACTIVE_SHARE_PARAM, 10)) {
+            interactive.poll() ?: build.poll()
+        } else {
+            build.poll() ?: interactive.poll()
+        }
+        buildsServedInRow = if (request?.priority == Priority.BUILD) buildsServedInRow + 1 else 0
+
+        if (request != null) {
+            val wait = System.currentTimeMillis() - request.enqueued
+            waitStats.getValue(request.priority).record(wait)
+            if (wait > TeamCityProperties.getLong(QUEUE_WAIT_WARNING_MILLIS_PARAM, 10_000)) {
+                LOG.warn("HashiCorp Vault request of project ${request.projectId} (${request.priority}) waited ${wait}ms in the queue")
+            }
+        }
+        return request
+    }
+
+    private fun getTimeoutMillis() = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(TIMEOUT_SECONDS_PARAM, 60))
+
+    // the more requests of the project are waiting, the later its agents should come back
+    fun getRetryAfterSeconds(projectPending: Int = 0): Long {
+        val base = TeamCityProperties.getLong(RETRY_AFTER_SECONDS_PARAM, 5)
+        val max = TeamCityProperties.getLong(MAX_RETRY_AFTER_SECONDS_PARAM, 60)
+        return minOf(max, base * (1 + projectPending / threads))
+    }
+
+    private fun getProjectWeight(projectId: String): Int {
+        val project = projectManager.findProjectById(projectId) ?: return 1
+        val weight = project.getParameterValue(PROJECT_WEIGHT_PARAM)?.toIntOrNull() ?: return 1
+        return weight.coerceIn(1, TeamCityProperties.getInteger(MAX_PROJECT_WEIGHT_PARAM, 4).coerceAtLeast(1))
+    }
+
+    class ServiceUnavailableException(reason: String, val retryAfterSeconds: Long) : ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, reason) {
+        override fun getResponseHeaders(): HttpHeaders = HttpHeaders().apply {
+            set(HttpHeaders.RETRY_AFTER, retryAfterSeconds.toString())
+        }
+    }
+
+    private class Request(
+        val projectId: String,
+        val priority: Priority,
+        val weight: Int,
+        val deadline: Long,
+        private val future: Future<*>,
+        private val body: () -> Unit
+    ) {
+        val enqueued = System.currentTimeMillis()
+
+        fun run() {
+            // the caller has already been answered, don't make a useless Vault call
+            if (future.isDone || System.currentTimeMillis() > deadline) return
+            body()
+        }
+    }
+
+    /**
+     * Per-project queues served in weighted round-robin order.
+     */
+    private inner class FairQueue(private val capacityParam: String, private val defaultCapacity: Int) {
+        private inner class Lane(val weight: Int, val requests: ArrayDeque<Request> = ArrayDeque(), var credits: Int = weight)
+
+        private val projects = LinkedHashMap<String, Lane>()
+        private var size = 0
+
+        /**
+         * @return null if the request is admitted, otherwise the number of pending requests of its project
+         */
+        @Synchronized
+        fun offer(request: Request): Int? {
+            val lane = projects[request.projectId]
+            val projectSize = lane?.requests?.size ?: 0
+            val capacity = TeamCityProperties.getInteger(capacityParam, defaultCapacity)
+            // a project may take the whole queue only if nobody else is waiting
+            val projectCapacity = TeamCityProperties.getInteger(PROJECT_QUEUE_CAPACITY_PARAM, capacity / maxOf(1, projects.size + if (lane == null) 1 else 0))
+            if (size >= capacity || projectSize >= projectCapacity) {
+                return projectSize
+            }
+            projects.getOrPut(request.projectId) { Lane(request.weight) }.requests.addLast(request)
+            size++
+            return null
+        }
+
+        @Synchronized
+        fun poll(): Request? {
+            val (projectId, lane) = projects.entries.firstOrNull() ?: return null
+            val request = lane.requests.removeFirst()
+            size--
+            lane.credits--
+            if (lane.requests.isEmpty()) {
+                projects.remove(projectId)
+            } else if (lane.credits <= 0) {
+                // the project has used its turn, move it to the end of the line
+                projects.remove(projectId)
+                lane.credits = lane.weight
+                projects[projectId] = lane
+            }
+            return request
+        }
+
+        @Synchronized
+        fun remove(request: Request) {
+            val lane = projects[request.projectId] ?: return
+            if (lane.requests.remove(request)) {
+                size--
+                if (lane.requests.isEmpty()) projects.remove(request.projectId)
+            }
+        }
+
+        @Synchronized
+        fun size() = size
+
+        @Synchronized
+        fun size(projectId: String) = projects[projectId]?.requests?.size ?: 0
+    }
+}
@@ -0,0 +1,99 @@
+package org.jetbrains.teamcity.vault.server
+
+import com.fasterxml.jackson.databind.node.ObjectNode
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.createRestTemplate
+import org.jetbrains.teamcity.vault.withVaultToken
+import org.springframework.vault.VaultException
+import org.springframework.web.client.RestTemplate
+import java.util.concurrent.TimeUnit
+
+/**
+ * Server token of a project connection used to revoke agent tokens by accessor.
+ *
+ * The token is obtained once and renewed while it's in use, instead of logging in for every revocation.
+ */
+internal class VaultRevocationSession(
+    val settings: VaultFeatureSettings,
+    private val trustStoreProvider: SSLTrustStoreProvider
+) {
+    private var template: RestTemplate? = null
+    private var expires = 0L
+    private var renewAfter = 0L
+
+    @Volatile
+    var lastUsed = System.currentTimeMillis()
+        private set
+
+    /**
+     * @return true if the accessor is revoked or it doesn't make sense to try again later
+     */
+    @Synchronized
+    fun revokeAccessor(accessor: String): Boolean {
+        lastUsed = System.currentTimeMillis()
+        return VaultConnector.revokeAccessor(getTemplate(), accessor, settings)
+    }
+
+    @Synchronized
+    fun close() {
+        template?.takeIf { System.currentTimeMillis() < expires }?.let { VaultConnector.revokeSelf(it) }
+        template = null
+    }
+
+    private fun getTemplate(): RestTemplate {
+        val now = System.currentTimeMillis()
+        val current = template
+        if (current != null && now < renewAfter) {
+            return current
+        }
+        if (current != null && now < expires && renew(current)) {
+            return current
+        }
+        return login()
+    }
+
+    private fun login(): RestTemplate {
+        // the previous token isn't renewable anymore, revoke it unless it has already expired
+        template?.takeIf { System.currentTimeMillis() < expires }?.let { VaultConnector.revokeSelf(it) }
+        val created = createRestTemplate(settings, trustStoreProvider)
+        val (token, ttl) = VaultConnector.performLogin(created, settings) { response ->
+            val auth = response.auth
+            val token = auth["client_token"] as? String ?: throw VaultException("HashiCorp Vault hasn't returned token")
+            token to (auth["lease_duration"]?.toString() ?: "0")
+        }
+        created.withVaultToken(token)
+        updateExpiration(ttl.toLongOrNull() ?: 0)
+        template = created
+        return created
+    }
+
+    private fun renew(template: RestTemplate): Boolean {
+        return try {
+            val entity = template.postForEntity("auth/token/renew-self", emptyMap<String, String>(), ObjectNode::class.java)
+            val ttl = entity.body?.get("auth")?.get("lease_duration")?.asLong()
+            if (!entity.statusCode.is2xxSuccessful || ttl == null) {
+                return false
+            }
+            updateExpiration(ttl)
+            true
+        } catch (e: Exception) {
+            VaultConnector.LOG.debug("Failed to renew HashiCorp Vault revocation token, will log in again", e)
+            false
+        }
+    }
+
+    private fun updateExpiration(ttlSeconds: Long) {
+        val now = System.currentTimeMillis()
+        if (ttlSeconds <= 0) {
+            // root-like token without expiration
+            expires = Long.MAX_VALUE
+            renewAfter = Long.MAX_VALUE
+            return
+        }
+        val ttl = TimeUnit.SECONDS.toMillis(ttlSeconds)
+        expires = now + ttl
+        // renew when two thirds of the TTL are over
+        renewAfter = now + ttl * 2 / 3
+    }
+}
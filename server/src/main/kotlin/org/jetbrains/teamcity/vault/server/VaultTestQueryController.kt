@@ -10,13 +10,12 @@ import jetbrains.buildServer.serverSide.auth.Permission
 import jetbrains.buildServer.util.StringUtil
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider
 import jetbrains.buildServer.web.openapi.WebControllerManager
+import jetbrains.buildServer.web.util.SessionUser
 import org.jdom.Element
 import org.jetbrains.teamcity.vault.*
 import org.jetbrains.teamcity.vault.server.HashiCorpVaultConnectionResolver.ParameterNamespaceCollisionException
 import org.springframework.http.HttpStatus
 import org.springframework.http.MediaType
-import org.springframework.scheduling.TaskScheduler
-import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler
 import java.io.OutputStreamWriter
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
@@ -30,10 +29,10 @@ class VaultTestQueryController(
     private val hashiCorpVaultConnectionResolver: HashiCorpVaultConnectionResolver,
     private val sessionManagerBuilder: SessionManagerBuilder,
     private val connector: VaultConnector,
+    private val testSessionPool: VaultTestSessionPool,
+    private val requestExecutor: VaultRequestExecutor,
 ) : BaseFormXmlController(server), RequestPermissionsCheckerEx {
 
-    private val scheduler: TaskScheduler = ConcurrentTaskScheduler()
-
     companion object {
         const val PATH = "/admin/hashicorp-vault-test-query.html"
     }
@@ -52,7 +51,7 @@ class VaultTestQueryController(
         val project = projectManager.findProjectByExternalId(projectId) ?: return writeError(response, HttpStatus.NOT_FOUND, "Project $projectId not found")
         val buildTypeId = properties[VaultConstants.BUILD_TYPE_ID]
         val buildType = buildTypeId?.let { projectManager.findBuildTypeByExternalId(it) ?: return writeError(response, HttpStatus.NOT_FOUND, "BuildType $it not found") }
-        doTestQuery(project, buildType, properties, xmlResponse)
+        doTestQuery(project, buildType, SessionUser.getUser(request)?.id, properties, xmlResponse)
     }
 
     private fun writeError(response: HttpServletResponse, httpStatus: HttpStatus, errorMessage: String): Unit {
@@ -66,7 +65,7 @@ class VaultTestQueryController(
         writer.flush()
     }
 
-    private fun doTestQuery(project: SProject, buildType: SBuildType?, properties: Map<String, String>, xmlResponse: Element) {
+    private fun doTestQuery(project: SProject, buildType: SBuildType?, userId: Long?, properties: Map<String, String>, xmlResponse: Element) {
         val errors = ActionErrors()
 
         val invalids = VaultParameterSettings.getInvalidProperties(properties)
@@ -97,14 +96,19 @@ class VaultTestQueryController(
             }
 
             IOGuard.allowNetworkCall<Exception> {
-                val agentFeature = hashiCorpVaultConnectionResolver
-                    .serverFeatureSettingsToAgentSettings(serverFeature, parameterSettings.namespace, build = null)
-                val token = sessionManagerBuilder
-                    .build(agentFeature).sessionToken.token
                 val query = VaultQuery.extract(parameterSettings.vaultQuery, isWriteEngineEnabled)
 
-
-                val result = vaultResolver.doFetchAndPrepareReplacements(agentFeature, token, listOf(query))
+                // Session is reused across clicks, so only the first test requests a wrapped token and logs in
+                val sessionKey = VaultTestSessionPool.Key(project.projectId, userId, serverFeature)
+                val result = requestExecutor.executeAndWait(project.projectId, VaultRequestExecutor.Priority.INTERACTIVE, "test HashiCorp Vault query") {
+                    testSessionPool.withSession(sessionKey, {
+                        hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(serverFeature, parameterSettings.namespace, build = null)
+                    }) { agentFeature, token ->
+                        // clicking the button is an explicit retry, so a recently cached failure of the path is not reported again
+                        vaultResolver.doFetchAndPrepareReplacements(agentFeature, token, listOf(query),
+                            cacheScope = VaultPinnedVersionsCache.getScope(project.projectId, parameterSettings.namespace), refreshCachedFailures = true)
+                    }
+                }
                 if (result.errors.isNotEmpty()) {
                     errors.addError(EditVcsRootsController.FAILED_TEST_CONNECTION_ERR, "Error while fetching parameter: ${result.errors.values.first()}")
                     errors.serialize(xmlResponse)
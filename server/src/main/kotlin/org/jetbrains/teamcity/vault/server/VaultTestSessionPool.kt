@@ -0,0 +1,151 @@
+package org.jetbrains.teamcity.vault.server
+
+import com.intellij.openapi.diagnostic.Logger
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.TeamCityProperties
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import org.jetbrains.teamcity.vault.SessionManagerBuilder
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.vault.authentication.LifecycleAwareSessionManager
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Short-lived pool of HashiCorp Vault sessions used by the admin UI (test queries, validation).
+ *
+ * Sessions are kept per connection and user, reused across requests and revoked when evicted,
+ * either because the pool is full or because the session lifetime is over.
+ */
+class VaultTestSessionPool(private val sessionManagerBuilder: SessionManagerBuilder) : DisposableBean {
+    companion object {
+        private val LOG = Logger.getInstance(Loggers.SERVER_CATEGORY + "." + VaultTestSessionPool::class.java.name)
+
+        const val TTL_SECONDS_PARAM = "teamcity.internal.vault.testSessions.ttlSeconds"
+        const val MAX_SIZE_PARAM = "teamcity.internal.vault.testSessions.maxSize"
+    }
+
+    data class Key(val projectId: String, val userId: Long?, val connection: VaultFeatureSettings)
+
+    private class Entry(val agentSettings: VaultFeatureSettings, val sessionManager: LifecycleAwareSessionManager) {
+        val created = System.currentTimeMillis()
+    }
+
+    // access-ordered, so the least recently used session is evicted first
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    // sessions being created, guarded by the entries lock
+    private val creating = HashMap<Key, CompletableFuture<Entry>>()
+    private val executor = Executors.newSingleThreadScheduledExecutor(NamedDaemonThreadFactory("HashiCorp Vault test sessions cleanup"))
+
+    init {
+        executor.scheduleWithFixedDelay({ evictExpired() }, 30, 30, TimeUnit.SECONDS)
+    }
+
+    /**
+     * Runs [body] with a session token for the given connection. A new session is created using [agentSettingsProvider]
+     * only if there's no live session for the [key], concurrent calls for the same key share a single login. Session is dropped if [body] fails, so the next call logs in again.
+     */
+    fun <T> withSession(key: Key, agentSettingsProvider: () -> VaultFeatureSettings, body: (VaultFeatureSettings, String) -> T): T {
+        val entry = acquire(key, agentSettingsProvider)
+        try {
+            return body(entry.agentSettings, entry.sessionManager.sessionToken.token)
+        } catch (e: Exception) {
+            invalidate(key, entry)
+            throw e
+        }
+    }
+
+    fun size(): Int = synchronized(entries) { entries.size }
+
+    override fun destroy() {
+        executor.shutdownNow()
+        val all = synchronized(entries) {
+            entries.values.toList().also { entries.clear() }
+        }
+        all.forEach { revoke(it) }
+    }
+
+    private fun acquire(key: Key, agentSettingsProvider: () -> VaultFeatureSettings): Entry {
+        val pending = CompletableFuture<Entry>()
+        val inProgress = synchronized(entries) {
+            val existing = entries[key]
+            if (existing != null && !isExpired(existing)) {
+                return existing
+            }
+            // concurrent requests for the same key wait for the session being created instead of logging in again
+            creating.putIfAbsent(key, pending)
+        }
+        if (inProgress != null) {
+            try {
+                return inProgress.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+
+        val created = try {
+            val agentSettings = agentSettingsProvider()
+            val sessionManager = sessionManagerBuilder.build(agentSettings)
+            // logs in once for all the requests waiting for the session
+            sessionManager.sessionToken
+            Entry(agentSettings, sessionManager)
+        } catch (e: Throwable) {
+            synchronized(entries) { creating.remove(key, pending) }
+            pending.completeExceptionally(e)
+            throw e
+        }
+
+        val evicted = mutableListOf<Entry>()
+        synchronized(entries) {
+            creating.remove(key, pending)
+            entries.put(key, created)?.let { evicted.add(it) }
+            val maxSize = TeamCityProperties.getInteger(MAX_SIZE_PARAM, 50)
+            val iterator = entries.entries.iterator()
+            while (entries.size > maxSize && iterator.hasNext()) {
+                evicted.add(iterator.next().value)
+                iterator.remove()
+            }
+        }
+        pending.complete(created)
+        evicted.forEach { scheduleRevoke(it) }
+        return created
+    }
+
+    private fun invalidate(key: Key, entry: Entry) {
+        val removed = synchronized(entries) { entries.remove(key, entry) }
+        if (removed) {
+            scheduleRevoke(entry)
+        }
+    }
+
+    private fun evictExpired() {
+        val expired = synchronized(entries) {
+            val result = entries.values.filter { isExpired(it) }
+            entries.values.removeAll(result)
+            result
+        }
+        expired.forEach { revoke(it) }
+    }
+
+    private fun isExpired(entry: Entry) =
+        System.currentTimeMillis() - entry.created > TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(TTL_SECONDS_PARAM, 300))
+
+    private fun scheduleRevoke(entry: Entry) {
+        try {
+            executor.execute { revoke(entry) }
+        } catch (e: Exception) {
+            revoke(entry)
+        }
+    }
+
+    private fun revoke(entry: Entry) {
+        try {
+            // stops renewal and revokes the login token
+            entry.sessionManager.destroy()
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to revoke HashiCorp Vault test session token for ${entry.agentSettings.url}", e)
+        }
+    }
+}
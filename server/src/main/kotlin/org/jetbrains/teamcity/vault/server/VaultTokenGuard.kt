@@ -0,0 +1,131 @@
+package org.jetbrains.teamcity.vault.server
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.text.StringUtil
+import jetbrains.buildServer.log.Loggers
+import jetbrains.buildServer.serverSide.*
+import jetbrains.buildServer.util.EventDispatcher
+import jetbrains.buildServer.util.NamedDaemonThreadFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+
+/**
+ * Makes sure a HashiCorp Vault token is issued at most once per build and project connection.
+ *
+ * Issued tokens are tracked in memory and forgotten when the build finishes. Build custom data storage is checked
+ * only when several server nodes are online, because a build may then request its tokens from different nodes,
+ * or for builds started before this server, which might have got their tokens before the restart.
+ * Otherwise the mark is written to the storage in background, without a refresh and conflict handling.
+ */
+class VaultTokenGuard(
+    dispatcher: EventDispatcher<BuildServerListener>,
+    private val teamCityNodes: TeamCityNodes
+) : BuildServerAdapter() {
+    companion object {
+        private val LOG = Logger.getInstance(Loggers.SERVER_CATEGORY + "." + VaultTokenGuard::class.java.name)
+
+        private const val STORAGE_ID = "hashicorp-vault-token-generation"
+        private const val IS_GENERATED = "isGenerated"
+        private const val MAX_STORAGE_ATTEMPTS = 3
+
+        fun getTokenGenerationId(namespace: String) = "$STORAGE_ID-$namespace"
+    }
+
+    private val issued = ConcurrentHashMap<Long, MutableSet<String>>()
+    private val startTime = System.currentTimeMillis()
+    private val storageExecutor = Executors.newSingleThreadExecutor(NamedDaemonThreadFactory("HashiCorp Vault token guard"))
+
+    init {
+        dispatcher.addListener(this)
+    }
+
+    /**
+     * @return true if the token for the [namespace] may be issued for the [build], false if it has already been issued
+     */
+    fun tryAcquire(build: SRunningBuild, namespace: String): Boolean {
+        val namespaces = issued.computeIfAbsent(build.buildId) { ConcurrentHashMap.newKeySet() }
+        if (!namespaces.add(namespace)) {
+            return false
+        }
+        if (teamCityNodes.onlineNodes.size > 1 || build.startDate.time < startTime) {
+            // the namespace is added first to exclude concurrent requests, but it's kept only if the storage check completes,
+            // otherwise the retries of the build would be rejected
+            val acquired = try {
+                tryAcquireInStorage(build, namespace)
+            } catch (e: Exception) {
+                namespaces.remove(namespace)
+                throw e
+            }
+            return acquired
+        }
+        storageExecutor.execute { markInStorage(build, namespace) }
+        return true
+    }
+
+    /**
+     * @return true if the token for the [namespace] is known to be issued for the [build] by this node, the storage is not checked
+     */
+    fun isAcquired(build: SRunningBuild, namespace: String): Boolean = issued[build.buildId]?.contains(namespace) == true
+
+    /**
+     * Allows the token for the [namespace] to be issued for the [build] again, used when the issued token never reached the agent
+     */
+    fun release(build: SRunningBuild, namespace: String) {
+        issued[build.buildId]?.remove(namespace)
+        storageExecutor.execute { unmarkInStorage(build, namespace) }
+    }
+
+    fun size(): Int = issued.size
+
+    override fun buildFinished(build: SRunningBuild) {
+        issued.remove(build.buildId)
+    }
+
+    override fun buildInterrupted(build: SRunningBuild) {
+        issued.remove(build.buildId)
+    }
+
+    override fun serverShutdown() {
+        storageExecutor.shutdown()
+    }
+
+    private fun markInStorage(build: SRunningBuild, namespace: String) {
+        try {
+            val customStorage = (build as RunningBuildEx).temporaryCustomDataStorage
+            customStorage.putValue(getTokenGenerationId(namespace), IS_GENERATED)
+            customStorage.flush()
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to store HashiCorp Vault token generation mark for build ${build.buildId}", e)
+        }
+    }
+
+    private fun unmarkInStorage(build: SRunningBuild, namespace: String) {
+        try {
+            val customStorage = (build as RunningBuildEx).temporaryCustomDataStorage
+            customStorage.putValue(getTokenGenerationId(namespace), null)
+            customStorage.flush()
+        } catch (e: Exception) {
+            LOG.warnAndDebugDetails("Failed to remove HashiCorp Vault token generation mark for build ${build.buildId}", e)
+        }
+    }
+
+    private fun tryAcquireInStorage(build: SRunningBuild, namespace: String): Boolean {
+        val customStorage = (build as RunningBuildEx).temporaryCustomDataStorage
+        val tokenGenerationId = getTokenGenerationId(namespace)
+        repeat(MAX_STORAGE_ATTEMPTS) {
+            customStorage.refresh()
+            if (!StringUtil.isEmpty(customStorage.getValue(tokenGenerationId))) {
+                return false
+            }
+
+            customStorage.putValue(tokenGenerationId, IS_GENERATED)
+            try {
+                customStorage.flush(CustomDataStorage.ConflictResolution.FAIL)
+                return true
+            } catch (e: CustomDataConflictException) {
+                // build storage has been changed by some other node, we need to run refresh again
+            }
+        }
+        return false
+    }
+}
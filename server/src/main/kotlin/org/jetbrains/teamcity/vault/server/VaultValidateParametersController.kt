@@ -0,0 +1,84 @@
+package org.jetbrains.teamcity.vault.server
+
+import jetbrains.buildServer.controllers.*
+import jetbrains.buildServer.serverSide.IOGuard
+import jetbrains.buildServer.serverSide.ProjectManager
+import jetbrains.buildServer.serverSide.SBuildServer
+import jetbrains.buildServer.serverSide.auth.AccessDeniedException
+import jetbrains.buildServer.serverSide.auth.Permission
+import jetbrains.buildServer.web.openapi.WebControllerManager
+import jetbrains.buildServer.web.util.SessionUser
+import org.jdom.Element
+import org.jetbrains.teamcity.vault.VaultConstants
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+/**
+ * Validates all HashiCorp Vault parameters used in a project and its subprojects and reports per-path results.
+ */
+class VaultValidateParametersController(
+    server: SBuildServer, wcm: WebControllerManager,
+    authInterceptor: AuthorizationInterceptor,
+    private val projectManager: ProjectManager,
+    private val validator: VaultParametersValidator
+) : BaseFormXmlController(server), RequestPermissionsCheckerEx {
+
+    companion object {
+        const val PATH = "/admin/hashicorp-vault-validate-parameters.html"
+    }
+
+    init {
+        wcm.registerController(PATH, this)
+        authInterceptor.addPathBasedPermissionsChecker(PATH, this)
+    }
+
+    override fun doGet(request: HttpServletRequest, response: HttpServletResponse) = null
+
+    override fun doPost(request: HttpServletRequest, response: HttpServletResponse, xmlResponse: Element) {
+        val errors = ActionErrors()
+        val projectId = request.getParameter(VaultConstants.PROJECT_ID)
+        val project = projectManager.findProjectByExternalId(projectId)
+        if (project == null) {
+            errors.addError("validationError", "Project $projectId not found")
+            errors.serialize(xmlResponse)
+            return
+        }
+
+        val reports = try {
+            IOGuard.allowNetworkCall<List<VaultParametersValidator.PathReport>, Exception> {
+                validator.validate(project, SessionUser.getUser(request)?.id)
+            }
+        } catch (e: Exception) {
+            errors.addError("validationError", "Failed to validate HashiCorp Vault parameters: ${e.message}")
+            errors.serialize(xmlResponse)
+            return
+        }
+
+        val result = Element("validationResult")
+        result.setAttribute("total", reports.size.toString())
+        result.setAttribute("failed", reports.count { !it.isSuccessful }.toString())
+        reports.forEach { report ->
+            val path = Element("path")
+            path.setAttribute("namespace", report.namespace)
+            path.setAttribute("query", report.query)
+            path.setAttribute("successful", report.isSuccessful.toString())
+            report.latencyMillis?.let { path.setAttribute("latencyMs", it.toString()) }
+            report.size?.let { path.setAttribute("size", it.toString()) }
+            report.error?.let { path.addContent(Element("error").setText(it)) }
+            report.usages.forEach { usage ->
+                path.addContent(Element("usage").setAttribute("owner", usage.owner).setAttribute("parameter", usage.parameterName))
+            }
+            result.addContent(path)
+        }
+        xmlResponse.addContent(result)
+    }
+
+    override fun checkPermissions(securityContext: SecurityContextEx, request: HttpServletRequest) {
+        val projectId = request.getParameter(VaultConstants.PROJECT_ID)
+        val project = projectManager.findProjectByExternalId(projectId)
+            ?: throw AccessDeniedException(securityContext.authorityHolder, "No project $projectId")
+        if (!securityContext.authorityHolder.isPermissionGrantedForProject(project.projectId, Permission.EDIT_PROJECT)) {
+            throw AccessDeniedException(securityContext.authorityHolder, "Not enough permissions to validate HashiCorp Vault parameters of project $projectId")
+        }
+    }
+}
@@ -82,6 +82,7 @@
 <c:set var="namespaceNotSelectedValue" value="<%=VaultConstants.ParameterSettings.NAMESPACE_NOT_SELECTED_VALUE%>"/>
 <c:set var="vaultId" value="<%=VaultConstants.ParameterSettings.VAULT_ID%>"/>
 <c:set var="vaultQuery" value="<%=VaultConstants.ParameterSettings.VAULT_QUERY%>"/>
+<c:set var="nameTemplate" value="<%=VaultConstants.ParameterSettings.NAME_TEMPLATE%>"/>
 <c:set var="currentId" value="${propertiesBean.properties[vaultId]}" scope="request"/>
 
 <table class="runnerFormTable remoteParameter">
@@ -118,6 +119,17 @@
     <th><label for="prop:${vaultQuery}">Vault Query: <l:star/></label></th>
     <td>
       <props:textProperty name="${vaultQuery}"/>
+      <span class="smallNote">Use <code>path!/*</code> or <code>path!/{key1,key2}</code> to expand a secret into several parameters</span>
+    </td>
+  </tr>
+  <tr class="advancedSetting">
+    <th><label for="prop:${nameTemplate}">Parameter names template:</label></th>
+    <td>
+      <props:textProperty name="${nameTemplate}"/>
+      <span class="error" id="error_${nameTemplate}"></span>
+      <span class="smallNote">Names of the parameters created by a multi-key query, e.g. <code>env.APP_{KEY}</code>.
+        <code>{name}</code> is replaced with this parameter name, <code>{key}</code> with the secret key, nested keys are joined with dots,
+        <code>{KEY}</code> with the upper case key suitable for environment variables</span>
     </td>
   </tr>
   <props:hiddenProperty name="projectId" value="${projectId}"/>
@@ -1,18 +1,25 @@
 package org.jetbrains.teamcity.vault.server
 
+import jetbrains.buildServer.serverSide.TeamCityNodes
 import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
 import jetbrains.buildServer.web.util.WebAuthUtil
 import org.jetbrains.teamcity.vault.Auth
 import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.jetbrains.teamcity.vault.server.HashiCorpVaultConnectionResolver.IssuedAgentSettings
 import org.jetbrains.teamcity.vault.server.HashiCorpVaultConnectionResolver.ParameterNamespaceCollisionException
 import org.mockito.Mock
 import org.mockito.Mockito
 import org.mockito.testng.MockitoTestNGListener
+import org.springframework.http.HttpStatus
+import org.springframework.web.context.request.async.DeferredResult
 import org.springframework.web.server.ResponseStatusException
 import org.testng.Assert
+import org.testng.annotations.AfterMethod
 import org.testng.annotations.BeforeMethod
 import org.testng.annotations.Listeners
 import org.testng.annotations.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import javax.servlet.http.HttpServletRequest
 
 @Listeners(MockitoTestNGListener::class)
@@ -21,12 +28,23 @@ class HashicorpVaultConnectionControllerTest : BaseServerTestCase() {
     private lateinit var hashiCorpVaultConnectionResolver: HashiCorpVaultConnectionResolver
     @Mock
     private lateinit var request: HttpServletRequest
+    @Mock
+    private lateinit var accessorRevoker: VaultAccessorRevoker
     private lateinit var controller: HashicorpVaultConnectionController
+    private lateinit var requestExecutor: VaultRequestExecutor
 
     @BeforeMethod
     override fun setUp() {
         super.setUp()
-        controller = HashicorpVaultConnectionController(myProjectManager, myFixture.buildsManager, hashiCorpVaultConnectionResolver)
+        requestExecutor = VaultRequestExecutor(myProjectManager)
+        val tokenGuard = VaultTokenGuard(myFixture.eventDispatcher, Mockito.mock(TeamCityNodes::class.java))
+        controller = HashicorpVaultConnectionController(myProjectManager, myFixture.buildsManager, hashiCorpVaultConnectionResolver, requestExecutor, tokenGuard, accessorRevoker)
+    }
+
+    @AfterMethod
+    override fun tearDown() {
+        requestExecutor.destroy()
+        super.tearDown()
     }
 
     @Test
@@ -42,10 +60,11 @@ class HashicorpVaultConnectionControllerTest : BaseServerTestCase() {
                 emptyMap()
             )
         )
-        Mockito.`when`(hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(serverSettings, NAMESPACE, build)).thenReturn(agentSettings)
+        Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings, NAMESPACE, build)).thenReturn(IssuedAgentSettings(agentSettings, "accessor"))
 
-        val settingsMap = controller.getToken(NAMESPACE, request)
+        val settingsMap = controller.getToken(NAMESPACE, request).await()
         Assert.assertEquals(settingsMap, agentSettings.toFeatureProperties())
+        Mockito.verify(accessorRevoker).track(build, NAMESPACE, "accessor")
     }
 
     @Test(expectedExceptions = [ResponseStatusException::class])
@@ -62,9 +81,9 @@ class HashicorpVaultConnectionControllerTest : BaseServerTestCase() {
                 emptyMap()
             )
         )
-        Mockito.`when`(hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(serverSettings, NAMESPACE, build)).thenReturn(agentSettings)
+        Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings, NAMESPACE, build)).thenReturn(IssuedAgentSettings(agentSettings, null))
 
-        val settingsMap = controller.getToken(NAMESPACE, request)
+        val settingsMap = controller.getToken(NAMESPACE, request).await()
         Assert.assertEquals(settingsMap, agentSettings.toFeatureProperties())
         controller.getToken(NAMESPACE, request)
     }
@@ -86,7 +105,7 @@ class HashicorpVaultConnectionControllerTest : BaseServerTestCase() {
                 emptyMap()
             )
         )
-        Mockito.`when`(hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(serverSettings1, NAMESPACE, build)).thenReturn(agentSettings1)
+        Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings1, NAMESPACE, build)).thenReturn(IssuedAgentSettings(agentSettings1, null))
 
         val agentSettings2 = getDefaultSettings(
             Auth.getAgentAuthFromProperties(
@@ -94,11 +113,11 @@ class HashicorpVaultConnectionControllerTest : BaseServerTestCase() {
             ),
             namespace2
         )
-        Mockito.`when`(hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(serverSettings2, namespace2, build)).thenReturn(agentSettings2)
+        Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings2, namespace2, build)).thenReturn(IssuedAgentSettings(agentSettings2, null))
 
-        val settingsMap1 = controller.getToken(NAMESPACE, request)
+        val settingsMap1 = controller.getToken(NAMESPACE, request).await()
         Assert.assertEquals(settingsMap1, agentSettings1.toFeatureProperties())
-        val settingsMap2 = controller.getToken(namespace2, request)
+        val settingsMap2 = controller.getToken(namespace2, request).await()
         Assert.assertEquals(settingsMap2, agentSettings2.toFeatureProperties())
     }
 
@@ -129,6 +148,125 @@ class HashicorpVaultConnectionControllerTest : BaseServerTestCase() {
         controller.getToken(NAMESPACE, request)
     }
 
+    @Test
+    fun testGetToken_FailureIsReportedAsError() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        val serverSettings = getDefaultSettings(Auth.getServerAuthFromProperties(emptyMap()))
+        Mockito.`when`(request.getAttribute(WebAuthUtil.TEAM_CITY_AUTHENTICATED_BUILD)).thenReturn(build.buildId)
+        Mockito.`when`(hashiCorpVaultConnectionResolver.getVaultConnection(myProject, NAMESPACE))
+                .thenReturn(serverSettings)
+        Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings, NAMESPACE, build))
+                .thenThrow(IllegalStateException("Vault is down"))
+
+        val error = controller.getToken(NAMESPACE, request).await() as ResponseStatusException
+        Assert.assertEquals(error.status, HttpStatus.INTERNAL_SERVER_ERROR)
+        // nothing has been issued, the agent may retry
+        Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings, NAMESPACE, build))
+                .thenReturn(IssuedAgentSettings(getDefaultSettings(Auth.getAgentAuthFromProperties(emptyMap())), null))
+        Assert.assertTrue(controller.getToken(NAMESPACE, request).await() is Map<*, *>)
+    }
+
+    @Test
+    fun testGetToken_RetryAfterRejection() {
+        setInternalProperty(VaultRequestExecutor.THREADS_PARAM, "1")
+        setInternalProperty(VaultRequestExecutor.PROJECT_QUEUE_CAPACITY_PARAM, "1")
+        val executor = VaultRequestExecutor(myProjectManager)
+        val tokenGuard = VaultTokenGuard(myFixture.eventDispatcher, Mockito.mock(TeamCityNodes::class.java))
+        val controller = HashicorpVaultConnectionController(myProjectManager, myFixture.buildsManager, hashiCorpVaultConnectionResolver, executor, tokenGuard, accessorRevoker)
+        val release = CountDownLatch(1)
+        try {
+            val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+            val serverSettings = getDefaultSettings(Auth.getServerAuthFromProperties(emptyMap()))
+            val agentSettings = getDefaultSettings(Auth.getAgentAuthFromProperties(emptyMap()))
+            Mockito.`when`(request.getAttribute(WebAuthUtil.TEAM_CITY_AUTHENTICATED_BUILD)).thenReturn(build.buildId)
+            Mockito.`when`(hashiCorpVaultConnectionResolver.getVaultConnection(myProject, NAMESPACE)).thenReturn(serverSettings)
+            Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings, NAMESPACE, build)).thenReturn(IssuedAgentSettings(agentSettings, null))
+
+            // the project occupies the worker and its single queue slot
+            val started = CountDownLatch(1)
+            executor.execute(myProject.projectId, "block") { started.countDown(); release.await(5, TimeUnit.SECONDS) }
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+            executor.execute(myProject.projectId, "queued") { }
+
+            val rejected = controller.getToken(NAMESPACE, request).await() as ResponseStatusException
+            Assert.assertEquals(rejected.status, HttpStatus.SERVICE_UNAVAILABLE)
+            Assert.assertFalse(tokenGuard.isAcquired(build, NAMESPACE))
+
+            release.countDown()
+            val deadline = System.currentTimeMillis() + 5000
+            while (executor.getQueueSize(myProject.projectId) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            Assert.assertEquals(controller.getToken(NAMESPACE, request).await(), agentSettings.toFeatureProperties())
+            Assert.assertTrue(tokenGuard.isAcquired(build, NAMESPACE))
+        } finally {
+            release.countDown()
+            executor.destroy()
+        }
+    }
+
+    @Test
+    fun testGetToken_RetryAfterTimeout() {
+        setInternalProperty(VaultRequestExecutor.TIMEOUT_SECONDS_PARAM, "1")
+        val tokenGuard = VaultTokenGuard(myFixture.eventDispatcher, Mockito.mock(TeamCityNodes::class.java))
+        val controller = HashicorpVaultConnectionController(myProjectManager, myFixture.buildsManager, hashiCorpVaultConnectionResolver, requestExecutor, tokenGuard, accessorRevoker)
+        val release = CountDownLatch(1)
+        try {
+            val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+            val serverSettings = getDefaultSettings(Auth.getServerAuthFromProperties(emptyMap()))
+            val agentSettings = getDefaultSettings(Auth.getAgentAuthFromProperties(emptyMap()))
+            Mockito.`when`(request.getAttribute(WebAuthUtil.TEAM_CITY_AUTHENTICATED_BUILD)).thenReturn(build.buildId)
+            Mockito.`when`(hashiCorpVaultConnectionResolver.getVaultConnection(myProject, NAMESPACE)).thenReturn(serverSettings)
+            // Vault is slower than the request timeout
+            Mockito.`when`(hashiCorpVaultConnectionResolver.issueAgentSettings(serverSettings, NAMESPACE, build)).thenAnswer {
+                release.await(10, TimeUnit.SECONDS)
+                IssuedAgentSettings(agentSettings, "accessor")
+            }
+
+            val timedOut = controller.getToken(NAMESPACE, request).await() as VaultRequestExecutor.ServiceUnavailableException
+            Assert.assertEquals(timedOut.status, HttpStatus.SERVICE_UNAVAILABLE)
+
+            // the agent comes back while the token is still being issued
+            try {
+                controller.getToken(NAMESPACE, request)
+                Assert.fail("Token request must be rejected while the previous token is being issued")
+            } catch (e: VaultRequestExecutor.ServiceUnavailableException) {
+                Assert.assertTrue(e.retryAfterSeconds > 0)
+            }
+
+            release.countDown()
+            val deadline = System.currentTimeMillis() + 5000
+            while (tokenGuard.isAcquired(build, NAMESPACE) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            Assert.assertFalse(tokenGuard.isAcquired(build, NAMESPACE), "The token which has never been delivered must not block the retry")
+            Mockito.verify(accessorRevoker).revokeNow(build.buildId, NAMESPACE)
+
+            Assert.assertEquals(controller.getToken(NAMESPACE, request).await(), agentSettings.toFeatureProperties())
+            Assert.assertTrue(tokenGuard.isAcquired(build, NAMESPACE))
+        } finally {
+            release.countDown()
+        }
+    }
+
+    @Test
+    fun testTokenReleased() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        Mockito.`when`(request.getAttribute(WebAuthUtil.TEAM_CITY_AUTHENTICATED_BUILD)).thenReturn(build.buildId)
+
+        controller.tokenReleased(NAMESPACE, request)
+        Mockito.verify(accessorRevoker).untrack(build.buildId, NAMESPACE)
+    }
+
+    private fun DeferredResult<*>.await(): Any? {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Assert.assertTrue(hasResult(), "Token request has not been completed")
+        return result
+    }
+
     private fun getDefaultSettings(auth: Auth, namespace: String = NAMESPACE ) = VaultFeatureSettings(
         namespace, "url", "vaultNamespace", auth
     )
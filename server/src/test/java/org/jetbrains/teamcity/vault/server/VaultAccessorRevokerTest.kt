@@ -0,0 +1,121 @@
+package org.jetbrains.teamcity.vault.server
+
+import jetbrains.buildServer.serverSide.TeamCityNode
+import jetbrains.buildServer.serverSide.TeamCityNodes
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
+import org.mockito.Mockito
+import org.testng.Assert
+import org.testng.annotations.Test
+
+class VaultAccessorRevokerTest : BaseServerTestCase() {
+
+    @Test
+    fun testPendingRevocationsSurviveRestart() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        val revoker = createRevoker()
+        revoker.serverStartup()
+        revoker.track(build, "namespace", "accessor")
+        revoker.serverShutdown()
+
+        val restarted = createRevoker()
+        restarted.serverStartup()
+        try {
+            Assert.assertEquals(restarted.getTrackedCount(), 1)
+            Assert.assertEquals(restarted.getPendingCount(), 0)
+        } finally {
+            restarted.serverShutdown()
+        }
+    }
+
+    @Test
+    fun testRevocationQueuedOnBuildFinish() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        val revoker = createRevoker()
+        try {
+            revoker.track(build, "namespace", "accessor")
+            revoker.buildFinished(build)
+
+            Assert.assertEquals(revoker.getTrackedCount(), 0)
+            Assert.assertEquals(revoker.getPendingCount(), 1)
+        } finally {
+            revoker.serverShutdown()
+        }
+    }
+
+    @Test
+    fun testTokenReleasedByAgentNotRevoked() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        val revoker = createRevoker()
+        try {
+            revoker.track(build, "namespace", "accessor")
+            revoker.track(build, "other", "accessor2")
+            revoker.untrack(build.buildId, "namespace")
+            revoker.buildFinished(build)
+
+            Assert.assertEquals(revoker.getTrackedCount(), 0)
+            Assert.assertEquals(revoker.getPendingCount(), 1)
+        } finally {
+            revoker.serverShutdown()
+        }
+    }
+
+    @Test
+    fun testUndeliveredTokenRevokedRightAway() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        val revoker = createRevoker()
+        try {
+            revoker.track(build, "namespace", "accessor")
+            revoker.track(build, "other", "accessor2")
+            revoker.revokeNow(build.buildId, "namespace")
+
+            Assert.assertEquals(revoker.getTrackedCount(), 1)
+            Assert.assertEquals(revoker.getPendingCount(), 1)
+        } finally {
+            revoker.serverShutdown()
+        }
+    }
+
+    @Test
+    fun testPendingRevocationsKeptPerNode() {
+        val build = createRunningBuild(myBuildType, emptyArray(), emptyArray())
+        val main = createRevoker("main")
+        val secondary = createRevoker("secondary")
+        main.serverStartup()
+        secondary.serverStartup()
+        main.track(build, "namespace", "accessor")
+        secondary.track(build, "other", "accessor2")
+        secondary.track(build, "other2", "accessor3")
+        main.serverShutdown()
+        secondary.serverShutdown()
+
+        val restartedMain = createRevoker("main")
+        val restartedSecondary = createRevoker("secondary")
+        restartedMain.serverStartup()
+        restartedSecondary.serverStartup()
+        try {
+            Assert.assertEquals(restartedMain.getTrackedCount(), 1)
+            Assert.assertEquals(restartedSecondary.getTrackedCount(), 2)
+        } finally {
+            restartedMain.serverShutdown()
+            restartedSecondary.serverShutdown()
+        }
+    }
+
+    private fun createRevoker(nodeId: String = "main") = VaultAccessorRevoker(
+        myFixture.eventDispatcher,
+        myFixture.serverPaths,
+        myProjectManager,
+        myFixture.buildsManager,
+        Mockito.mock(HashiCorpVaultConnectionResolver::class.java),
+        { null },
+        createNodes(nodeId)
+    )
+
+    private fun createNodes(nodeId: String): TeamCityNodes {
+        val node = Mockito.mock(TeamCityNode::class.java)
+        Mockito.`when`(node.id).thenReturn(nodeId)
+        val nodes = Mockito.mock(TeamCityNodes::class.java)
+        Mockito.`when`(nodes.currentNode).thenReturn(node)
+        return nodes
+    }
+}
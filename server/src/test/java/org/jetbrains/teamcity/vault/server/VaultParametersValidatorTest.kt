@@ -0,0 +1,105 @@
+package org.jetbrains.teamcity.vault.server
+
+import jetbrains.buildServer.serverSide.SimpleParameter
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
+import org.jetbrains.teamcity.vault.*
+import org.mockito.Answers
+import org.mockito.Mockito
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+
+class VaultParametersValidatorTest : BaseServerTestCase() {
+    private lateinit var vaultResolver: VaultResolver
+    private lateinit var connectionResolver: HashiCorpVaultConnectionResolver
+    private lateinit var sessionManagerBuilder: SessionManagerBuilder
+    private lateinit var sessionPool: VaultTestSessionPool
+    private lateinit var requestExecutor: VaultRequestExecutor
+    private lateinit var validator: VaultParametersValidator
+    private val settings = VaultFeatureSettings("", "http://localhost:8200", "", Auth.getServerAuthFromProperties(emptyMap()))
+
+    @BeforeMethod
+    override fun setUp() {
+        super.setUp()
+        vaultResolver = Mockito.mock(VaultResolver::class.java)
+        connectionResolver = Mockito.mock(HashiCorpVaultConnectionResolver::class.java)
+        sessionManagerBuilder = Mockito.mock(SessionManagerBuilder::class.java, Answers.RETURNS_DEEP_STUBS)
+        Mockito.`when`(connectionResolver.getVaultConnections(any())).thenReturn(listOf(settings))
+        Mockito.`when`(connectionResolver.getVaultConnection(any(), any())).thenReturn(settings)
+        Mockito.`when`(connectionResolver.serverFeatureSettingsToAgentSettings(any(), any(), anyOrNull())).thenReturn(settings)
+        Mockito.`when`(sessionManagerBuilder.build(settings).sessionToken.token).thenReturn("token")
+        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(any(), any(), any(), any(), anyOrNull(), anyOrNull(), anyOrNull(), any())).thenAnswer { invocation ->
+            val queries = invocation.getArgument<Collection<VaultQuery>>(2)
+            val (failed, found) = queries.partition { it.shorten.pathWithParams.contains("missing") }
+            VaultResolver.ResolvingResult(found.associate { it.full to "value" }, failed.associate { it.full to "Not found" })
+        }
+        sessionPool = VaultTestSessionPool(sessionManagerBuilder)
+        requestExecutor = VaultRequestExecutor(myProjectManager)
+        validator = VaultParametersValidator(vaultResolver, connectionResolver, sessionPool, requestExecutor)
+    }
+
+    @AfterMethod
+    override fun tearDown() {
+        requestExecutor.destroy()
+        sessionPool.destroy()
+        super.tearDown()
+    }
+
+    @Test
+    fun testPathsValidatedWithSingleSession() {
+        myProject.addParameter(SimpleParameter("password", "%vault:secret/app!/password%"))
+        myProject.addParameter(SimpleParameter("user", "%vault:secret/app!/user%"))
+        myBuildType.addParameter(SimpleParameter("other", "%vault:secret/missing!/key%"))
+        myBuildType.addParameter(SimpleParameter("other2", "%vault:secret/other!/key%"))
+
+        val reports = validator.validate(myProject, null)
+
+        Assert.assertEquals(reports.size, 4)
+        Assert.assertEquals(reports.filterNot { it.isSuccessful }.map { it.query }, listOf("/secret/missing!/key"))
+        // one login for the connection, although the paths are validated in parallel
+        Mockito.verify(connectionResolver, Mockito.times(1)).serverFeatureSettingsToAgentSettings(settings, settings.id, null)
+        Mockito.verify(vaultResolver, Mockito.times(3)).doFetchAndPrepareReplacements(any(), any(), any(), any(), anyOrNull(), anyOrNull(), anyOrNull(), any())
+        Assert.assertEquals(sessionPool.size(), 1)
+    }
+
+    @Test
+    fun testStepsAndFeaturesValidated() {
+        myBuildType.addBuildRunner("deploy", "simpleRunner", mapOf("script.content" to "deploy --password %vault:secret/step!/password%"))
+        val template = myProject.createBuildTypeTemplate("template")
+        template.addBuildFeature("feature", mapOf("token" to "%vault:secret/feature!/token%"))
+
+        val reports = validator.validate(myProject, null)
+
+        Assert.assertEquals(reports.map { it.query }.sorted(), listOf("/secret/feature!/token", "/secret/step!/password"))
+        Assert.assertTrue(reports.all { it.isSuccessful })
+        Assert.assertEquals(reports.flatMap { it.usages }.map { it.parameterName }.sorted(), listOf("script.content", "token"))
+    }
+
+    @Test
+    fun testLoginFailureReportedForAllPaths() {
+        Mockito.`when`(connectionResolver.serverFeatureSettingsToAgentSettings(any(), any(), anyOrNull())).thenThrow(IllegalStateException("Login failed"))
+        myProject.addParameter(SimpleParameter("password", "%vault:secret/app!/password%"))
+        myProject.addParameter(SimpleParameter("other", "%vault:secret/other!/key%"))
+
+        val reports = validator.validate(myProject, null)
+
+        Assert.assertEquals(reports.size, 2)
+        Assert.assertTrue(reports.all { it.error == "Login failed" })
+        Mockito.verifyNoInteractions(vaultResolver)
+    }
+
+    @Test
+    fun testUnknownConnectionReported() {
+        Mockito.`when`(connectionResolver.getVaultConnection(any(), any())).thenReturn(null)
+        myProject.addParameter(SimpleParameter("password", "%vault:secret/app!/password%"))
+
+        val reports = validator.validate(myProject, null)
+
+        Assert.assertEquals(reports.size, 1)
+        Assert.assertFalse(reports.single().isSuccessful)
+        Mockito.verifyNoInteractions(vaultResolver)
+    }
+}
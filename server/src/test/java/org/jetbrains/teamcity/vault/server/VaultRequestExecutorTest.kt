@@ -0,0 +1,148 @@
+package org.jetbrains.teamcity.vault.server
+
+import jetbrains.buildServer.serverSide.SimpleParameter
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.web.context.request.async.DeferredResult
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class VaultRequestExecutorTest : BaseServerTestCase() {
+    private lateinit var executor: VaultRequestExecutor
+    private val release = CountDownLatch(1)
+
+    @BeforeMethod
+    override fun setUp() {
+        super.setUp()
+        setInternalProperty(VaultRequestExecutor.THREADS_PARAM, "1")
+        executor = VaultRequestExecutor(myProjectManager)
+    }
+
+    @AfterMethod
+    override fun tearDown() {
+        release.countDown()
+        executor.destroy()
+        super.tearDown()
+    }
+
+    @Test
+    fun testProjectsServedInTurn() {
+        val order = Collections.synchronizedList(ArrayList<String>())
+        val started = CountDownLatch(1)
+        executor.execute("A", "block") { started.countDown(); release.await(5, TimeUnit.SECONDS) }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        val results = listOf("A1", "A2", "B1").map { name -> executor.execute(name.substring(0, 1), name) { order.add(name) } }
+        release.countDown()
+        results.forEach { it.await() }
+
+        Assert.assertEquals(order, listOf("A1", "B1", "A2"))
+    }
+
+    @Test
+    fun testRejectedWithRetryAfter() {
+        setInternalProperty(VaultRequestExecutor.PROJECT_QUEUE_CAPACITY_PARAM, "1")
+        val started = CountDownLatch(1)
+        executor.execute("A", "block") { started.countDown(); release.await(5, TimeUnit.SECONDS) }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        executor.execute("A", "queued") { }
+        val rejected = executor.execute("A", "rejected") { }.await() as VaultRequestExecutor.ServiceUnavailableException
+        Assert.assertEquals(rejected.status, HttpStatus.SERVICE_UNAVAILABLE)
+        Assert.assertNotNull(rejected.responseHeaders.getFirst(HttpHeaders.RETRY_AFTER))
+
+        // other projects are still admitted
+        val other = executor.execute("B", "other") { "ok" }
+        release.countDown()
+        Assert.assertEquals(other.await(), "ok")
+    }
+
+    @Test
+    fun testBuildRequestsServedFirst() {
+        val order = Collections.synchronizedList(ArrayList<String>())
+        val started = CountDownLatch(1)
+        executor.execute("A", "block") { started.countDown(); release.await(5, TimeUnit.SECONDS) }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        val interactive = Thread {
+            executor.executeAndWait("B", VaultRequestExecutor.Priority.INTERACTIVE, "interactive") { order.add("interactive") }
+        }
+        interactive.start()
+        waitForQueueSize(1)
+        val build = executor.execute("C", "build") { order.add("build") }
+        release.countDown()
+        build.await()
+        interactive.join(5000)
+
+        Assert.assertEquals(order, listOf("build", "interactive"))
+        Assert.assertEquals(executor.getQueueWaitStats(VaultRequestExecutor.Priority.INTERACTIVE).getCount(), 1)
+    }
+
+    @Test
+    fun testProjectWeight() {
+        val projectA = createProject("A")
+        projectA.addParameter(SimpleParameter(VaultRequestExecutor.PROJECT_WEIGHT_PARAM, "2"))
+        val order = Collections.synchronizedList(ArrayList<String>())
+        val started = CountDownLatch(1)
+        executor.execute("block", "block") { started.countDown(); release.await(5, TimeUnit.SECONDS) }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        val results = listOf("A1", "A2", "A3", "B1").map { name ->
+            executor.execute(if (name.startsWith("A")) projectA.projectId else "B", name) { order.add(name) }
+        }
+        release.countDown()
+        results.forEach { it.await() }
+
+        Assert.assertEquals(order, listOf("A1", "A2", "B1", "A3"))
+    }
+
+    @Test
+    fun testProjectWeightCapped() {
+        setInternalProperty(VaultRequestExecutor.MAX_PROJECT_WEIGHT_PARAM, "2")
+        val projectA = createProject("A")
+        projectA.addParameter(SimpleParameter(VaultRequestExecutor.PROJECT_WEIGHT_PARAM, "100"))
+        val order = Collections.synchronizedList(ArrayList<String>())
+        val started = CountDownLatch(1)
+        executor.execute("block", "block") { started.countDown(); release.await(5, TimeUnit.SECONDS) }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+
+        val results = listOf("A1", "A2", "A3", "B1").map { name ->
+            executor.execute(if (name.startsWith("A")) projectA.projectId else "B", name) { order.add(name) }
+        }
+        release.countDown()
+        results.forEach { it.await() }
+
+        Assert.assertEquals(order, listOf("A1", "A2", "B1", "A3"))
+    }
+
+    @Test
+    fun testStatsReported() {
+        executor.execute("A", "first") { }.await()
+        executor.execute("B", "second") { }.await()
+
+        Assert.assertTrue(executor.toString().contains("build: served=2"), executor.toString())
+        Assert.assertTrue(executor.toString().contains("queued=0"), executor.toString())
+    }
+
+    private fun waitForQueueSize(size: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (executor.getQueueSize() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    private fun DeferredResult<*>.await(): Any? {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!hasResult() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Assert.assertTrue(hasResult(), "Request has not been completed")
+        return result
+    }
+}
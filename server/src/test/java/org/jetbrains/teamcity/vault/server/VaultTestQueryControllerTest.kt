@@ -63,7 +63,9 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
         myProjectManager,
         hashiCorpVaultConnectionResolver,
         sessionManagerBuilder,
-        vaultConnector
+        vaultConnector,
+        VaultTestSessionPool(sessionManagerBuilder),
+        VaultRequestExecutor(myProjectManager)
     )
 
     @Test
@@ -87,7 +89,7 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
             ), emptyMap()
         )
 
-        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query)))
+        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query), cacheScope = VaultPinnedVersionsCache.getScope(myProject.projectId, NAMESPACE), refreshCachedFailures = true))
             .thenReturn(result)
 
         doPost(
@@ -100,6 +102,32 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
         Assert.assertNotNull(response)
     }
 
+    @Test
+    fun testQuery_SessionReused() {
+        val serverSettings = getDefaultSettings(Auth.getServerAuthFromProperties(emptyMap()))
+        Mockito.`when`(hashiCorpVaultConnectionResolver.getVaultConnection(myProject, NAMESPACE))
+            .thenReturn(serverSettings)
+        val agentSettings = getDefaultSettings(Auth.getAgentAuthFromProperties(emptyMap()))
+        Mockito.`when`(hashiCorpVaultConnectionResolver.serverFeatureSettingsToAgentSettings(serverSettings, NAMESPACE, null))
+            .thenReturn(agentSettings)
+        Mockito.`when`(sessionManagerBuilder.build(agentSettings).sessionToken.token)
+            .thenReturn(TOKEN)
+
+        val query = VaultQuery.extract(VAULT_QUERY)
+        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query), cacheScope = VaultPinnedVersionsCache.getScope(myProject.projectId, NAMESPACE), refreshCachedFailures = true))
+            .thenReturn(VaultResolver.ResolvingResult(mapOf(query.full to SECRET_VALUE), emptyMap()))
+
+        repeat(2) {
+            doPost(
+                "prop:${VaultConstants.PROJECT_ID}", myProject.externalId,
+                "prop:${VaultConstants.ParameterSettings.VAULT_QUERY}", VAULT_QUERY,
+                "prop:${VaultConstants.ParameterSettings.VAULT_ID}", NAMESPACE,
+            )
+        }
+
+        Mockito.verify(hashiCorpVaultConnectionResolver, Mockito.times(1)).serverFeatureSettingsToAgentSettings(serverSettings, NAMESPACE, null)
+    }
+
     @Test
     fun testQuery_EmptyNamespace() {
         val namespace = ""
@@ -119,7 +147,7 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
             ), emptyMap()
         )
 
-        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(settings, TOKEN, listOf(query)))
+        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(settings, TOKEN, listOf(query), cacheScope = VaultPinnedVersionsCache.getScope(myProject.projectId, namespace), refreshCachedFailures = true))
             .thenReturn(result)
 
         // namespace is empty, property is not sent
@@ -282,7 +310,7 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
         )
 
         val error = "Mock error"
-        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query)))
+        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query), cacheScope = VaultPinnedVersionsCache.getScope(myProject.projectId, NAMESPACE), refreshCachedFailures = true))
             .thenThrow(VaultException(error))
 
         doPost(
@@ -318,7 +346,7 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
             )
         )
 
-        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query)))
+        Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, TOKEN, listOf(query), cacheScope = VaultPinnedVersionsCache.getScope(myProject.projectId, NAMESPACE), refreshCachedFailures = true))
             .thenReturn(result)
 
         doPost(
@@ -383,7 +411,8 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
                     query.full to VaultTestQueryControllerTest.SECRET_VALUE
                 ), emptyMap()
             )
-            Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, VaultTestQueryControllerTest.TOKEN, listOf(query)))
+            Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, VaultTestQueryControllerTest.TOKEN, listOf(query),
+                cacheScope = VaultPinnedVersionsCache.getScope(projectWriteEngine.projectId, VaultTestQueryControllerTest.NAMESPACE), refreshCachedFailures = true))
                 .thenReturn(result)
         } else {
             val errorResult = VaultResolver.ResolvingResult(
@@ -391,7 +420,8 @@ class VaultTestQueryControllerTest : BaseControllerTestCase<VaultTestQueryContro
                     EditVcsRootsController.FAILED_TEST_CONNECTION_ERR to "Error while fetching parameter: write engine exception"
                 )
             )
-            Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, VaultTestQueryControllerTest.TOKEN, listOf(query)))
+            Mockito.`when`(vaultResolver.doFetchAndPrepareReplacements(agentSettings, VaultTestQueryControllerTest.TOKEN, listOf(query),
+                cacheScope = VaultPinnedVersionsCache.getScope(projectWriteEngine.projectId, VaultTestQueryControllerTest.NAMESPACE), refreshCachedFailures = true))
                 .thenReturn(errorResult)
         }
 
@@ -0,0 +1,99 @@
+package org.jetbrains.teamcity.vault.server
+
+import org.jetbrains.teamcity.vault.SessionManagerBuilder
+import org.jetbrains.teamcity.vault.VaultFeatureSettings
+import org.mockito.Mockito
+import org.springframework.vault.authentication.LifecycleAwareSessionManager
+import org.springframework.vault.support.VaultToken
+import org.testng.Assert
+import org.testng.annotations.AfterMethod
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class VaultTestSessionPoolTest {
+    private lateinit var sessionManagerBuilder: SessionManagerBuilder
+    private lateinit var pool: VaultTestSessionPool
+    private val logins = AtomicInteger()
+    private val settings = VaultFeatureSettings("http://localhost:8200", "")
+    private val key = VaultTestSessionPool.Key("project1", 1L, settings)
+
+    @BeforeMethod
+    fun setUp() {
+        logins.set(0)
+        sessionManagerBuilder = Mockito.mock(SessionManagerBuilder::class.java)
+        Mockito.`when`(sessionManagerBuilder.build(settings)).thenAnswer {
+            val sessionManager = Mockito.mock(LifecycleAwareSessionManager::class.java)
+            val token = VaultToken.of("token-${logins.incrementAndGet()}")
+            Mockito.`when`(sessionManager.sessionToken).thenAnswer {
+                // slow login, so that the concurrent requests overlap
+                Thread.sleep(100)
+                token
+            }
+            sessionManager
+        }
+        pool = VaultTestSessionPool(sessionManagerBuilder)
+    }
+
+    @AfterMethod
+    fun tearDown() {
+        pool.destroy()
+    }
+
+    @Test
+    fun testSessionReused() {
+        val first = pool.withSession(key, { settings }) { _, token -> token }
+        val second = pool.withSession(key, { settings }) { _, token -> token }
+
+        Assert.assertEquals(first, second)
+        Assert.assertEquals(logins.get(), 1)
+    }
+
+    @Test
+    fun testConcurrentRequestsShareSession() {
+        val threads = 8
+        val tokens = Collections.synchronizedSet(HashSet<String>())
+        val start = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            repeat(threads) {
+                executor.execute {
+                    start.await()
+                    tokens += pool.withSession(key, { settings }) { _, token -> token }
+                }
+            }
+            start.countDown()
+            executor.shutdown()
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES))
+        } finally {
+            executor.shutdownNow()
+        }
+
+        Assert.assertEquals(logins.get(), 1)
+        Assert.assertEquals(tokens, setOf("token-1"))
+        Assert.assertEquals(pool.size(), 1)
+    }
+
+    @Test
+    fun testFailedLoginRetried() {
+        val attempts = AtomicInteger()
+        Mockito.`when`(sessionManagerBuilder.build(settings)).thenAnswer {
+            attempts.incrementAndGet()
+            throw IllegalStateException("login failed")
+        }
+        repeat(2) {
+            try {
+                pool.withSession(key, { settings }) { _, token -> token }
+                Assert.fail("Login failure is expected")
+            } catch (e: IllegalStateException) {
+                // expected
+            }
+        }
+        Assert.assertEquals(attempts.get(), 2)
+        Assert.assertEquals(pool.size(), 0)
+    }
+}
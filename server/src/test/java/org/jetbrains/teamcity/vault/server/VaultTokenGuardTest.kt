@@ -0,0 +1,160 @@
+package org.jetbrains.teamcity.vault.server
+
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.RunningBuildEx
+import jetbrains.buildServer.serverSide.TeamCityNode
+import jetbrains.buildServer.serverSide.TeamCityNodes
+import jetbrains.buildServer.util.EventDispatcher
+import org.mockito.Answers
+import org.mockito.Mockito
+import org.testng.Assert
+import org.testng.annotations.BeforeMethod
+import org.testng.annotations.Test
+import java.util.Date
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class VaultTokenGuardTest {
+    private lateinit var nodes: TeamCityNodes
+    private lateinit var guard: VaultTokenGuard
+
+    @BeforeMethod
+    fun setUp() {
+        nodes = Mockito.mock(TeamCityNodes::class.java)
+        guard = VaultTokenGuard(EventDispatcher.create(BuildServerListener::class.java), nodes)
+    }
+
+    @Test
+    fun testSingleUse() {
+        val build = mockBuild(1)
+        Assert.assertTrue(guard.tryAcquire(build, "ns1"))
+        Assert.assertFalse(guard.tryAcquire(build, "ns1"))
+        Assert.assertTrue(guard.tryAcquire(build, "ns2"))
+    }
+
+    @Test
+    fun testForgottenOnBuildFinish() {
+        val build = mockBuild(1)
+        Assert.assertTrue(guard.tryAcquire(build, "ns1"))
+        guard.buildFinished(build)
+        Assert.assertEquals(guard.size(), 0)
+    }
+
+    @Test
+    fun testStorageCheckedOnMultiNode() {
+        Mockito.`when`(nodes.onlineNodes).thenReturn(listOf(Mockito.mock(TeamCityNode::class.java), Mockito.mock(TeamCityNode::class.java)))
+        val build = mockBuild(1)
+        // another node has already issued the token
+        Mockito.`when`(build.temporaryCustomDataStorage.getValue(VaultTokenGuard.getTokenGenerationId("ns1"))).thenReturn("isGenerated")
+
+        Assert.assertFalse(guard.tryAcquire(build, "ns1"))
+    }
+
+    @Test
+    fun testStorageCheckedForBuildsStartedBeforeServer() {
+        val build = mockBuild(1, Date(0))
+        Mockito.`when`(build.temporaryCustomDataStorage.getValue(VaultTokenGuard.getTokenGenerationId("ns1"))).thenReturn("isGenerated")
+
+        Assert.assertFalse(guard.tryAcquire(build, "ns1"))
+    }
+
+    /**
+     * Many threads compete for the same build/namespace pairs: exactly one of them must win every pair.
+     */
+    @Test
+    fun testConcurrentAcquire() {
+        val buildsCount = 200
+        val namespaces = (1..5).map { "ns$it" }
+        val threads = 8
+        val builds = (1..buildsCount).map { mockBuild(it.toLong()) }
+
+        val acquired = AtomicInteger()
+        val start = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            repeat(threads) {
+                executor.execute {
+                    start.await()
+                    builds.forEach { build ->
+                        namespaces.forEach { namespace ->
+                            if (guard.tryAcquire(build, namespace)) acquired.incrementAndGet()
+                        }
+                    }
+                }
+            }
+            start.countDown()
+            executor.shutdown()
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES))
+
+            Assert.assertEquals(acquired.get(), buildsCount * namespaces.size)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Compares the in-memory path with the storage path (refresh and flush with conflict detection), which is used when
+     * several nodes are online. Storage calls are given the latency of a database round trip.
+     * Not run by default, enable it to get the numbers.
+     */
+    @Test(enabled = false)
+    fun benchmarkAcquire() {
+        val inMemory = measureAcquire(multiNode = false)
+        val storage = measureAcquire(multiNode = true)
+        println("VaultTokenGuard.tryAcquire of $BENCHMARK_BUILDS builds: in memory ${inMemory}ms, with storage refresh and flush ${storage}ms")
+    }
+
+    @Test
+    fun testStorageFailureAllowsRetry() {
+        val build = mockBuild(1, Date(0))
+        Mockito.`when`(build.temporaryCustomDataStorage.getValue(VaultTokenGuard.getTokenGenerationId("ns1")))
+            .thenThrow(IllegalStateException("storage is not available"))
+            .thenReturn(null)
+
+        try {
+            guard.tryAcquire(build, "ns1")
+            Assert.fail("Storage failure is expected")
+        } catch (e: IllegalStateException) {
+            // expected
+        }
+        Assert.assertFalse(guard.isAcquired(build, "ns1"))
+        Assert.assertTrue(guard.tryAcquire(build, "ns1"))
+    }
+
+    private fun measureAcquire(multiNode: Boolean): Long {
+        val nodes = Mockito.mock(TeamCityNodes::class.java)
+        if (multiNode) {
+            Mockito.`when`(nodes.onlineNodes).thenReturn(listOf(Mockito.mock(TeamCityNode::class.java), Mockito.mock(TeamCityNode::class.java)))
+        }
+        val guard = VaultTokenGuard(EventDispatcher.create(BuildServerListener::class.java), nodes)
+        val builds = (1..BENCHMARK_BUILDS).map { id ->
+            mockBuild(id.toLong()).also { build ->
+                val storage = build.temporaryCustomDataStorage
+                Mockito.doAnswer { Thread.sleep(STORAGE_LATENCY_MILLIS) }.`when`(storage).refresh()
+                Mockito.doAnswer { Thread.sleep(STORAGE_LATENCY_MILLIS) }.`when`(storage).flush(Mockito.any())
+                Mockito.doAnswer { Thread.sleep(STORAGE_LATENCY_MILLIS) }.`when`(storage).flush()
+            }
+        }
+        try {
+            val start = System.nanoTime()
+            builds.forEach { Assert.assertTrue(guard.tryAcquire(it, "ns1")) }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        } finally {
+            guard.serverShutdown()
+        }
+    }
+
+    private fun mockBuild(buildId: Long, startDate: Date = Date()): RunningBuildEx {
+        val build = Mockito.mock(RunningBuildEx::class.java, Answers.RETURNS_DEEP_STUBS)
+        Mockito.`when`(build.buildId).thenReturn(buildId)
+        Mockito.`when`(build.startDate).thenReturn(startDate)
+        return build
+    }
+
+    companion object {
+        private const val BENCHMARK_BUILDS = 1000
+        private const val STORAGE_LATENCY_MILLIS = 1L
+    }
+}
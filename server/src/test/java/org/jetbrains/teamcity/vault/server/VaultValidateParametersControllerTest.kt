@@ -0,0 +1,56 @@
+package org.jetbrains.teamcity.vault.server
+
+import jetbrains.buildServer.controllers.BaseControllerTestCase
+import org.jdom.Element
+import org.jetbrains.teamcity.vault.VaultConstants
+import org.mockito.Mock
+import org.mockito.Mockito
+import org.mockito.kotlin.anyOrNull
+import org.mockito.testng.MockitoTestNGListener
+import org.testng.Assert
+import org.testng.annotations.Listeners
+import org.testng.annotations.Test
+
+@Listeners(MockitoTestNGListener::class)
+class VaultValidateParametersControllerTest : BaseControllerTestCase<VaultValidateParametersController>() {
+    @Mock
+    private lateinit var validator: VaultParametersValidator
+
+    override fun createController(): VaultValidateParametersController = VaultValidateParametersController(
+        myServer,
+        webFixture.webManager,
+        webFixture.authorizationInterceptor,
+        myProjectManager,
+        validator
+    )
+
+    @Test
+    fun testReports() {
+        val usage = VaultParametersValidator.Usage("project '${myProject.externalId}'", "password")
+        Mockito.`when`(validator.validate(Mockito.eq(myProject), anyOrNull())).thenReturn(listOf(
+            VaultParametersValidator.PathReport("", "secret/app!/password", listOf(usage), 10, 6, null),
+            VaultParametersValidator.PathReport("", "secret/missing!/key", listOf(usage), 10, null, "Not found")
+        ))
+
+        doPost(VaultConstants.PROJECT_ID, myProject.externalId)
+
+        val result = myResponse.returnedContentAsXml.getChild("validationResult")
+        Assert.assertNotNull(result)
+        Assert.assertEquals(result.getAttributeValue("total"), "2")
+        Assert.assertEquals(result.getAttributeValue("failed"), "1")
+        val failed = result.getChildren("path").filterIsInstance<Element>().single { it.getAttributeValue("successful") == "false" }
+        Assert.assertEquals(failed.getAttributeValue("query"), "secret/missing!/key")
+        Assert.assertEquals(failed.getChildText("error"), "Not found")
+        Assert.assertEquals(failed.getChild("usage").getAttributeValue("parameter"), "password")
+    }
+
+    @Test
+    fun testValidationFailure() {
+        Mockito.`when`(validator.validate(Mockito.eq(myProject), anyOrNull())).thenThrow(IllegalStateException("Vault is down"))
+
+        doPost(VaultConstants.PROJECT_ID, myProject.externalId)
+
+        Assert.assertNull(myResponse.returnedContentAsXml.getChild("validationResult"))
+        Assert.assertTrue(myResponse.returnedContent.contains("Vault is down"))
+    }
+}